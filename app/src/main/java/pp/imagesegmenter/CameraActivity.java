@@ -23,10 +23,6 @@ import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.Image;
-import android.media.Image.Plane;
-import android.media.ImageReader;
-import android.media.ImageReader.OnImageAvailableListener;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -38,14 +34,19 @@ import android.view.Surface;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Toast;
-import java.nio.ByteBuffer;
+import java.io.File;
 
 import androidx.appcompat.app.AppCompatActivity;
+import pp.imagesegmenter.env.EventRecorder;
+import pp.imagesegmenter.env.FrameStats;
 import pp.imagesegmenter.env.ImageUtils;
 import pp.imagesegmenter.env.Logger;
+import pp.imagesegmenter.source.Camera2FrameSource;
+import pp.imagesegmenter.source.Frame;
+import pp.imagesegmenter.source.FrameSource;
 
 public abstract class CameraActivity extends AppCompatActivity
-        implements OnImageAvailableListener {
+        implements FrameSource.Listener {
     private static final Logger LOGGER = new Logger();
 
     private static final int PERMISSIONS_REQUEST = 1;
@@ -53,27 +54,40 @@ public abstract class CameraActivity extends AppCompatActivity
     private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
     private static final String PERMISSION_STORAGE = Manifest.permission.WRITE_EXTERNAL_STORAGE;
 
+    private static final String EVENT_DUMP_FILE = "events.bin";
+    private static final int EVENT_CAPACITY = 4096;
+    // Any stage slower than this dumps the recent events for later inspection.
+    private static final long EVENT_LATENCY_THRESHOLD_NS = 500L * 1000L * 1000L;
+
     private boolean debug = false;
 
     private Handler handler;
     private HandlerThread handlerThread;
-    private boolean isProcessingFrame = false;
-    private byte[][] yuvBytes = new byte[3][];
+    private Camera2FrameSource frameSource;
+    // The frame being handed to the pipeline, until readyForNextImage().
+    private Frame frame;
     private int[] rgbBytes = null;
-    private int yRowStride;
 
     protected int previewWidth = 0;
     protected int previewHeight = 0;
 
+    protected final FrameStats frameStats = new FrameStats();
+
+    // Per frame stage timings, dumped on pause and whenever a stage stalls.
+    protected EventRecorder eventRecorder;
+
     private Runnable postInferenceCallback;
     private Runnable imageConverter;
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
-        LOGGER.d("onCreate " + this);
+        LOGGER.d("onCreate %s", this);
         super.onCreate(null);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
+        eventRecorder = new EventRecorder(
+                new File(getFilesDir(), EVENT_DUMP_FILE), EVENT_CAPACITY, EVENT_LATENCY_THRESHOLD_NS);
+
         setContentView(R.layout.activity_camera);
 
         if (hasPermission()) {
@@ -89,20 +103,25 @@ public abstract class CameraActivity extends AppCompatActivity
     }
 
     protected int getLuminanceStride() {
-        return yRowStride;
+        return frame.getYRowStride();
     }
 
     protected byte[] getLuminance() {
-        return yuvBytes[0];
+        return frame.getPlane(0);
+    }
+
+    public FrameStats getFrameStats() {
+        return frameStats;
     }
 
     /**
-    * Callback for Camera2 API
+    * Callback for the frame source
     */
     @Override
-    public void onImageAvailable(final ImageReader reader) {
+    public void onFrame(final Frame frame) {
         //We need wait until we have some size from onPreviewSizeChosen
         if (previewWidth == 0 || previewHeight == 0) {
+            frame.release();
             return;
         }
 
@@ -111,43 +130,26 @@ public abstract class CameraActivity extends AppCompatActivity
         }
 
         try {
-            final Image image = reader.acquireLatestImage();
-
-            if (image == null) {
-                return;
-            }
-
-            if (isProcessingFrame) {
-                image.close();
-                return;
-            }
-
-            isProcessingFrame = true;
+            this.frame = frame;
             Trace.beginSection("imageAvailable");
-            final Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
-            yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-
-            imageConverter = () -> ImageUtils.convertYUV420ToARGB8888( yuvBytes[0]
-                                                                     , yuvBytes[1]
-                                                                     , yuvBytes[2]
+
+            imageConverter = () -> ImageUtils.convertYUV420ToARGB8888( frame.getPlane(0)
+                                                                     , frame.getPlane(1)
+                                                                     , frame.getPlane(2)
                                                                      , previewWidth
                                                                      , previewHeight
-                                                                     , yRowStride
-                                                                     , uvRowStride
-                                                                     , uvPixelStride
+                                                                     , frame.getYRowStride()
+                                                                     , frame.getUvRowStride()
+                                                                     , frame.getUvPixelStride()
                                                                      , rgbBytes
                                                                      );
 
-            postInferenceCallback = () -> { image.close();
-                                            isProcessingFrame = false;
-                                          };
+            postInferenceCallback = frame::release;
 
             processImage();
         } catch (final Exception e) {
             LOGGER.e(e, "Exception!");
+            frame.release();
             Trace.endSection();
             return;
         }
@@ -157,13 +159,13 @@ public abstract class CameraActivity extends AppCompatActivity
 
     @Override
     public synchronized void onStart() {
-        LOGGER.d("onStart " + this);
+        LOGGER.d("onStart %s", this);
         super.onStart();
     }
 
     @Override
     public synchronized void onResume() {
-        LOGGER.d("onResume " + this);
+        LOGGER.d("onResume %s", this);
         super.onResume();
 
         handlerThread = new HandlerThread("inference");
@@ -173,7 +175,9 @@ public abstract class CameraActivity extends AppCompatActivity
 
     @Override
     public synchronized void onPause() {
-        LOGGER.d("onPause " + this);
+        LOGGER.d("onPause %s", this);
+        LOGGER.i("Frame stats:\n%s", frameStats.dump());
+        eventRecorder.flush();
 
         handlerThread.quitSafely();
         try {
@@ -189,13 +193,13 @@ public abstract class CameraActivity extends AppCompatActivity
 
     @Override
     public synchronized void onStop() {
-        LOGGER.d("onStop " + this);
+        LOGGER.d("onStop %s", this);
         super.onStop();
     }
 
     @Override
     public synchronized void onDestroy() {
-        LOGGER.d("onDestroy " + this);
+        LOGGER.d("onDestroy %s", this);
         super.onDestroy();
     }
 
@@ -213,7 +217,11 @@ public abstract class CameraActivity extends AppCompatActivity
 
     protected synchronized void runInBackground(final Runnable r) {
         if (handler != null) {
-            handler.post(r);
+            frameStats.enqueued(FrameStats.Queue.BACKGROUND);
+            handler.post(() -> {
+                frameStats.dequeued(FrameStats.Queue.BACKGROUND);
+                r.run();
+            });
         }
     }
 
@@ -282,14 +290,18 @@ public abstract class CameraActivity extends AppCompatActivity
     protected void setFragment() {
         String cameraId = chooseCamera();
 
+        frameSource = new Camera2FrameSource(frameStats);
+        frameSource.start(this);
+
         CameraConnectionFragment camera2Fragment =
                 CameraConnectionFragment.newInstance(
                         (size, rotation) -> {
                             previewHeight = size.getHeight();
                             previewWidth = size.getWidth();
+                            frameSource.setRotation(rotation);
                             CameraActivity.this.onPreviewSizeChosen(size, rotation);
                         },
-                        this,
+                        frameSource,
                         getLayoutId(),
                         getDesiredPreviewFrameSize());
 
@@ -301,19 +313,6 @@ public abstract class CameraActivity extends AppCompatActivity
                 .commit();
     }
 
-    protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
-        }
-    }
-
     public boolean isDebug() {
         return debug;
     }
@@ -0,0 +1,270 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter;
+
+import android.graphics.Matrix;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import pp.imagesegmenter.env.BinaryMask;
+import pp.imagesegmenter.env.FrameStats;
+import pp.imagesegmenter.env.Logger;
+
+/**
+ * Turns the stream of extracted frames into a continuous flow-rate signal.
+ *
+ * Frames are pushed into a {@link Regression} sliding window on a dedicated thread, so the
+ * regression model overlaps with segmentation of the following frames. The model is created, run
+ * and closed on that one thread, as its GPU delegate requires, so the thread lives as long as the
+ * estimator and stop() only stops accepting frames. Once the window is full,
+ * a new estimate is produced every {@code stride} frames and blended into an exponential moving
+ * average before being reported to the listener.
+ *
+ * Frames can be supplied as slots filled by the caller (for instance in the same
+ * {@link TensorPrep} pass that feeds segmentation), or straight from the camera's luminance plane,
+ * in which case no color conversion is needed at all.
+ */
+public class FlowRateEstimator {
+    private static final Logger LOGGER = new Logger();
+
+    /**
+     * Receives flow-rate estimates on the estimator thread.
+     */
+    public interface Listener {
+        void onFlowRate(final float flowRate, final float smoothedFlowRate, final long frameCount);
+    }
+
+    private final Regression regression;
+    private final int stride;
+    private final float smoothing;
+    private final Listener listener;
+    private final FrameStats frameStats;
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // Whether frames are accepted, guarded by this.
+    private boolean running;
+    private boolean closed;
+
+    // Only touched on the estimator thread.
+    private int framesSinceEstimate;
+    private long frameCount;
+    private boolean hasEstimate;
+    private float smoothedFlowRate;
+
+    // Geometry of the camera frames offered as luminance planes, see setLuminanceGeometry().
+    private int luminanceWidth;
+    private int luminanceHeight;
+    private Matrix inputToFrame;
+    // Row stride the regression's luminance transform was last computed for, 0 if none yet.
+    private int luminanceStride;
+
+    private volatile float lastFlowRate = Float.NaN;
+    private volatile long lastEstimateTimeMs;
+
+    /**
+     * Creates the model on the estimator thread, blocking until it is ready. The estimator starts
+     * out stopped.
+     *
+     * @param regressionFactory creates the model, which must then only be used through this
+     *                          estimator.
+     * @param stride number of new frames between two consecutive estimates.
+     * @param smoothing weight of the newest estimate in the moving average, in (0, 1]. A value of
+     *                  1 disables smoothing.
+     * @param listener receives every new estimate.
+     * @param frameStats accounts for frames waiting on the estimator thread.
+     */
+    public FlowRateEstimator(
+            final Callable<Regression> regressionFactory,
+            final int stride,
+            final float smoothing,
+            final Listener listener,
+            final FrameStats frameStats) {
+        if (stride < 1) {
+            throw new IllegalArgumentException("stride must be positive: " + stride);
+        }
+        if (smoothing <= 0.0f || smoothing > 1.0f) {
+            throw new IllegalArgumentException("smoothing must be in (0, 1]: " + smoothing);
+        }
+        this.stride = stride;
+        this.smoothing = smoothing;
+        this.listener = listener;
+        this.frameStats = frameStats;
+
+        thread = new HandlerThread("flowrate");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        final FutureTask<Regression> creation = new FutureTask<Regression>(regressionFactory);
+        handler.post(creation);
+        try {
+            regression = creation.get();
+        } catch (final ExecutionException e) {
+            thread.quitSafely();
+            throw new RuntimeException(e.getCause());
+        } catch (final InterruptedException e) {
+            thread.quitSafely();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Starts accepting frames again after stop(). */
+    public synchronized void start() {
+        running = !closed;
+    }
+
+    /**
+     * Stops accepting frames. Frames already queued are still added to the window, and the model
+     * stays loaded for the next start().
+     */
+    public synchronized void stop() {
+        running = false;
+    }
+
+    /**
+     * Closes the model on the estimator thread once the queued frames are processed, and ends the
+     * thread. The estimator cannot be started again afterwards.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        running = false;
+        handler.post(regression::close);
+        thread.quitSafely();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            LOGGER.e(e, "Exception!");
+        }
+    }
+
+    /**
+     * Sets the geometry of the camera frames that will be passed to {@link #offerLuminance}. The
+     * luminance transform itself is only computed once the first plane, and with it the row
+     * stride, is offered.
+     *
+     * @param inputToFrame Maps model input coordinates into camera frame coordinates, typically
+     *                     the inverse of the frame-to-crop transform.
+     */
+    public synchronized void setLuminanceGeometry(
+            final int frameWidth, final int frameHeight, final Matrix inputToFrame) {
+        luminanceWidth = frameWidth;
+        luminanceHeight = frameHeight;
+        this.inputToFrame = new Matrix(inputToFrame);
+        luminanceStride = 0;
+    }
+
+    /**
+     * Samples the model input straight from a camera luminance plane and queues it for the sliding
+     * window. The plane is only read during this call, so the caller may reuse it afterwards.
+     * {@link #setLuminanceGeometry} must have been called first.
+     *
+     * @param rowStride Row stride of the luminance plane.
+     * @return false if the estimator is not running or still busy with earlier luminance frames,
+     * in which case the frame was discarded.
+     */
+    public synchronized boolean offerLuminance(final byte[] luminance, final int rowStride) {
+        if (inputToFrame == null) {
+            throw new IllegalStateException("setLuminanceGeometry() has not been called");
+        }
+        if (!running) {
+            return false;
+        }
+        final ByteBuffer slot = regression.claimSlot();
+        if (slot == null) {
+            return false;
+        }
+        if (rowStride != luminanceStride) {
+            regression.setLuminanceTransform(luminanceWidth, luminanceHeight, rowStride, inputToFrame);
+            luminanceStride = rowStride;
+        }
+        regression.sampleLuminance(luminance, slot);
+        return offerSlot(slot);
+    }
+
+    /**
+     * Takes a free input slot that the caller can fill with {@link Regression#INPUT_LAYOUT} and
+     * then pass to {@link #offerSlot}. May be called from any thread.
+     *
+     * @return the slot, or null if the estimator is behind and the frame should be skipped.
+     */
+    public ByteBuffer claimSlot() {
+        return regression.claimSlot();
+    }
+
+    /**
+     * Blacks out the background of a claimed slot according to a segmentation mask.
+     */
+    public void applyMask(final ByteBuffer slot, final BinaryMask mask) {
+        regression.applyMask(slot, mask);
+    }
+
+    /**
+     * Queues a slot obtained from {@link #claimSlot()} for the sliding window.
+     *
+     * @return false if the estimator is not running and the slot was released.
+     */
+    public synchronized boolean offerSlot(final ByteBuffer slot) {
+        if (!running) {
+            regression.releaseSlot(slot);
+            return false;
+        }
+        frameStats.enqueued(FrameStats.Queue.EXTRACTED);
+        handler.post(() -> {
+            frameStats.dequeued(FrameStats.Queue.EXTRACTED);
+            regression.commitSlot(slot);
+            onFrameAdded();
+        });
+        return true;
+    }
+
+    private void onFrameAdded() {
+        ++frameCount;
+        ++framesSinceEstimate;
+
+        if (!regression.isWindowFull() || (hasEstimate && framesSinceEstimate < stride)) {
+            return;
+        }
+        framesSinceEstimate = 0;
+
+        final long startTime = System.currentTimeMillis();
+        final float flowRate = regression.estimate();
+        lastEstimateTimeMs = System.currentTimeMillis() - startTime;
+
+        smoothedFlowRate =
+                hasEstimate ? smoothedFlowRate + smoothing * (flowRate - smoothedFlowRate) : flowRate;
+        hasEstimate = true;
+        lastFlowRate = smoothedFlowRate;
+
+        listener.onFlowRate(flowRate, smoothedFlowRate, frameCount);
+    }
+
+    /** Returns the latest smoothed flow rate, or NaN if none has been computed yet. */
+    public float getFlowRate() {
+        return lastFlowRate;
+    }
+
+    public long getLastEstimateTimeMs() {
+        return lastEstimateTimeMs;
+    }
+}
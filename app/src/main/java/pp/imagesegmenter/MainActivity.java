@@ -23,29 +23,35 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Typeface;
-import android.media.ImageReader.OnImageAvailableListener;
 import android.util.Size;
 import android.util.TypedValue;
+import android.view.KeyEvent;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 
+import pp.imagesegmenter.env.BinaryMask;
 import pp.imagesegmenter.env.BorderedText;
+import pp.imagesegmenter.env.EventRecorder;
+import pp.imagesegmenter.env.FrameStats;
+import pp.imagesegmenter.env.FrameStore;
+import pp.imagesegmenter.env.ImagePyramidCache;
 import pp.imagesegmenter.env.ImageUtils;
 import pp.imagesegmenter.env.Logger;
 import pp.imagesegmenter.tracking.MultiBoxTracker;
 
-import static java.lang.Thread.sleep;
-
 /**
 * An activity that uses a Deeplab and ObjectTracker to segment and then track objects.
 */
-public class MainActivity extends CameraActivity implements OnImageAvailableListener {
+public class MainActivity extends CameraActivity {
     private static final Logger LOGGER = new Logger();
 
     private static final int CROP_SIZE = 240;
@@ -55,10 +61,33 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
     private static final boolean SAVE_PREVIEW_BITMAP = false;
     private static final float TEXT_SIZE_DIP = 10;
 
+    // A new flow rate is estimated every FLOW_RATE_STRIDE extracted frames, over a sliding window
+    // of the last Regression.WINDOW_SIZE frames.
+    private static final int FLOW_RATE_STRIDE = 5;
+    // Weight of the newest estimate in the exponential moving average of the flow rate.
+    private static final float FLOW_RATE_SMOOTHING = 0.3f;
+    // Feed the flow-rate model straight from the camera's luminance plane instead of the masked
+    // RGB frames. Only suitable for models trained on unmasked intensity input.
+    private static final boolean FLOW_RATE_FROM_LUMINANCE = false;
+
+    // The segmentation configuration is tuned on the first batch after install, or on demand with
+    // the menu key, for the best masks within this median time per frame.
+    private static final long TUNING_TARGET_LATENCY_MS = 100;
+    // Mean IoU with the masks of the untuned model a tuned configuration must reach.
+    private static final float TUNING_MIN_IOU = 0.8f;
+
     private Integer sensorOrientation;
 
     private Segmentation segmentation;
-    private Regression regression;
+    private FlowRateEstimator flowRateEstimator;
+    private volatile boolean tuningRequested;
+
+    // Writes the input tensors of all active models in one pass over each cropped frame.
+    // Segmentation only shares it while its input size is CROP_SIZE.
+    private TensorPrep tensorPrep;
+    private boolean segmentationPrepared;
+    // The regression input slot claimed for the frame tensorPrep is preparing, if any.
+    private ByteBuffer regressionSlot;
 
     private long lastProcessingTimeMs;
     private Bitmap rgbFrameBitmap = null;
@@ -71,6 +100,8 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
 
     private Matrix frameToCropTransform;
     private Matrix cropToFrameTransform;
+    // Maps segmentation output pixels to frame coordinates, set up with the first mask.
+    private Matrix outputToFrameTransform;
 
     private MultiBoxTracker tracker;
 
@@ -81,9 +112,26 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
     private Snackbar initSnackbar;
     private ImageView maskView;
     private ImageView extractedView;
-
-    private List<Bitmap> acquiredFrames = new ArrayList<>();
-    final ArrayList<Bitmap> extractedStreams = new ArrayList<>();
+    // Coalesces the views' and snackbar's updates into one per display frame.
+    private UiPublisher uiPublisher;
+
+    // Cropped frames and their masks, kept off the heap in memory-mapped segments that hold a
+    // window of FRAMES_PER_SEGMENT * MAX_SEGMENTS recent frames.
+    private static final int FRAMES_PER_SEGMENT = 32;
+    private static final int MAX_SEGMENTS = 8;
+    private static final String FRAME_STORE_DIR = "frames";
+
+    private FrameStore frameStore;
+    private FrameStore maskStore;
+
+    // First stored frame of the batch being acquired, and the bitmaps batch frames are read into.
+    // Only used on the inference thread.
+    private long batchStart;
+    private Bitmap batchFrame;
+    private BinaryMask batchMask;
+    private int[] batchPixels;
+    // Luminance of every frame of the batch, for handing its stream components to the tracker.
+    private byte[][] batchLuminance;
 
     private boolean initialized = false;
 
@@ -96,6 +144,9 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
 
         FrameLayout container = findViewById(R.id.container);
         initSnackbar = Snackbar.make(container, "Initializing...", Snackbar.LENGTH_INDEFINITE);
+        maskView = findViewById(R.id.maskView);
+        extractedView = findViewById(R.id.extractedView);
+        uiPublisher = new UiPublisher(maskView, extractedView, initSnackbar, frameStats);
 
         init();
 
@@ -106,6 +157,7 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         borderedText.setTypeface(Typeface.MONOSPACE);
 
         tracker = new MultiBoxTracker(this);
+        tracker.setDebug(isDebug());
 
         previewWidth = size.getWidth();
         previewHeight = size.getHeight();
@@ -113,6 +165,10 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
         rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
         croppedBitmap = Bitmap.createBitmap(CROP_SIZE, CROP_SIZE, Config.ARGB_8888);
+        batchFrame = Bitmap.createBitmap(CROP_SIZE, CROP_SIZE, Config.ARGB_8888);
+        frameStore = new FrameStore(
+                new File(getCacheDir(), FRAME_STORE_DIR), "frames", CROP_SIZE, CROP_SIZE,
+                FrameStore.Layout.RGB_888, FRAMES_PER_SEGMENT, MAX_SEGMENTS);
 
         frameToCropTransform =
                 ImageUtils.getTransformationMatrix(
@@ -159,51 +215,187 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
                     lines.add("View: " + canvas.getWidth() + "x" + canvas.getHeight());
                     lines.add("Rotation: " + sensorOrientation);
                     lines.add("Inference time: " + lastProcessingTimeMs + "ms");
+                    if (flowRateEstimator != null) {
+                        lines.add("Flow rate: " + flowRateEstimator.getFlowRate()
+                                + " (" + flowRateEstimator.getLastEstimateTimeMs() + "ms)");
+                    }
+                    lines.addAll(frameStats.getDebugText());
+                    final ImagePyramidCache pyramidCache = tracker.getPyramidCache();
+                    if (pyramidCache != null) {
+                        lines.add(pyramidCache.getStatString());
+                    }
+                    if (SAVE_PREVIEW_BITMAP) {
+                        lines.add(ImageUtils.getSaveStatString());
+                    }
 
                     borderedText.drawLines(canvas, 10, canvas.getHeight() - 10, lines);
                 });
-
-        maskView = findViewById(R.id.maskView);
-        extractedView = findViewById(R.id.extractedView);
     }
 
     OverlayView trackingOverlay;
 
     void init() {
         runInBackground(() -> {
-            runOnUiThread(()->initSnackbar.show());
+            uiPublisher.postStatus("Initializing...");
+            Segmentation.Config config = SegmentationTuner.load(this);
+            if (config == null) {
+                config = Segmentation.DEFAULT_CONFIG;
+                tuningRequested = true;
+            }
+            LOGGER.i("Segmentation config: %s", config);
             try {
-                segmentation = Segmentation.create(getAssets(), CROP_SIZE, CROP_SIZE, sensorOrientation);
+                segmentation = Segmentation.create(getAssets(), config, sensorOrientation);
             } catch (Exception e) {
                 LOGGER.e("Exception initializing classifier: " + e.getLocalizedMessage(), e);
                 finish();
             }
             runInBackground(() -> {
-                //regression = Regression.create(getAssets(), CROP_SIZE, CROP_SIZE, sensorOrientation);
-                runOnUiThread(() -> initSnackbar.dismiss());
+                try {
+                    flowRateEstimator = new FlowRateEstimator(
+                            () -> Regression.create(
+                                    getAssets(), CROP_SIZE, CROP_SIZE, sensorOrientation),
+                            FLOW_RATE_STRIDE, FLOW_RATE_SMOOTHING,
+                            (flowRate, smoothedFlowRate, frameCount) -> uiPublisher.postStatus(
+                                    String.format("Flow rate: %.2f", smoothedFlowRate)),
+                            frameStats);
+                    if (FLOW_RATE_FROM_LUMINANCE) {
+                        flowRateEstimator.setLuminanceGeometry(
+                                previewWidth, previewHeight, cropToFrameTransform);
+                    }
+                    flowRateEstimator.start();
+                } catch (Exception e) {
+                    LOGGER.e(e, "Exception initializing regression, flow rate unavailable");
+                }
+
+                if (segmentation == null) {
+                    return;
+                }
+                createTensorPrep();
+                uiPublisher.dismissStatus();
                 initialized = true;
             });
 
         });
     }
 
+    private void createTensorPrep() {
+        tensorPrep = new TensorPrep(CROP_SIZE, CROP_SIZE);
+        segmentationPrepared = segmentation.getInputSize() == CROP_SIZE;
+        if (segmentationPrepared) {
+            tensorPrep.register(Segmentation.INPUT_LAYOUT, segmentation::getInputBuffer);
+        }
+        if (!FLOW_RATE_FROM_LUMINANCE && flowRateEstimator != null) {
+            tensorPrep.register(Regression.INPUT_LAYOUT, () -> regressionSlot);
+        }
+    }
+
+    /**
+     * Benchmarks segmentation configurations on the batch of stored frames from batchStart on and
+     * switches to the best one, saving it for the next start.
+     */
+    private void tuneSegmentation() {
+        tuningRequested = false;
+        uiPublisher.postStatus("Tuning segmentation...");
+
+        final List<Bitmap> frames = new ArrayList<Bitmap>(FRAMES);
+        for (int idx = 0; idx < FRAMES; idx++) {
+            final Bitmap frame = Bitmap.createBitmap(CROP_SIZE, CROP_SIZE, Config.ARGB_8888);
+            frameStore.read(batchStart + idx, frame);
+            frames.add(frame);
+        }
+        final Segmentation.Config config =
+                new SegmentationTuner(
+                        getAssets(), sensorOrientation, TUNING_TARGET_LATENCY_MS, TUNING_MIN_IOU)
+                        .tune(frames);
+        if (config == null) {
+            return;
+        }
+        SegmentationTuner.save(this, config);
+        if (config.equals(segmentation.getConfig())) {
+            return;
+        }
+
+        final Segmentation tuned;
+        try {
+            tuned = Segmentation.create(getAssets(), config, sensorOrientation);
+        } catch (final RuntimeException e) {
+            LOGGER.e(e, "Exception!");
+            return;
+        }
+        segmentation.close();
+        segmentation = tuned;
+        createTensorPrep();
+
+        // The mask size may have changed with the input size.
+        if (maskStore != null) {
+            maskStore.clear();
+            maskStore = null;
+        }
+    }
+
+    /** Tunes the segmentation again once the next batch of frames is acquired. */
+    public void requestTuning() {
+        tuningRequested = true;
+    }
+
+    @Override
+    public boolean onKeyDown(final int keyCode, final KeyEvent event) {
+        if (keyCode == KeyEvent.KEYCODE_MENU) {
+            requestTuning();
+            return true;
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    @Override
+    public synchronized void onResume() {
+        super.onResume();
+        if (flowRateEstimator != null) {
+            flowRateEstimator.start();
+        }
+    }
+
+    @Override
+    public synchronized void onPause() {
+        if (flowRateEstimator != null) {
+            flowRateEstimator.stop();
+        }
+        super.onPause();
+    }
+
+    @Override
+    public synchronized void onDestroy() {
+        if (flowRateEstimator != null) {
+            flowRateEstimator.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected void processImage() {
         ++timestamp;
         final long currTimestamp = timestamp;
         byte[] originalLuminance = getLuminance();
-        tracker.onFrame(previewWidth, previewHeight, getLuminanceStride(), sensorOrientation, originalLuminance, timestamp);
+        // Only available until readyForNextImage().
+        final int luminanceStride = getLuminanceStride();
+        final long trackStartNs = System.nanoTime();
+        tracker.onFrame(previewWidth, previewHeight, luminanceStride, sensorOrientation, originalLuminance, timestamp);
+        eventRecorder.record(EventRecorder.Stage.TRACK, currTimestamp, trackStartNs, System.nanoTime());
         trackingOverlay.postInvalidate();
 
         // No mutex needed as this method is not reentrant.
         if (computingDetection || !initialized) {
+            frameStats.onDropped(FrameStats.Drop.DETECTOR_BUSY);
             readyForNextImage();
             return;
         }
         computingDetection = true;
-        LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
+        frameStats.onFrame(FrameStats.Rate.ADMITTED);
+        LOGGER.v("Preparing image %d for detection in bg thread.", currTimestamp);
 
+        final long previewStartNs = System.nanoTime();
         rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+        eventRecorder.record(EventRecorder.Stage.PREVIEW, currTimestamp, previewStartNs, System.nanoTime());
 
         if (luminanceCopy == null) {
             luminanceCopy = new byte[originalLuminance.length];
@@ -211,77 +403,155 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         System.arraycopy(originalLuminance, 0, luminanceCopy, 0, originalLuminance.length);
         readyForNextImage();
 
+        if (FLOW_RATE_FROM_LUMINANCE && flowRateEstimator != null) {
+            flowRateEstimator.offerLuminance(luminanceCopy, luminanceStride);
+        }
+
         runInBackground(() -> {
+            final long cropStartNs = System.nanoTime();
             final Canvas canvas = new Canvas(croppedBitmap);
             canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+            if (SAVE_PREVIEW_BITMAP) {
+                ImageUtils.saveBitmapAsync(
+                        croppedBitmap, "preview_" + currTimestamp + ".png", ImageUtils.Encoding.PNG);
+            }
 
             cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-            Bitmap acquiredFrame = Bitmap.createBitmap(croppedBitmap);
 
-            acquiredFrames.add(acquiredFrame);
+            try {
+                frameStore.append(currTimestamp, croppedBitmap);
+            } catch (final IOException e) {
+                LOGGER.e(e, "Exception!");
+                computingDetection = false;
+                return;
+            }
 
-            final int numberOfFramesAcquired = acquiredFrames.size();
-            runOnUiThread(() -> {
-                initSnackbar.show();
-                initSnackbar.setText("Acquired " + numberOfFramesAcquired + " frames...");
-            });
+            final int numberOfFramesAcquired = (int) (frameStore.getEndFrame() - batchStart);
+            // luminanceCopy is not touched again before computingDetection is cleared.
+            if (batchLuminance == null) {
+                batchLuminance = new byte[FRAMES][luminanceCopy.length];
+            }
+            System.arraycopy(
+                    luminanceCopy, 0, batchLuminance[numberOfFramesAcquired - 1], 0,
+                    luminanceCopy.length);
+            eventRecorder.record(
+                    EventRecorder.Stage.CROP, currTimestamp, cropStartNs, System.nanoTime(),
+                    numberOfFramesAcquired, 0);
+            frameStats.setQueueDepth(FrameStats.Queue.ACQUIRED, numberOfFramesAcquired);
+            uiPublisher.postStatus("Acquired %d frames...", numberOfFramesAcquired);
 
             if (numberOfFramesAcquired < FRAMES) {
                 computingDetection = false;
                 return;
             }
 
-            List<Bitmap> streamMasks = new ArrayList();
-            for (int idx = 0; idx < FRAMES; idx++) {
-                acquiredFrame = acquiredFrames.get(idx);
-                final Bitmap streamMask = segmentation.segment(acquiredFrame);
-                streamMasks.add(streamMask);
-
-                final int tmp_idx = idx + 1;
-                runOnUiThread(() -> {
-                    maskView.setImageBitmap(streamMask);
-                    initSnackbar.setText("Extracted " + tmp_idx + " frames...");
-                    initSnackbar.show();
-                });
+            if (tuningRequested) {
+                tuneSegmentation();
+            }
+
+            final long maskBatchStart;
+            try {
+                maskBatchStart = segmentBatch();
+            } catch (final IOException e) {
+                LOGGER.e(e, "Exception!");
+                batchStart += FRAMES;
+                computingDetection = false;
+                return;
             }
-            acquiredFrames.clear();
 
             for (int idx = 0; idx < FRAMES; idx++) {
-                final Bitmap streamMask = streamMasks.get(idx);
-                final Bitmap scaledMask = Bitmap.createScaledBitmap(streamMask, CROP_SIZE, CROP_SIZE, false);
-                final Bitmap extractedStream = applyMask(acquiredFrame, scaledMask);
-                extractedStreams.add(extractedStream);
-
-                final int tmp_idx = idx + 1;
-                runOnUiThread(() -> {
-                    extractedView.setImageBitmap(extractedStream);
-                    initSnackbar.setText("Applied " + tmp_idx + " masks...");
-                    initSnackbar.show();
-                });
+                final long extractStartNs = System.nanoTime();
+                // Segmentation is done with batchFrame, and uiPublisher copies what it is posted.
+                final long frameId = frameStore.read(batchStart + idx, batchFrame);
+                maskStore.read(maskBatchStart + idx, batchMask);
+                final Bitmap extractedStream = applyMask(batchFrame, batchMask);
+                eventRecorder.record(
+                        EventRecorder.Stage.EXTRACT, frameId, extractStartNs, System.nanoTime(), idx, 0);
+
+                uiPublisher.postExtracted(extractedStream);
+                uiPublisher.postStatus("Applied %d masks...", idx + 1);
             }
 
-            streamMasks.clear();
+            batchStart += FRAMES;
+            frameStats.setQueueDepth(FrameStats.Queue.ACQUIRED, 0);
+
             trackingOverlay.postInvalidate();
             requestRender();
-//
-//            final Float flowrate = regression.estimate(extractedStreams);
-//
-//            runOnUiThread(() -> {
-//                initSnackbar.setText(flowrate.toString());
-//                initSnackbar.show();
-//            });
 
-            extractedStreams.clear();
+            computingDetection = false;
+        });
+    }
 
-            try {
-                sleep(5000);
-            } catch (InterruptedException e) {
-                // can't sleep :(
-                e.printStackTrace();
+    /**
+     * Segments the FRAMES stored frames from batchStart on, appending their masks to maskStore.
+     *
+     * @return the number of the first mask in maskStore.
+     */
+    private long segmentBatch() throws IOException {
+        long maskBatchStart = -1;
+        for (int idx = 0; idx < FRAMES; idx++) {
+            final long frameId = frameStore.read(batchStart + idx, batchFrame);
+
+            // Claimed here rather than by the sink, so that the frame owns the slot until it is
+            // offered below.
+            regressionSlot =
+                    !FLOW_RATE_FROM_LUMINANCE && flowRateEstimator != null
+                            ? flowRateEstimator.claimSlot()
+                            : null;
+            final long segmentStartNs = System.nanoTime();
+            tensorPrep.prepare(batchFrame);
+            final Bitmap streamMask =
+                    segmentationPrepared
+                            ? segmentation.segmentPrepared()
+                            : segmentation.segment(batchFrame);
+            final BinaryMask streamBits = segmentation.getMask();
+            if (maskStore == null) {
+                maskStore = new FrameStore(
+                        new File(getCacheDir(), FRAME_STORE_DIR), "masks",
+                        streamBits.getWidth(), streamBits.getHeight(),
+                        FrameStore.Layout.MASK_1, FRAMES_PER_SEGMENT, MAX_SEGMENTS);
+                batchMask = new BinaryMask(streamBits.getWidth(), streamBits.getHeight());
+                outputToFrameTransform = new Matrix();
+                outputToFrameTransform.setScale(
+                        (float) CROP_SIZE / streamBits.getWidth(),
+                        (float) CROP_SIZE / streamBits.getHeight());
+                outputToFrameTransform.postConcat(cropToFrameTransform);
+            }
+            final long mask = maskStore.append(frameId, streamBits);
+            if (idx == 0) {
+                maskBatchStart = mask;
+            }
+            if (SAVE_PREVIEW_BITMAP) {
+                ImageUtils.saveBitmapAsync(
+                        streamMask, "mask_" + frameId + ".rle", ImageUtils.Encoding.RLE_MASK);
             }
+            eventRecorder.record(
+                    EventRecorder.Stage.SEGMENT, frameId, segmentStartNs,
+                    System.nanoTime(), idx, 0);
+            frameStats.onFrame(FrameStats.Rate.PROCESSED);
+
+            tracker.trackResults(
+                    segmentation.getRecognitions(outputToFrameTransform), batchLuminance[idx],
+                    frameId);
+            trackingOverlay.postInvalidate();
 
-            computingDetection = false;
-        });
+            if (regressionSlot != null) {
+                flowRateEstimator.applyMask(regressionSlot, streamBits);
+                flowRateEstimator.offerSlot(regressionSlot);
+                regressionSlot = null;
+            }
+
+            uiPublisher.postMask(streamMask);
+            uiPublisher.postStatus("Extracted %d frames...", idx + 1);
+        }
+        return maskBatchStart;
+    }
+
+    @Override
+    public void onSetDebug(final boolean debug) {
+        if (tracker != null) {
+            tracker.setDebug(debug);
+        }
     }
 
     @Override
@@ -294,15 +564,30 @@ public class MainActivity extends CameraActivity implements OnImageAvailableList
         return DESIRED_PREVIEW_SIZE;
     }
 
-    private Bitmap applyMask(Bitmap streamImage, Bitmap streamMask) {
+    /**
+     * Blacks out the pixels of streamImage that are background in streamMask, which is scaled to
+     * the image with nearest-neighbor sampling.
+     */
+    private Bitmap applyMask(final Bitmap streamImage, final BinaryMask streamMask) {
         final int black = Color.rgb(0, 0, 0);
-
-        for (int row = 0; row < streamImage.getHeight(); row++) {
-            for (int col = 0; col < streamImage.getWidth(); col++) {
-                int maskPixel = streamMask.getPixel(col, row);
-                if (maskPixel == black) streamImage.setPixel(col, row, black);
+        final int width = streamImage.getWidth();
+        final int height = streamImage.getHeight();
+        if (batchPixels == null || batchPixels.length != width * height) {
+            batchPixels = new int[width * height];
+        }
+        streamImage.getPixels(batchPixels, 0, width, 0, 0, width, height);
+
+        final int maskWidth = streamMask.getWidth();
+        final int maskHeight = streamMask.getHeight();
+        for (int row = 0; row < height; row++) {
+            final int maskRow = row * maskHeight / height;
+            for (int col = 0; col < width; col++) {
+                if (!streamMask.get(col * maskWidth / width, maskRow)) {
+                    batchPixels[row * width + col] = black;
+                }
             }
         }
+        streamImage.setPixels(batchPixels, 0, width, 0, 0, width, height);
 
         return streamImage;
     }
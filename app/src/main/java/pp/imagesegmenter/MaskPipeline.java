@@ -0,0 +1,114 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import pp.imagesegmenter.env.BinaryMask;
+import pp.imagesegmenter.env.ConnectedComponents;
+import pp.imagesegmenter.env.MaskMorphology;
+
+/**
+ * Turns the segmentation model's scores into the stream mask and the boxes of its parts.
+ *
+ * The stream class is thresholded into a {@link BinaryMask}, which is opened to drop speckles and
+ * closed to fill holes. Its connected components are then labelled, and every component of at
+ * least MIN_COMPONENT_AREA pixels is assigned a box, its bounds in mask pixels. This stage uses
+ * nothing from Android and allocates nothing per frame, so it can be measured on the JVM with
+ * scores from a stub {@link ModelRunner}.
+ */
+class MaskPipeline {
+    // The model scores background and stream for every pixel of a grid of half the input size.
+    static final int NUM_CLASSES = 2;
+    static final int STREAM_CLASS = 1;
+    private static final float STREAM_THRESHOLD = 0.99f;
+
+    // The thresholded mask is opened to drop speckles, then closed to fill holes, both measured in
+    // output pixels.
+    private static final int MASK_OPEN_RADIUS = 1;
+    private static final int MASK_CLOSE_RADIUS = 2;
+
+    // Components of the stream mask smaller than this many output pixels are dropped as noise.
+    private static final int MIN_COMPONENT_AREA = 16;
+
+    private final BinaryMask mask;
+    private final MaskMorphology morphology;
+    private final ConnectedComponents components;
+
+    // Component of every box.
+    private int[] boxComponents = new int[16];
+    private int numBoxes;
+
+    /**
+     * @param width width of the model output grid.
+     * @param height height of the model output grid.
+     */
+    MaskPipeline(final int width, final int height) {
+        mask = new BinaryMask(width, height);
+        morphology = new MaskMorphology(width, height);
+        components = new ConnectedComponents(width, height);
+    }
+
+    /**
+     * Runs the stage on the model output, width * height pixels of NUM_CLASSES floats each in row
+     * major order, read from the buffer's absolute positions.
+     *
+     * @return the number of boxes.
+     */
+    int process(final ByteBuffer scores) {
+        mask.setFromScores(scores, NUM_CLASSES, STREAM_CLASS, STREAM_THRESHOLD);
+        morphology.open(mask, MASK_OPEN_RADIUS);
+        morphology.close(mask, MASK_CLOSE_RADIUS);
+
+        final int numComponents = components.label(mask);
+        numBoxes = 0;
+        for (int c = 0; c < numComponents; ++c) {
+            if (components.getArea(c) < MIN_COMPONENT_AREA) {
+                continue;
+            }
+            if (numBoxes == boxComponents.length) {
+                boxComponents = Arrays.copyOf(boxComponents, 2 * numBoxes);
+            }
+            boxComponents[numBoxes++] = c;
+        }
+        return numBoxes;
+    }
+
+    /** Returns the mask of the last frame processed, valid until the next one is. */
+    BinaryMask getMask() {
+        return mask;
+    }
+
+    /** Returns the components of the last frame processed, valid until the next one is. */
+    ConnectedComponents getComponents() {
+        return components;
+    }
+
+    int getNumBoxes() {
+        return numBoxes;
+    }
+
+    /** Returns the component a box was assigned to. */
+    int getComponent(final int box) {
+        return boxComponents[box];
+    }
+
+    /** Writes the left, top, right and bottom of a box into out, right and bottom exclusive. */
+    void getBox(final int box, final int[] out) {
+        components.getBounds(boxComponents[box], out);
+    }
+}
@@ -0,0 +1,37 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a model with one input and one output tensor. {@link Segmentation} runs its model through
+ * this so that a stub returning canned scores can stand in for TensorFlow Lite, for example to
+ * measure pipeline throughput on frames from a
+ * {@link pp.imagesegmenter.source.SyntheticFrameSource}.
+ */
+public interface ModelRunner {
+    /** Runs the model on the input, writing the output tensor into output. */
+    void run(ByteBuffer input, ByteBuffer output);
+
+    /** Returns the shape of the output tensor. */
+    int[] getOutputShape();
+
+    /** Returns the size of the output tensor in bytes. */
+    int getOutputBytes();
+
+    void close();
+}
@@ -19,14 +19,15 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.util.AttributeSet;
 import android.view.View;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * A simple View providing a render callback to other classes.
+ * A simple View providing a render callback to other classes. Callbacks are expected to render
+ * state published by other threads without blocking, so drawing takes no lock.
  */
 public class OverlayView extends View {
-    private final List<DrawCallback> callbacks = new LinkedList<DrawCallback>();
+    private final List<DrawCallback> callbacks = new CopyOnWriteArrayList<DrawCallback>();
 
     public OverlayView(final Context context, final AttributeSet attrs) {
         super(context, attrs);
@@ -44,7 +45,7 @@ public class OverlayView extends View {
     }
 
     @Override
-    public synchronized void draw(final Canvas canvas) {
+    public void draw(final Canvas canvas) {
         for (final DrawCallback callback : callbacks) {
             callback.drawCallback(canvas);
         }
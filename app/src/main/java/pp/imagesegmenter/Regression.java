@@ -17,9 +17,7 @@ package pp.imagesegmenter;
 
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
-import android.graphics.Bitmap;
-import android.graphics.Point;
-import android.util.Log;
+import android.graphics.Matrix;
 
 import org.tensorflow.lite.Interpreter;
 import org.tensorflow.lite.gpu.GpuDelegate;
@@ -30,27 +28,70 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.ArrayBlockingQueue;
 
+import pp.imagesegmenter.env.BinaryMask;
+import pp.imagesegmenter.env.Logger;
+
+/**
+ * Estimates flow rate from a window of {@link #WINDOW_SIZE} consecutive masked frames.
+ *
+ * Every frame is normalized exactly once, into its own preallocated input slot. The window is a
+ * ring of slots, so a sliding-window estimate only has to add the newest slot and then re-point
+ * the model inputs at the slots in temporal order. Neither adding a frame nor running
+ * {@link #estimate()} allocates.
+ *
+ * A few spare slots let producers on other threads write frames in parallel with an estimate:
+ * a slot is taken with {@link #claimSlot()}, filled (e.g. by a {@link TensorPrep} pass shared
+ * with segmentation, or from the luminance plane) and then handed to {@link #commitSlot} on the
+ * thread that runs the model, which recycles the evicted oldest slot.
+ *
+ * Models that only need intensity can skip color conversion entirely by reading straight from the
+ * camera's luminance plane: {@link #setLuminanceTransform} precomputes, once, which luminance
+ * sample every model input pixel comes from, folding crop, rotation and scaling into a single
+ * lookup per pixel.
+ */
 public class Regression {
+    private static final Logger LOGGER = new Logger();
+
     private static final String MODEL_FILE = "regression.tflite";
-    private static final int BYTE_SIZE_OF_FLOAT = 4;
+
+    /** Number of consecutive frames the model consumes per estimate. */
+    public static final int WINDOW_SIZE = 30;
+
+    // Slots beyond the window that producers may fill while an estimate is running.
+    private static final int SPARE_SLOTS = 4;
+
+    /** Input layout of the regression model: one channel scaled to [0, 1]. */
+    public static final TensorPrep.Layout INPUT_LAYOUT =
+            new TensorPrep.Layout(
+                    new int[] {TensorPrep.CHANNEL_B},
+                    new float[] {0.0f},
+                    new float[] {255.0f},
+                    TensorPrep.DataType.FLOAT32);
 
     private int sensorOrientation;
     private int width;
     private int height;
 
-    private int[] intValues;
-    private ByteBuffer imgData;
-    private ByteBuffer outputBuffer;
-    private int[] outputValues;
+    // For every model input pixel, the offset of its nearest sample in the luminance plane.
+    private int[] luminanceOffsets;
+
+    // Slots in temporal order, oldest at window[head] once full. Only touched by the model thread.
+    private ByteBuffer[] window;
+    private int head;
+    private int count;
 
-    private Stack<Point> pointStack;
-    private Stack<Point> maskStack;
+    private final ArrayBlockingQueue<ByteBuffer> freeSlots =
+            new ArrayBlockingQueue<ByteBuffer>(WINDOW_SIZE + SPARE_SLOTS);
+
+    private Object[] inputs;
+    private Map<Integer, Object> outputs;
+    private float[][] output;
 
     private Interpreter tfLite;
+    private GpuDelegate gpuDelegate;
 
     private Regression() {
     }
@@ -69,7 +110,8 @@ public class Regression {
     }
 
     /**
-     * Initializes a native TensorFlow session.
+     * Initializes a native TensorFlow session. The GPU delegate binds the model to the calling
+     * thread, which must be the one that runs {@link #estimate()} and {@link #close()}.
      */
     public static Regression create(
             AssetManager assetManager,
@@ -79,11 +121,12 @@ public class Regression {
         final Regression d = new Regression();
 
         try {
-            GpuDelegate gpuDelegate = new GpuDelegate();
+            d.gpuDelegate = new GpuDelegate();
             Interpreter.Options options = new Interpreter.Options();
-            options.addDelegate(gpuDelegate);
+            options.addDelegate(d.gpuDelegate);
             d.tfLite = new Interpreter(loadModelFile(assetManager), options);
         } catch (Exception e) {
+            d.close();
             throw new RuntimeException(e);
         }
 
@@ -92,47 +135,163 @@ public class Regression {
         d.height = inputHeight;
 
         // Pre-allocate buffers.
-        d.intValues = new int[inputWidth * inputHeight];
-        d.imgData = ByteBuffer.allocateDirect(inputWidth * inputHeight * BYTE_SIZE_OF_FLOAT);
-        d.imgData.order(ByteOrder.nativeOrder());
-        d.outputValues = new int[inputWidth * inputHeight];
-        d.outputBuffer = ByteBuffer.allocateDirect(inputWidth * inputHeight * 2);
-        d.outputBuffer.order(ByteOrder.nativeOrder());
-
-        d.pointStack = new Stack<>();
-        d.maskStack = new Stack<>();
+        d.window = new ByteBuffer[WINDOW_SIZE];
+        for (int i = 0; i < WINDOW_SIZE + SPARE_SLOTS; ++i) {
+            final ByteBuffer slot =
+                    ByteBuffer.allocateDirect(INPUT_LAYOUT.getByteSize(inputWidth * inputHeight));
+            slot.order(ByteOrder.nativeOrder());
+            d.freeSlots.add(slot);
+        }
+        d.inputs = new Object[WINDOW_SIZE];
+        d.output = new float[1][1];
+        d.outputs = new HashMap<>();
+        d.outputs.put(0, d.output);
         return d;
     }
 
-    Float estimate(List<Bitmap> bitmaps) {
+    /**
+     * Takes a free slot for a new frame, rewound for writing with {@link #INPUT_LAYOUT}. May be
+     * called from any thread.
+     *
+     * @return the slot, or null if all spare slots are already in flight.
+     */
+    ByteBuffer claimSlot() {
+        final ByteBuffer slot = freeSlots.poll();
+        if (slot != null) {
+            slot.rewind();
+        }
+        return slot;
+    }
 
-        outputBuffer.rewind();
-        Object[] inputs = new Object[30];
+    /** Returns a claimed slot that will not be committed. May be called from any thread. */
+    void releaseSlot(final ByteBuffer slot) {
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Appends a filled slot to the window as its newest frame, recycling the oldest frame once the
+     * window is full. Must be called on the thread that runs {@link #estimate()}.
+     */
+    void commitSlot(final ByteBuffer slot) {
+        final int index = (head + count) % WINDOW_SIZE;
+        if (count < WINDOW_SIZE) {
+            ++count;
+        } else {
+            freeSlots.add(window[head]);
+            head = (head + 1) % WINDOW_SIZE;
+        }
+        window[index] = slot;
+    }
 
-        for (int idx = 0; idx < 30; idx++) {
-            imgData.rewind();
-            Bitmap bitmap = bitmaps.get(idx);
-            bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-            for (final int val : intValues) {
-                imgData.putFloat((val & 0xFF) / 255.0f);
+    /**
+     * Blacks out the pixels of a filled slot that are background in the given segmentation mask,
+     * which is scaled to the model input with nearest-neighbor sampling. This is equivalent to
+     * applying the mask to the frame before normalizing it. Not thread-safe.
+     */
+    void applyMask(final ByteBuffer slot, final BinaryMask mask) {
+        final int maskWidth = mask.getWidth();
+        final int maskHeight = mask.getHeight();
+        for (int y = 0; y < height; ++y) {
+            final int maskY = y * maskHeight / height;
+            for (int x = 0; x < width; ++x) {
+                if (!mask.get(x * maskWidth / width, maskY)) {
+                    slot.putFloat((y * width + x) * 4, 0.0f);
+                }
             }
-            inputs[idx] = imgData;
         }
+    }
 
-        Log.d("TAG", "imgData: " + imgData.capacity());
-        Log.d("TAG", "outputBuffer: " + outputBuffer.capacity());
+    /**
+     * Prepares the luminance input path for camera frames of the given geometry.
+     *
+     * @param frameWidth Width of the camera frame.
+     * @param frameHeight Height of the camera frame.
+     * @param rowStride Row stride of the luminance plane.
+     * @param inputToFrame Maps model input coordinates into camera frame coordinates, typically the
+     *                     inverse of the frame-to-crop transform.
+     */
+    void setLuminanceTransform(
+            final int frameWidth, final int frameHeight, final int rowStride, final Matrix inputToFrame) {
+        final int[] offsets = new int[width * height];
+        final float[] point = new float[2];
+        for (int y = 0, i = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x, ++i) {
+                point[0] = x + 0.5f;
+                point[1] = y + 0.5f;
+                inputToFrame.mapPoints(point);
+                final int frameX = Math.max(0, Math.min(frameWidth - 1, (int) point[0]));
+                final int frameY = Math.max(0, Math.min(frameHeight - 1, (int) point[1]));
+                offsets[i] = frameY * rowStride + frameX;
+            }
+        }
+        luminanceOffsets = offsets;
+    }
+
+    /**
+     * Crops, rotates, scales and normalizes a luminance plane straight into a claimed slot. Only
+     * reads immutable state, so it may be called from any thread.
+     *
+     * @param luminance The camera's Y plane.
+     * @param slot A slot obtained from {@link #claimSlot()}.
+     */
+    void sampleLuminance(final byte[] luminance, final ByteBuffer slot) {
+        final int[] offsets = luminanceOffsets;
+        if (offsets == null) {
+            throw new IllegalStateException("setLuminanceTransform() has not been called");
+        }
+        for (final int offset : offsets) {
+            slot.putFloat((luminance[offset] & 0xFF) / 255.0f);
+        }
+    }
+
+    /** Returns true once {@link #WINDOW_SIZE} frames have been added. */
+    boolean isWindowFull() {
+        return count == WINDOW_SIZE;
+    }
 
-        float[][] output = new float[1][1];
-        Map<Integer, Object> outputs = new HashMap<>();
-        outputs.put(0, output);
+    /** Forgets all buffered frames, e.g. after the stream was interrupted. */
+    void reset() {
+        for (int i = 0; i < count; ++i) {
+            freeSlots.add(window[(head + i) % WINDOW_SIZE]);
+            window[(head + i) % WINDOW_SIZE] = null;
+        }
+        head = 0;
+        count = 0;
+    }
+
+    /**
+     * Runs the model over the last {@link #WINDOW_SIZE} frames, oldest first.
+     */
+    float estimate() {
+        if (!isWindowFull()) {
+            throw new IllegalStateException(
+                    "Only " + count + " of " + WINDOW_SIZE + " frames available for estimate");
+        }
+
+        for (int idx = 0; idx < WINDOW_SIZE; idx++) {
+            final ByteBuffer slot = window[(head + idx) % WINDOW_SIZE];
+            slot.rewind();
+            inputs[idx] = slot;
+        }
 
         // Copy the input data into TensorFlow.
         tfLite.runForMultipleInputsOutputs(inputs, outputs);
 
-        float flowrate = ((float[][]) outputs.get(0))[0][0];
-        Log.d("TAG", "flowrate: " + flowrate);
+        final float flowrate = output[0][0];
+        LOGGER.v("flowrate: %.3f", flowrate);
 
         return flowrate;
     }
 
+    /** Releases the model, on the thread that created it. */
+    void close() {
+        if (tfLite != null) {
+            tfLite.close();
+            tfLite = null;
+        }
+        if (gpuDelegate != null) {
+            gpuDelegate.close();
+            gpuDelegate = null;
+        }
+    }
 }
@@ -18,8 +18,10 @@ package pp.imagesegmenter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Point;
+import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.RectF;
 
 import org.tensorflow.lite.Interpreter;
@@ -31,8 +33,11 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
+
+import pp.imagesegmenter.env.BinaryMask;
+import pp.imagesegmenter.env.ConnectedComponents;
 
 public class Segmentation {
     /**
@@ -50,11 +55,15 @@ public class Segmentation {
 
         private Bitmap bitmap;
 
+        /** Number of mask pixels covered, in model output pixels. */
+        private final int area;
+
         Recognition(
-                final String id, final RectF location, final Bitmap bitmap) {
+                final String id, final RectF location, final Bitmap bitmap, final int area) {
             this.id = id;
             this.location = location;
             this.bitmap = bitmap;
+            this.area = area;
         }
 
         public String getId() {
@@ -67,6 +76,10 @@ public class Segmentation {
 
         public Bitmap getBitmap() {return bitmap;}
 
+        public int getArea() {
+            return area;
+        }
+
         @Override
         public String toString() {
             String resultString = "";
@@ -82,11 +95,73 @@ public class Segmentation {
         }
     }
 
+    /**
+     * Where the interpreter runs the model.
+     */
+    public enum Backend {
+        GPU,
+        CPU,
+        NNAPI
+    }
+
+    /**
+     * Input size, interpreter threads and backend the model runs with.
+     */
+    public static final class Config {
+        /** Width and height of the square model input. */
+        public final int inputSize;
+        public final int numThreads;
+        public final Backend backend;
+
+        public Config(final int inputSize, final int numThreads, final Backend backend) {
+            this.inputSize = inputSize;
+            this.numThreads = numThreads;
+            this.backend = backend;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Config)) {
+                return false;
+            }
+            final Config other = (Config) o;
+            return inputSize == other.inputSize
+                    && numThreads == other.numThreads
+                    && backend == other.backend;
+        }
+
+        @Override
+        public int hashCode() {
+            return (inputSize * 31 + numThreads) * 31 + backend.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return inputSize + "x" + inputSize + ", " + numThreads + " threads, " + backend;
+        }
+    }
+
     private static final String MODEL_FILE = "streamsegmentation.tflite";
+
+    /** Input size the model was exported with, it can be resized to others. */
+    public static final int MODEL_INPUT_SIZE = 240;
+
+    /** What the model ran with before it could be tuned. */
+    public static final Config DEFAULT_CONFIG = new Config(MODEL_INPUT_SIZE, 4, Backend.GPU);
+
+    private static final String STREAM_ID = "stream";
+    private static final int STREAM_COLOR = 0x990082c8;
     // Float model
     private static final float IMAGE_MEAN = 128.0f;
     private static final float IMAGE_STD = 128.0f;
-    private static final int BYTE_SIZE_OF_FLOAT = 4;
+
+    /** Input layout of the segmentation model: mean-subtracted RGB floats. */
+    public static final TensorPrep.Layout INPUT_LAYOUT =
+            new TensorPrep.Layout(
+                    new int[] {TensorPrep.CHANNEL_R, TensorPrep.CHANNEL_G, TensorPrep.CHANNEL_B},
+                    new float[] {103.939f, 116.779f, 123.68f},
+                    new float[] {1.0f, 1.0f, 1.0f},
+                    TensorPrep.DataType.FLOAT32);
 
     private static final int[] colormap = {
             0x00000000,     //background
@@ -112,19 +187,62 @@ public class Segmentation {
             0x99e6beff      //tv
     };
 
+    private Config config;
     private int sensorOrientation;
-    private int width;
-    private int height;
+    private int outputWidth;
+    private int outputHeight;
 
-    private int[] intValues;
+    private TensorPrep tensorPrep;
+    // Frames of another size are scaled into this before being prepared.
+    private Bitmap scaledInput;
+    private Canvas scaledInputCanvas;
     private ByteBuffer imgData;
     private ByteBuffer outputBuffer;
     private int[] outputValues;
+    // Every mask is rendered into this.
+    private Bitmap maskBitmap;
+
+    private MaskPipeline maskPipeline;
+    private final Rect componentBounds = new Rect();
+    private int[] componentPixels;
+
+    private ModelRunner runner;
+
+    /**
+     * Runs the model with TensorFlow Lite, on the delegate the config asks for.
+     */
+    private static final class TfLiteRunner implements ModelRunner {
+        private final Interpreter tfLite;
+        private final GpuDelegate gpuDelegate;
+
+        TfLiteRunner(final Interpreter tfLite, final GpuDelegate gpuDelegate) {
+            this.tfLite = tfLite;
+            this.gpuDelegate = gpuDelegate;
+        }
+
+        @Override
+        public void run(final ByteBuffer input, final ByteBuffer output) {
+            tfLite.run(input, output);
+        }
+
+        @Override
+        public int[] getOutputShape() {
+            return tfLite.getOutputTensor(0).shape();
+        }
 
-    private Stack<Point> pointStack;
-    private Stack<Point> maskStack;
+        @Override
+        public int getOutputBytes() {
+            return tfLite.getOutputTensor(0).numBytes();
+        }
 
-    private Interpreter tfLite;
+        @Override
+        public void close() {
+            tfLite.close();
+            if (gpuDelegate != null) {
+                gpuDelegate.close();
+            }
+        }
+    }
 
     /** Memory-map the model file in Assets. */
     private static ByteBuffer loadModelFile(AssetManager assets)
@@ -140,115 +258,187 @@ public class Segmentation {
     /** Initializes a native TensorFlow session. */
     public static Segmentation create(
             AssetManager assetManager,
-            int inputWidth,
-            int inputHeight,
+            Config config,
             int sensorOrientation) {
-        final Segmentation d = new Segmentation();
-
+        final int inputSize = config.inputSize;
+        GpuDelegate gpuDelegate = null;
+        Interpreter tfLite = null;
         try {
-            GpuDelegate gpuDelegate = new GpuDelegate();
             Interpreter.Options options = new Interpreter.Options();
-            options.addDelegate(gpuDelegate);
+            options.setNumThreads(config.numThreads);
+            switch (config.backend) {
+                case GPU:
+                    gpuDelegate = new GpuDelegate();
+                    options.addDelegate(gpuDelegate);
+                    break;
+                case NNAPI:
+                    options.setUseNNAPI(true);
+                    break;
+                case CPU:
+                    break;
+            }
 
-            d.tfLite = new Interpreter(loadModelFile(assetManager), options);
+            tfLite = new Interpreter(loadModelFile(assetManager), options);
+            if (inputSize != MODEL_INPUT_SIZE) {
+                tfLite.resizeInput(0, new int[] {1, inputSize, inputSize, 3});
+                tfLite.allocateTensors();
+            }
         } catch (Exception e) {
+            if (tfLite != null) {
+                tfLite.close();
+            }
+            if (gpuDelegate != null) {
+                gpuDelegate.close();
+            }
             throw new RuntimeException(e);
         }
+        return create(new TfLiteRunner(tfLite, gpuDelegate), config, sensorOrientation);
+    }
+
+    /**
+     * Creates a segmentation that runs its model through runner, which it takes ownership of.
+     * Only the input size of the config is used.
+     */
+    public static Segmentation create(
+            ModelRunner runner,
+            Config config,
+            int sensorOrientation) {
+        final Segmentation d = new Segmentation();
+        final int inputSize = config.inputSize;
+        d.runner = runner;
+
+        // Output is 1 x height x width x classes.
+        final int[] outputShape = runner.getOutputShape();
+        if (outputShape.length != 4 || outputShape[3] != MaskPipeline.NUM_CLASSES) {
+            d.close();
+            throw new IllegalArgumentException(
+                    "Unexpected output shape " + Arrays.toString(outputShape));
+        }
 
+        d.config = config;
         d.sensorOrientation = sensorOrientation;
-        d.width = inputWidth;
-        d.height = inputHeight;
+        d.outputHeight = outputShape[1];
+        d.outputWidth = outputShape[2];
 
         // Pre-allocate buffers.
-        d.intValues = new int[inputWidth * inputHeight];
-        d.imgData = ByteBuffer.allocateDirect(inputWidth * inputHeight * 3 * BYTE_SIZE_OF_FLOAT);
+        d.imgData = ByteBuffer.allocateDirect(INPUT_LAYOUT.getByteSize(inputSize * inputSize));
         d.imgData.order(ByteOrder.nativeOrder());
-        d.outputValues = new int[inputWidth * inputHeight];
-        d.outputBuffer = ByteBuffer.allocateDirect(inputWidth * inputHeight * 2);
+        d.outputValues = new int[d.outputWidth * d.outputHeight];
+        d.outputBuffer = ByteBuffer.allocateDirect(runner.getOutputBytes());
         d.outputBuffer.order(ByteOrder.nativeOrder());
 
-        d.pointStack = new Stack<>();
-        d.maskStack = new Stack<>();
+        d.tensorPrep = new TensorPrep(inputSize, inputSize);
+        d.tensorPrep.register(INPUT_LAYOUT, d::getInputBuffer);
+
+        d.maskPipeline = new MaskPipeline(d.outputWidth, d.outputHeight);
+        d.componentPixels = new int[d.outputWidth * d.outputHeight];
         return d;
     }
 
 
     private Segmentation() {}
 
+    /**
+     * Returns the model input buffer, rewound so that the next frame can be written into it with
+     * {@link #INPUT_LAYOUT}. Register this as a {@link TensorPrep.Sink} to share one pass over
+     * the pixels with other models, then call {@link #segmentPrepared()}.
+     */
+    ByteBuffer getInputBuffer() {
+        imgData.rewind();
+        return imgData;
+    }
+
+    Config getConfig() {
+        return config;
+    }
+
+    int getInputSize() {
+        return config.inputSize;
+    }
+
+    /**
+     * Segments a frame of any size, scaling it to the input size first if needed.
+     */
     Bitmap segment(Bitmap bitmap) {
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        final int inputSize = config.inputSize;
+        if (bitmap.getWidth() != inputSize || bitmap.getHeight() != inputSize) {
+            if (scaledInput == null) {
+                scaledInput = Bitmap.createBitmap(inputSize, inputSize, Bitmap.Config.ARGB_8888);
+                scaledInputCanvas = new Canvas(scaledInput);
+            }
+            final Matrix frameToInput = new Matrix();
+            frameToInput.setScale(
+                    (float) inputSize / bitmap.getWidth(), (float) inputSize / bitmap.getHeight());
+            scaledInputCanvas.drawBitmap(bitmap, frameToInput, null);
+            bitmap = scaledInput;
+        }
+        tensorPrep.prepare(bitmap);
+        return segmentPrepared();
+    }
 
+    /**
+     * Runs the model on the frame previously written into {@link #getInputBuffer()}.
+     *
+     * @return the mask as a bitmap, which is overwritten by the next frame. The caller must not
+     * hand it to a view without copying it, as {@link UiPublisher} does.
+     */
+    Bitmap segmentPrepared() {
         imgData.rewind();
         outputBuffer.rewind();
 
-        for (final int val : intValues) {
-            imgData.putFloat((float) (((val >> 16) & 0xFF) - 103.939));
-            imgData.putFloat((float) (((val >> 8) & 0xFF) - 116.779));
-            imgData.putFloat((float) ((val & 0xFF) - 123.68));
-        }
-
         // Copy the input data into TensorFlow.
-        tfLite.run(imgData, outputBuffer);
+        runner.run(imgData, outputBuffer);
 
-        outputBuffer.flip();
+        maskPipeline.process(outputBuffer);
 
         int white = Color.rgb(255, 255, 255);
         int black = Color.rgb(0, 0, 0);
 
-        Bitmap maskBitmap = Bitmap.createBitmap(120, 120, Bitmap.Config.ARGB_8888);
-
-        for (int row = 0; row < 120; row++) {
-            for (int col = 0; col < 120; col++) {
-                for (int idx = 0; idx < 2; idx++) {
-                    float value = outputBuffer.getFloat();
-                    if (idx % 2 != 0) {
-                        maskBitmap.setPixel(col, row, value > 0.99 ? white : black);
-                    }
-                }
-            }
+        if (maskBitmap == null) {
+            maskBitmap = Bitmap.createBitmap(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
         }
-
+        maskPipeline.getMask().toBitmap(maskBitmap, outputValues, white, black);
         return maskBitmap;
     }
 
-    List<Bitmap> segment(List<Bitmap> bitmaps) {
-        List<Bitmap> streamMasks = new ArrayList<Bitmap>(30);
-        List<ByteBuffer> byteBuffers = new ArrayList<ByteBuffer>(30);
-
-        for (Bitmap bitmap : bitmaps) {
-            bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-            imgData.clear();
-            for (final int val : intValues) {
-                imgData.putFloat((float) (((val >> 16) & 0xFF) - 103.939));
-                imgData.putFloat((float) (((val >> 8) & 0xFF) - 116.779));
-                imgData.putFloat((float) ((val & 0xFF) - 123.68));
-            }
-            byteBuffers.add(imgData);
-        }
-
-        for (ByteBuffer byteBuffer : byteBuffers) {
-            outputBuffer.clear();
-            tfLite.run(byteBuffer, outputBuffer);
-            outputBuffer.flip();
-
-            int white = Color.rgb(255, 255, 255);
-            int black = Color.rgb(0, 0, 0);
-
-            Bitmap maskBitmap = Bitmap.createBitmap(120, 120, Bitmap.Config.ARGB_8888);
+    /**
+     * Returns the mask of the last frame segmented, valid until the next one is.
+     */
+    BinaryMask getMask() {
+        return maskPipeline.getMask();
+    }
 
-            for (int row = 0; row < 120; row++) {
-                for (int col = 0; col < 120; col++) {
-                    for (int idx = 0; idx < 2; idx++) {
-                        float value = outputBuffer.getFloat();
-                        if (idx % 2 != 0) {
-                            maskBitmap.setPixel(col, row, value > 0.99 ? white : black);
-                        }
-                    }
-                }
-            }
-            streamMasks.add(maskBitmap);
+    /**
+     * Returns one recognition per box the {@link MaskPipeline} assigned to a component of the mask
+     * of the last frame segmented, its location mapped into frame coordinates by outputToFrame and
+     * its bitmap the component cropped to its bounds.
+     */
+    List<Recognition> getRecognitions(final Matrix outputToFrame) {
+        final ConnectedComponents components = maskPipeline.getComponents();
+        final int numBoxes = maskPipeline.getNumBoxes();
+        final List<Recognition> recognitions = new ArrayList<Recognition>(numBoxes);
+        for (int b = 0; b < numBoxes; ++b) {
+            final int c = maskPipeline.getComponent(b);
+            final int area = components.getArea(c);
+            components.getBounds(c, componentBounds);
+            components.getPixels(c, componentPixels, STREAM_COLOR);
+            final Bitmap bitmap =
+                    Bitmap.createBitmap(
+                            componentPixels, componentBounds.width(), componentBounds.height(),
+                            Bitmap.Config.ARGB_8888);
+
+            final RectF location = new RectF(componentBounds);
+            outputToFrame.mapRect(location);
+            recognitions.add(new Recognition(STREAM_ID, location, bitmap, area));
         }
+        return recognitions;
+    }
 
-        return streamMasks;
+    /** Releases the model runner, the segmentation cannot be used afterwards. */
+    void close() {
+        if (runner != null) {
+            runner.close();
+            runner = null;
+        }
     }
 }
@@ -0,0 +1,241 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pp.imagesegmenter.env.BinaryMask;
+import pp.imagesegmenter.env.Logger;
+
+/**
+ * Picks the segmentation {@link Segmentation.Config} that suits the device best.
+ *
+ * Every combination of input size, interpreter threads and backend is timed on a few sample
+ * frames and its masks compared with those of the model's own input size on the CPU, which serve
+ * as the reference. Of the candidates whose median latency meets the target and whose mean IoU
+ * with the reference meets the floor, the one with the best IoU wins, faster ones breaking ties.
+ * If none meets the target the fastest one meeting the floor is taken instead.
+ *
+ * The choice is kept in shared preferences so that later starts can skip tuning.
+ */
+class SegmentationTuner {
+    private static final Logger LOGGER = new Logger();
+
+    private static final String PREFS_NAME = "segmentation_tuning";
+    private static final String KEY_INPUT_SIZE = "input_size";
+    private static final String KEY_NUM_THREADS = "num_threads";
+    private static final String KEY_BACKEND = "backend";
+
+    // Input sizes tried, all multiples of the model's output stride.
+    private static final int[] INPUT_SIZES = {Segmentation.MODEL_INPUT_SIZE, 192, 160, 128};
+    // Thread counts tried on the CPU, the other backends use the largest.
+    private static final int[] NUM_THREADS = {1, 2, 4};
+    // Runs per candidate discarded before timing, delegates compile their kernels on the first.
+    private static final int WARMUP_RUNS = 2;
+
+    private static final class Result {
+        final Segmentation.Config config;
+        final long latencyMs;
+        final float iou;
+
+        Result(final Segmentation.Config config, final long latencyMs, final float iou) {
+            this.config = config;
+            this.latencyMs = latencyMs;
+            this.iou = iou;
+        }
+    }
+
+    private final AssetManager assets;
+    private final int sensorOrientation;
+    private final long targetLatencyMs;
+    private final float minIou;
+
+    /**
+     * @param targetLatencyMs median time per frame a configuration must not exceed.
+     * @param minIou mean IoU with the reference masks a configuration must reach.
+     */
+    SegmentationTuner(
+            final AssetManager assets, final int sensorOrientation,
+            final long targetLatencyMs, final float minIou) {
+        this.assets = assets;
+        this.sensorOrientation = sensorOrientation;
+        this.targetLatencyMs = targetLatencyMs;
+        this.minIou = minIou;
+    }
+
+    /**
+     * Benchmarks every candidate on the frames, which may be of any size.
+     *
+     * @return the best configuration, or null if not even the reference could be run.
+     */
+    Segmentation.Config tune(final List<Bitmap> frames) {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("No frames to tune on");
+        }
+        final List<Segmentation.Config> candidates = getCandidates();
+        List<BinaryMask> reference = null;
+        final List<Result> results = new ArrayList<Result>(candidates.size());
+        for (final Segmentation.Config config : candidates) {
+            // Only the first candidate, the reference, runs without reference masks.
+            if (reference == null && config != candidates.get(0)) {
+                LOGGER.w("Reference %s could not be run, not tuning", candidates.get(0));
+                return null;
+            }
+            final Segmentation segmentation;
+            try {
+                segmentation = Segmentation.create(assets, config, sensorOrientation);
+            } catch (final RuntimeException e) {
+                LOGGER.w("Skipping %s: %s", config, e);
+                continue;
+            }
+            try {
+                for (int i = 0; i < WARMUP_RUNS; ++i) {
+                    segmentation.segment(frames.get(i % frames.size()));
+                }
+
+                final long[] latenciesNs = new long[frames.size()];
+                final List<BinaryMask> masks = new ArrayList<BinaryMask>(frames.size());
+                for (int i = 0; i < frames.size(); ++i) {
+                    final long startNs = System.nanoTime();
+                    segmentation.segment(frames.get(i));
+                    latenciesNs[i] = System.nanoTime() - startNs;
+
+                    final BinaryMask mask = segmentation.getMask();
+                    final BinaryMask copy = new BinaryMask(mask.getWidth(), mask.getHeight());
+                    copy.copyFrom(mask);
+                    masks.add(copy);
+                }
+                Arrays.sort(latenciesNs);
+                final long latencyMs = latenciesNs[latenciesNs.length / 2] / 1000000;
+
+                if (reference == null) {
+                    reference = masks;
+                }
+                final float iou = getMeanIou(reference, masks);
+                LOGGER.i("%s: %d ms, IoU %.3f", config, latencyMs, iou);
+                results.add(new Result(config, latencyMs, iou));
+            } catch (final RuntimeException e) {
+                LOGGER.w("Skipping %s: %s", config, e);
+            } finally {
+                segmentation.close();
+            }
+        }
+
+        final Result best = pick(results);
+        LOGGER.i("Picked %s", best.config);
+        return best.config;
+    }
+
+    private static List<Segmentation.Config> getCandidates() {
+        final int maxThreads = NUM_THREADS[NUM_THREADS.length - 1];
+        final List<Segmentation.Config> candidates = new ArrayList<Segmentation.Config>();
+        // The reference comes first.
+        candidates.add(new Segmentation.Config(
+                Segmentation.MODEL_INPUT_SIZE, maxThreads, Segmentation.Backend.CPU));
+        for (final int inputSize : INPUT_SIZES) {
+            for (final int numThreads : NUM_THREADS) {
+                final Segmentation.Config config =
+                        new Segmentation.Config(inputSize, numThreads, Segmentation.Backend.CPU);
+                if (!candidates.contains(config)) {
+                    candidates.add(config);
+                }
+            }
+            candidates.add(new Segmentation.Config(inputSize, maxThreads, Segmentation.Backend.GPU));
+            candidates.add(new Segmentation.Config(inputSize, maxThreads, Segmentation.Backend.NNAPI));
+        }
+        return candidates;
+    }
+
+    private static float getMeanIou(final List<BinaryMask> reference, final List<BinaryMask> masks) {
+        final BinaryMask scaled =
+                new BinaryMask(reference.get(0).getWidth(), reference.get(0).getHeight());
+        float sum = 0.0f;
+        for (int i = 0; i < masks.size(); ++i) {
+            scaled.setFromScaled(masks.get(i));
+            final BinaryMask expected = reference.get(i);
+            // Two empty masks agree perfectly.
+            sum += expected.area() == 0 && scaled.area() == 0
+                    ? 1.0f : expected.intersectionOverUnion(scaled);
+        }
+        return sum / masks.size();
+    }
+
+    private Result pick(final List<Result> results) {
+        Result best = null;
+        for (final Result result : results) {
+            if (result.latencyMs > targetLatencyMs || result.iou < minIou) {
+                continue;
+            }
+            if (best == null
+                    || result.iou > best.iou
+                    || (result.iou == best.iou && result.latencyMs < best.latencyMs)) {
+                best = result;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+
+        LOGGER.w("No configuration meets %d ms, taking the fastest", targetLatencyMs);
+        for (final Result result : results) {
+            if (result.iou >= minIou && (best == null || result.latencyMs < best.latencyMs)) {
+                best = result;
+            }
+        }
+        // The reference always meets the floor.
+        return best != null ? best : results.get(0);
+    }
+
+    /**
+     * Returns the configuration saved by an earlier run, or null if there is none.
+     */
+    static Segmentation.Config load(final Context context) {
+        final SharedPreferences prefs = getPreferences(context);
+        if (!prefs.contains(KEY_INPUT_SIZE)) {
+            return null;
+        }
+        final Segmentation.Backend backend;
+        try {
+            backend = Segmentation.Backend.valueOf(prefs.getString(KEY_BACKEND, ""));
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+        return new Segmentation.Config(
+                prefs.getInt(KEY_INPUT_SIZE, Segmentation.MODEL_INPUT_SIZE),
+                prefs.getInt(KEY_NUM_THREADS, 1),
+                backend);
+    }
+
+    static void save(final Context context, final Segmentation.Config config) {
+        getPreferences(context)
+                .edit()
+                .putInt(KEY_INPUT_SIZE, config.inputSize)
+                .putInt(KEY_NUM_THREADS, config.numThreads)
+                .putString(KEY_BACKEND, config.backend.name())
+                .apply();
+    }
+
+    private static SharedPreferences getPreferences(final Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,179 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts a frame into the input tensors of several models in a single pass over its pixels.
+ *
+ * Each model registers a declarative {@link Layout} describing the channels it wants, in order,
+ * together with their mean, standard deviation and data type, and a {@link Sink} that hands out
+ * the buffer to write the next frame into. {@link #prepare(Bitmap)} then reads the pixels once
+ * and writes every registered layout from the same loop.
+ */
+public class TensorPrep {
+    /** Shift selecting the red channel of an ARGB pixel. */
+    public static final int CHANNEL_R = 16;
+    /** Shift selecting the green channel of an ARGB pixel. */
+    public static final int CHANNEL_G = 8;
+    /** Shift selecting the blue channel of an ARGB pixel. */
+    public static final int CHANNEL_B = 0;
+
+    /**
+     * Element type of a model input tensor.
+     */
+    public enum DataType {
+        FLOAT32,
+        UINT8
+    }
+
+    /**
+     * Describes how an ARGB pixel is laid out in a model input tensor. Every channel is written as
+     * {@code (value - mean) / std}; UINT8 values are additionally rounded and clamped to a byte.
+     */
+    public static final class Layout {
+        private final int[] channels;
+        private final float[] scales;
+        private final float[] offsets;
+        private final DataType dataType;
+
+        /**
+         * @param channels Channel shifts ({@link #CHANNEL_R}, {@link #CHANNEL_G}, {@link #CHANNEL_B})
+         *                 in the order the model expects them.
+         * @param mean Per-channel mean subtracted from each value.
+         * @param std Per-channel standard deviation each value is divided by.
+         * @param dataType Element type of the tensor.
+         */
+        public Layout(
+                final int[] channels, final float[] mean, final float[] std, final DataType dataType) {
+            if (mean.length != channels.length || std.length != channels.length) {
+                throw new IllegalArgumentException("Need one mean and std per channel");
+            }
+            this.channels = channels.clone();
+            this.scales = new float[channels.length];
+            this.offsets = new float[channels.length];
+            for (int i = 0; i < channels.length; ++i) {
+                scales[i] = 1.0f / std[i];
+                offsets[i] = -mean[i] / std[i];
+            }
+            this.dataType = dataType;
+        }
+
+        public int getChannelCount() {
+            return channels.length;
+        }
+
+        public DataType getDataType() {
+            return dataType;
+        }
+
+        /** Returns the number of bytes one frame of {@code numPixels} pixels occupies. */
+        public int getByteSize(final int numPixels) {
+            return numPixels * channels.length * (dataType == DataType.FLOAT32 ? 4 : 1);
+        }
+    }
+
+    /**
+     * Supplies the buffer the next frame should be written into.
+     */
+    public interface Sink {
+        /**
+         * Returns a buffer with room for a whole frame at its current position, or null to skip
+         * this model for the frame.
+         */
+        ByteBuffer acquire();
+    }
+
+    private final List<Layout> layouts = new ArrayList<Layout>();
+    private final List<Sink> sinks = new ArrayList<Sink>();
+
+    private final int width;
+    private final int height;
+    private final int[] intValues;
+
+    // Scratch space reused for every frame to avoid per-frame allocation.
+    private Layout[] activeLayouts = new Layout[0];
+    private ByteBuffer[] activeBuffers = new ByteBuffer[0];
+
+    public TensorPrep(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        this.intValues = new int[width * height];
+    }
+
+    /**
+     * Adds a model input that will be written for every prepared frame.
+     */
+    public synchronized void register(final Layout layout, final Sink sink) {
+        layouts.add(layout);
+        sinks.add(sink);
+        activeLayouts = new Layout[layouts.size()];
+        activeBuffers = new ByteBuffer[layouts.size()];
+    }
+
+    /**
+     * Writes a {@code width x height} bitmap into every registered model input.
+     */
+    public synchronized void prepare(final Bitmap bitmap) {
+        bitmap.getPixels(intValues, 0, width, 0, 0, width, height);
+        prepare(intValues);
+    }
+
+    /**
+     * Writes {@code width x height} ARGB pixels into every registered model input.
+     */
+    public synchronized void prepare(final int[] pixels) {
+        int numActive = 0;
+        for (int i = 0; i < sinks.size(); ++i) {
+            final ByteBuffer buffer = sinks.get(i).acquire();
+            if (buffer != null) {
+                activeLayouts[numActive] = layouts.get(i);
+                activeBuffers[numActive] = buffer;
+                ++numActive;
+            }
+        }
+
+        final int numPixels = width * height;
+        for (int p = 0; p < numPixels; ++p) {
+            final int val = pixels[p];
+            for (int m = 0; m < numActive; ++m) {
+                final Layout layout = activeLayouts[m];
+                final ByteBuffer buffer = activeBuffers[m];
+                final int[] channels = layout.channels;
+                if (layout.dataType == DataType.FLOAT32) {
+                    for (int c = 0; c < channels.length; ++c) {
+                        buffer.putFloat(((val >> channels[c]) & 0xFF) * layout.scales[c] + layout.offsets[c]);
+                    }
+                } else {
+                    for (int c = 0; c < channels.length; ++c) {
+                        final float value =
+                                ((val >> channels[c]) & 0xFF) * layout.scales[c] + layout.offsets[c];
+                        buffer.put((byte) Math.max(0, Math.min(255, Math.round(value))));
+                    }
+                }
+            }
+        }
+
+        for (int m = 0; m < numActive; ++m) {
+            activeBuffers[m] = null;
+        }
+    }
+}
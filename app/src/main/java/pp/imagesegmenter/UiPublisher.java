@@ -0,0 +1,207 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.view.Choreographer;
+import android.widget.ImageView;
+
+import com.google.android.material.snackbar.Snackbar;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pp.imagesegmenter.env.FrameStats;
+
+/**
+ * Publishes the pipeline's results to the views at most once per display frame.
+ *
+ * Any thread may post the latest mask, extracted frame or status. Only the newest of each is kept,
+ * and the first post after a display frame schedules this as the next Choreographer callback,
+ * which applies whatever is newest by then. Intermediate states are overwritten without ever
+ * reaching the main thread, and posting allocates nothing beyond the status text's arguments.
+ *
+ * Posted bitmaps are copied into bitmaps owned by the publisher, so the caller may reuse them as
+ * soon as the post returns.
+ */
+class UiPublisher implements Choreographer.FrameCallback {
+    // A status count that is not set, the format is shown as is.
+    private static final int NO_COUNT = -1;
+
+    private final Choreographer choreographer;
+    private final ImageView maskView;
+    private final ImageView extractedView;
+    private final Snackbar snackbar;
+    private final FrameStats frameStats;
+
+    /**
+     * The bitmaps one view is shown from. A posted bitmap is copied into one that is neither
+     * shown nor retired, replacing a pending copy that was never shown. A bitmap replaced in the
+     * view is retired until the next display frame, by which time the frame that still drew it
+     * has been replaced, and only then rewritten. Guarded by the publisher.
+     */
+    private static final class Slots {
+        private static final int NONE = -1;
+
+        private final Bitmap[] bitmaps = new Bitmap[3];
+        private final Canvas[] canvases = new Canvas[3];
+        private int shown = NONE;
+        private int retired = NONE;
+        private int pending = NONE;
+
+        void copy(final Bitmap source) {
+            if (pending == NONE) {
+                pending = 0;
+                while (pending == shown || pending == retired) {
+                    ++pending;
+                }
+            }
+            final Bitmap bitmap = bitmaps[pending];
+            if (bitmap == null
+                    || bitmap.getWidth() != source.getWidth()
+                    || bitmap.getHeight() != source.getHeight()) {
+                bitmaps[pending] = Bitmap.createBitmap(
+                        source.getWidth(), source.getHeight(), Bitmap.Config.ARGB_8888);
+                canvases[pending] = new Canvas(bitmaps[pending]);
+            }
+            // Cleared first, as drawing blends transparent pixels of the source over the old copy.
+            bitmaps[pending].eraseColor(Color.TRANSPARENT);
+            canvases[pending].drawBitmap(source, 0, 0, null);
+        }
+
+        /** Returns the pending copy, which is shown from now on, or null if there is none. */
+        Bitmap takePending() {
+            if (pending == NONE) {
+                return null;
+            }
+            retired = shown;
+            shown = pending;
+            pending = NONE;
+            return bitmaps[shown];
+        }
+    }
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // The latest state not yet applied, guarded by this.
+    private final Slots maskSlots = new Slots();
+    private final Slots extractedSlots = new Slots();
+    private String statusFormat;
+    private int statusCount = NO_COUNT;
+    private boolean dismissStatus;
+
+    /**
+     * Must be created on the main thread, whose Choreographer is used.
+     *
+     * @param frameStats where every extracted frame that is actually shown counts as published.
+     */
+    UiPublisher(
+            final ImageView maskView, final ImageView extractedView, final Snackbar snackbar,
+            final FrameStats frameStats) {
+        this.choreographer = Choreographer.getInstance();
+        this.maskView = maskView;
+        this.extractedView = extractedView;
+        this.snackbar = snackbar;
+        this.frameStats = frameStats;
+    }
+
+    void postMask(final Bitmap mask) {
+        synchronized (this) {
+            maskSlots.copy(mask);
+        }
+        schedule();
+    }
+
+    void postExtracted(final Bitmap extracted) {
+        synchronized (this) {
+            extractedSlots.copy(extracted);
+        }
+        schedule();
+    }
+
+    /** Shows the status text. */
+    void postStatus(final String text) {
+        postStatus(text, NO_COUNT);
+    }
+
+    /**
+     * Shows the status formatted with a count, only formatted on the main thread once it is
+     * actually shown.
+     */
+    void postStatus(final String format, final int count) {
+        synchronized (this) {
+            statusFormat = format;
+            statusCount = count;
+            dismissStatus = false;
+        }
+        schedule();
+    }
+
+    void dismissStatus() {
+        synchronized (this) {
+            statusFormat = null;
+            dismissStatus = true;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        // Choreographer accepts callbacks from any thread.
+        if (scheduled.compareAndSet(false, true)) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+        // Cleared first, so that anything posted while this runs schedules another frame.
+        scheduled.set(false);
+
+        final Bitmap mask;
+        final Bitmap extracted;
+        final String statusFormat;
+        final int statusCount;
+        final boolean dismissStatus;
+        synchronized (this) {
+            // Whatever was retired at the last display frame is no longer drawn and is free again.
+            mask = maskSlots.takePending();
+            extracted = extractedSlots.takePending();
+            statusFormat = this.statusFormat;
+            statusCount = this.statusCount;
+            dismissStatus = this.dismissStatus;
+            this.statusFormat = null;
+            this.dismissStatus = false;
+        }
+
+        if (mask != null) {
+            maskView.setImageBitmap(mask);
+        }
+        if (extracted != null) {
+            extractedView.setImageBitmap(extracted);
+            frameStats.onFrame(FrameStats.Rate.PUBLISHED);
+        }
+        if (dismissStatus) {
+            snackbar.dismiss();
+        } else if (statusFormat != null) {
+            snackbar.setText(
+                    statusCount == NO_COUNT ? statusFormat : String.format(statusFormat, statusCount));
+            if (!snackbar.isShown()) {
+                snackbar.show();
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A black and white mask at one bit per pixel.
+ *
+ * Every row starts on a fresh long, bit x % 64 of word x / 64 being pixel x, and the bits past
+ * the width are always clear. Set operations, area and IoU therefore work on 64 pixels at a time.
+ * Masks can be converted from the segmentation model's scores, from and to ARGB pixels and from
+ * and to run lengths.
+ */
+public class BinaryMask {
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    public BinaryMask(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.words = new long[wordsPerRow * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean get(final int x, final int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    public void set(final int x, final int y, final boolean value) {
+        final int index = y * wordsPerRow + (x >>> 6);
+        if (value) {
+            words[index] |= 1L << x;
+        } else {
+            words[index] &= ~(1L << x);
+        }
+    }
+
+    int getWordsPerRow() {
+        return wordsPerRow;
+    }
+
+    /** Returns pixels 64 * i to 64 * i + 63 of row y, bit x % 64 being pixel x. */
+    long getWord(final int y, final int i) {
+        return words[y * wordsPerRow + i];
+    }
+
+    /** Replaces pixels 64 * i to 64 * i + 63 of row y, ignoring any bits past the width. */
+    void setWord(final int y, final int i, final long word) {
+        final int end = width - 64 * i;
+        words[y * wordsPerRow + i] = end >= 64 ? word : word & ((1L << end) - 1);
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0L);
+    }
+
+    public void copyFrom(final BinaryMask other) {
+        checkSize(other);
+        System.arraycopy(other.words, 0, words, 0, words.length);
+    }
+
+    /**
+     * Replaces this mask with another of any size, scaled to this one's by nearest neighbour.
+     */
+    public void setFromScaled(final BinaryMask other) {
+        if (other.width == width && other.height == height) {
+            copyFrom(other);
+            return;
+        }
+        clear();
+        for (int y = 0; y < height; ++y) {
+            final int otherY = (int) ((y + 0.5f) * other.height / height);
+            for (int x = 0; x < width; ++x) {
+                if (other.get((int) ((x + 0.5f) * other.width / width), otherY)) {
+                    set(x, y, true);
+                }
+            }
+        }
+    }
+
+    /** Sets every pixel set in either mask. */
+    public void or(final BinaryMask other) {
+        checkSize(other);
+        for (int i = 0; i < words.length; ++i) {
+            words[i] |= other.words[i];
+        }
+    }
+
+    /** Keeps only the pixels set in both masks. */
+    public void and(final BinaryMask other) {
+        checkSize(other);
+        for (int i = 0; i < words.length; ++i) {
+            words[i] &= other.words[i];
+        }
+    }
+
+    /** Clears every pixel set in the other mask. */
+    public void andNot(final BinaryMask other) {
+        checkSize(other);
+        for (int i = 0; i < words.length; ++i) {
+            words[i] &= ~other.words[i];
+        }
+    }
+
+    /** Returns the number of set pixels. */
+    public int area() {
+        int area = 0;
+        for (final long word : words) {
+            area += Long.bitCount(word);
+        }
+        return area;
+    }
+
+    /**
+     * Returns the intersection over union of the set pixels of both masks, 0 if both are empty.
+     */
+    public float intersectionOverUnion(final BinaryMask other) {
+        checkSize(other);
+        int intersection = 0;
+        int union = 0;
+        for (int i = 0; i < words.length; ++i) {
+            intersection += Long.bitCount(words[i] & other.words[i]);
+            union += Long.bitCount(words[i] | other.words[i]);
+        }
+        return union > 0 ? (float) intersection / union : 0.0f;
+    }
+
+    /**
+     * Writes the bounds of the set pixels into out, right and bottom exclusive.
+     *
+     * @return false, leaving out untouched, if no pixel is set.
+     */
+    public boolean getBoundingBox(final Rect out) {
+        int left = width;
+        int top = -1;
+        int right = -1;
+        int bottom = -1;
+        for (int y = 0; y < height; ++y) {
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; ++i) {
+                final long word = words[base + i];
+                if (word == 0) {
+                    continue;
+                }
+                left = Math.min(left, 64 * i + Long.numberOfTrailingZeros(word));
+                right = Math.max(right, 64 * i + 63 - Long.numberOfLeadingZeros(word));
+                if (top < 0) {
+                    top = y;
+                }
+                bottom = y;
+            }
+        }
+        if (top < 0) {
+            return false;
+        }
+        out.set(left, top, right + 1, bottom + 1);
+        return true;
+    }
+
+    /**
+     * Thresholds one channel of the model output, width * height pixels of channels floats each in
+     * row major order, read from the buffer's absolute positions.
+     */
+    public void setFromScores(
+            final ByteBuffer scores, final int channels, final int channel, final float threshold) {
+        int index = channel * 4;
+        final int pixelStride = channels * 4;
+        for (int y = 0; y < height; ++y) {
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; ++i) {
+                final int end = Math.min(64, width - 64 * i);
+                long word = 0;
+                for (int bit = 0; bit < end; ++bit) {
+                    if (scores.getFloat(index) > threshold) {
+                        word |= 1L << bit;
+                    }
+                    index += pixelStride;
+                }
+                words[base + i] = word;
+            }
+        }
+    }
+
+    /**
+     * Sets every pixel whose ARGB color is anything but black, width * height in row major order.
+     */
+    public void setFromArgb(final int[] pixels) {
+        int index = 0;
+        for (int y = 0; y < height; ++y) {
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; ++i) {
+                final int end = Math.min(64, width - 64 * i);
+                long word = 0;
+                for (int bit = 0; bit < end; ++bit) {
+                    if ((pixels[index++] & 0x00FFFFFF) != 0) {
+                        word |= 1L << bit;
+                    }
+                }
+                words[base + i] = word;
+            }
+        }
+    }
+
+    /**
+     * Writes setColor for every set pixel and unsetColor for every other one into pixels, width *
+     * height in row major order.
+     */
+    public void toArgb(final int[] pixels, final int setColor, final int unsetColor) {
+        int index = 0;
+        for (int y = 0; y < height; ++y) {
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; ++i) {
+                final int end = Math.min(64, width - 64 * i);
+                final long word = words[base + i];
+                for (int bit = 0; bit < end; ++bit) {
+                    pixels[index++] = (word & (1L << bit)) != 0 ? setColor : unsetColor;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets every pixel whose byte is non-zero, width * height in row major order.
+     */
+    public void setFromBytes(final byte[] values) {
+        int index = 0;
+        for (int y = 0; y < height; ++y) {
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; ++i) {
+                final int end = Math.min(64, width - 64 * i);
+                long word = 0;
+                for (int bit = 0; bit < end; ++bit) {
+                    if (values[index++] != 0) {
+                        word |= 1L << bit;
+                    }
+                }
+                words[base + i] = word;
+            }
+        }
+    }
+
+    /**
+     * Writes 1 for every set pixel and 0 for every other one into values, width * height in row
+     * major order.
+     */
+    public void toBytes(final byte[] values) {
+        int index = 0;
+        for (int y = 0; y < height; ++y) {
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; ++i) {
+                final int end = Math.min(64, width - 64 * i);
+                final long word = words[base + i];
+                for (int bit = 0; bit < end; ++bit) {
+                    values[index++] = (byte) ((word >>> bit) & 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills a bitmap of this mask's size, using pixels as scratch space.
+     */
+    public void toBitmap(
+            final Bitmap bitmap, final int[] pixels, final int setColor, final int unsetColor) {
+        toArgb(pixels, setColor, unsetColor);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+    }
+
+    /**
+     * Returns the lengths of alternating runs of clear and set pixels in row major order,
+     * starting with a clear run that may be empty.
+     */
+    public int[] toRunLengths() {
+        int[] runs = new int[16];
+        int count = 0;
+        boolean set = false;
+        int runLength = 0;
+        for (int y = 0; y < height; ++y) {
+            int x = 0;
+            while (x < width) {
+                final int next = set ? nextClearBit(y, x) : nextSetBit(y, x);
+                runLength += next - x;
+                x = next;
+                if (x < width) {
+                    if (count == runs.length) {
+                        runs = Arrays.copyOf(runs, 2 * count);
+                    }
+                    runs[count++] = runLength;
+                    runLength = 0;
+                    set = !set;
+                }
+            }
+        }
+        if (count == runs.length) {
+            runs = Arrays.copyOf(runs, count + 1);
+        }
+        runs[count++] = runLength;
+        return Arrays.copyOf(runs, count);
+    }
+
+    /**
+     * Replaces the mask with run lengths as returned by {@link #toRunLengths()}.
+     */
+    public void setFromRunLengths(final int[] runs, final int count) {
+        clear();
+        int position = 0;
+        for (int r = 0; r < count; ++r) {
+            if ((r & 1) != 0) {
+                setRun(position, runs[r]);
+            }
+            position += runs[r];
+        }
+    }
+
+    private void setRun(int position, int length) {
+        while (length > 0) {
+            final int y = position / width;
+            final int x = position - y * width;
+            final int rowLength = Math.min(length, width - x);
+            setRange(y, x, x + rowLength);
+            position += rowLength;
+            length -= rowLength;
+        }
+    }
+
+    private void setRange(final int y, final int fromX, final int toX) {
+        final int base = y * wordsPerRow;
+        final int first = fromX >>> 6;
+        final int last = (toX - 1) >>> 6;
+        final long firstMask = -1L << fromX;
+        final long lastMask = -1L >>> -toX;
+        if (first == last) {
+            words[base + first] |= firstMask & lastMask;
+            return;
+        }
+        words[base + first] |= firstMask;
+        for (int i = first + 1; i < last; ++i) {
+            words[base + i] = -1L;
+        }
+        words[base + last] |= lastMask;
+    }
+
+    private int nextSetBit(final int y, final int x) {
+        final int base = y * wordsPerRow;
+        int i = x >>> 6;
+        long word = words[base + i] & (-1L << x);
+        while (word == 0) {
+            if (++i == wordsPerRow) {
+                return width;
+            }
+            word = words[base + i];
+        }
+        return Math.min(width, 64 * i + Long.numberOfTrailingZeros(word));
+    }
+
+    private int nextClearBit(final int y, final int x) {
+        final int base = y * wordsPerRow;
+        int i = x >>> 6;
+        long word = ~words[base + i] & (-1L << x);
+        while (word == 0) {
+            if (++i == wordsPerRow) {
+                return width;
+            }
+            word = ~words[base + i];
+        }
+        return Math.min(width, 64 * i + Long.numberOfTrailingZeros(word));
+    }
+
+    private void checkSize(final BinaryMask other) {
+        if (other.width != width || other.height != height) {
+            throw new IllegalArgumentException(
+                    "Mask is " + other.width + "x" + other.height + ", expected " + width + "x" + height);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes bitmaps to disk on a background thread, see {@link ImageUtils#saveBitmapAsync}.
+ *
+ * The caller only copies the pixels into one of a fixed number of preallocated requests. When all
+ * of them are waiting to be written the save is dropped and counted rather than blocking the
+ * caller. The writer drains every pending request at once, encodes each into a reused buffer and
+ * writes it to its file with a single call.
+ */
+class BitmapSaveQueue {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int CAPACITY = 8;
+
+    private static final class Request {
+        int[] pixels = new int[0];
+        int width;
+        int height;
+        File file;
+        ImageUtils.Encoding encoding;
+    }
+
+    private final BlockingQueue<Request> freeRequests = new ArrayBlockingQueue<Request>(CAPACITY);
+    private final BlockingQueue<Request> pendingRequests = new ArrayBlockingQueue<Request>(CAPACITY);
+
+    private final AtomicLong numSaved = new AtomicLong();
+    private final AtomicLong numDropped = new AtomicLong();
+    private final AtomicLong numFailed = new AtomicLong();
+
+    // Only used by the writer thread.
+    private final List<Request> batch = new ArrayList<Request>(CAPACITY);
+    private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    private byte[] scratch = new byte[0];
+
+    BitmapSaveQueue() {
+        for (int i = 0; i < CAPACITY; ++i) {
+            freeRequests.add(new Request());
+        }
+        final Thread writer = new Thread(this::run, "bitmap-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Copies the bitmap's pixels and queues them to be written to file, returning false if the
+     * queue is full and the save was dropped.
+     */
+    boolean offer(final Bitmap bitmap, final File file, final ImageUtils.Encoding encoding) {
+        final Request request = freeRequests.poll();
+        if (request == null) {
+            numDropped.incrementAndGet();
+            return false;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (request.pixels.length < width * height) {
+            request.pixels = new int[width * height];
+        }
+        bitmap.getPixels(request.pixels, 0, width, 0, 0, width, height);
+        request.width = width;
+        request.height = height;
+        request.file = file;
+        request.encoding = encoding;
+        // Never full, there are only CAPACITY requests.
+        pendingRequests.add(request);
+        return true;
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                batch.add(pendingRequests.take());
+            } catch (final InterruptedException e) {
+                return;
+            }
+            pendingRequests.drainTo(batch);
+
+            for (final Request request : batch) {
+                try {
+                    write(request);
+                    numSaved.incrementAndGet();
+                } catch (final IOException e) {
+                    numFailed.incrementAndGet();
+                    LOGGER.e(e, "Exception!");
+                }
+                request.file = null;
+                freeRequests.add(request);
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(final Request request) throws IOException {
+        encoded.reset();
+        switch (request.encoding) {
+            case PNG:
+                final Bitmap bitmap =
+                        Bitmap.createBitmap(
+                                request.pixels, 0, request.width, request.width, request.height,
+                                Bitmap.Config.ARGB_8888);
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, encoded);
+                bitmap.recycle();
+                break;
+            case RAW_ARGB:
+                encodeRaw(request);
+                break;
+            case RLE_MASK:
+                encodeRle(request);
+                break;
+        }
+
+        final File dir = request.file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        final FileOutputStream out = new FileOutputStream(request.file);
+        try {
+            encoded.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Little endian width and height, then every pixel as a little endian ARGB int.
+     */
+    private void encodeRaw(final Request request) {
+        final int numPixels = request.width * request.height;
+        final int size = 8 + 4 * numPixels;
+        if (scratch.length < size) {
+            scratch = new byte[size];
+        }
+        int offset = putInt(scratch, 0, request.width);
+        offset = putInt(scratch, offset, request.height);
+        for (int i = 0; i < numPixels; ++i) {
+            offset = putInt(scratch, offset, request.pixels[i]);
+        }
+        encoded.write(scratch, 0, size);
+    }
+
+    /**
+     * Little endian width and height, then the lengths of alternating runs of unset and set
+     * pixels in row major order as unsigned LEB128 varints, starting with an unset run that may be
+     * empty. A pixel is set if its color is anything but black.
+     */
+    private void encodeRle(final Request request) {
+        final int numPixels = request.width * request.height;
+        // Worst case is a run per pixel, each of them a single varint byte.
+        final int maxSize = 8 + 5 * (numPixels + 1);
+        if (scratch.length < maxSize) {
+            scratch = new byte[maxSize];
+        }
+        int offset = putInt(scratch, 0, request.width);
+        offset = putInt(scratch, offset, request.height);
+
+        boolean set = false;
+        int runLength = 0;
+        for (int i = 0; i < numPixels; ++i) {
+            final boolean pixelSet = (request.pixels[i] & 0x00FFFFFF) != 0;
+            if (pixelSet != set) {
+                offset = putVarint(scratch, offset, runLength);
+                set = pixelSet;
+                runLength = 0;
+            }
+            ++runLength;
+        }
+        offset = putVarint(scratch, offset, runLength);
+        encoded.write(scratch, 0, offset);
+    }
+
+    private static int putInt(final byte[] out, final int offset, final int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+        out[offset + 2] = (byte) (value >> 16);
+        out[offset + 3] = (byte) (value >> 24);
+        return offset + 4;
+    }
+
+    private static int putVarint(final byte[] out, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    String getStatString() {
+        return String.format(
+                "Saved: %d, dropped %d, failed %d",
+                numSaved.get(), numDropped.get(), numFailed.get());
+    }
+}
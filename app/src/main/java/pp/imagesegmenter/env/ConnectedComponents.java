@@ -0,0 +1,206 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import android.graphics.Rect;
+
+import java.util.Arrays;
+
+/**
+ * Labels the 8-connected components of the set pixels of a {@link BinaryMask}.
+ *
+ * The first pass gives every set pixel a provisional label from its already visited neighbours,
+ * recording which labels touch in a union-find forest. The second pass replaces each label by its
+ * root, numbers the roots consecutively and collects area and bounds per component. Everything is
+ * kept in int arrays that are reused across masks, no objects are created per pixel.
+ */
+public class ConnectedComponents {
+    private final int width;
+    private final int height;
+
+    // Component of every pixel, -1 for clear ones.
+    private final int[] labels;
+
+    // Union-find forest over provisional labels, later mapping roots to component numbers.
+    private int[] parents = new int[64];
+
+    private int numComponents;
+    private int[] areas = new int[16];
+    // Left, top, right and bottom per component, right and bottom exclusive.
+    private int[] bounds = new int[4 * 16];
+
+    public ConnectedComponents(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        this.labels = new int[width * height];
+    }
+
+    /**
+     * Labels the mask, which must be of this labeller's size.
+     *
+     * @return the number of components.
+     */
+    public int label(final BinaryMask mask) {
+        if (mask.getWidth() != width || mask.getHeight() != height) {
+            throw new IllegalArgumentException(
+                    "Mask is " + mask.getWidth() + "x" + mask.getHeight()
+                            + ", expected " + width + "x" + height);
+        }
+
+        int numLabels = 0;
+        for (int y = 0; y < height; ++y) {
+            final int row = y * width;
+            for (int x = 0; x < width; ++x) {
+                final int index = row + x;
+                if (!mask.get(x, y)) {
+                    labels[index] = -1;
+                    continue;
+                }
+
+                int label = -1;
+                if (x > 0) {
+                    label = join(label, labels[index - 1]);
+                }
+                if (y > 0) {
+                    final int above = index - width;
+                    if (x > 0) {
+                        label = join(label, labels[above - 1]);
+                    }
+                    label = join(label, labels[above]);
+                    if (x < width - 1) {
+                        label = join(label, labels[above + 1]);
+                    }
+                }
+                if (label < 0) {
+                    if (numLabels == parents.length) {
+                        parents = Arrays.copyOf(parents, 2 * numLabels);
+                    }
+                    parents[numLabels] = numLabels;
+                    label = numLabels++;
+                }
+                labels[index] = label;
+            }
+        }
+
+        // Number the roots, storing -1 - number in place of the parent. Every label's parent is
+        // smaller, so by the time a label is reached its parent already holds the number.
+        numComponents = 0;
+        for (int label = 0; label < numLabels; ++label) {
+            final int parent = parents[label];
+            if (parent == label) {
+                parents[label] = -1 - numComponents++;
+            } else {
+                parents[label] = parents[parent];
+            }
+        }
+        if (areas.length < numComponents) {
+            areas = new int[numComponents];
+            bounds = new int[4 * numComponents];
+        }
+        Arrays.fill(areas, 0, numComponents, 0);
+        for (int c = 0; c < numComponents; ++c) {
+            bounds[4 * c] = width;
+            bounds[4 * c + 1] = height;
+            bounds[4 * c + 2] = 0;
+            bounds[4 * c + 3] = 0;
+        }
+
+        for (int y = 0; y < height; ++y) {
+            final int row = y * width;
+            for (int x = 0; x < width; ++x) {
+                final int index = row + x;
+                if (labels[index] < 0) {
+                    continue;
+                }
+                final int c = -1 - parents[labels[index]];
+                labels[index] = c;
+                ++areas[c];
+                bounds[4 * c] = Math.min(bounds[4 * c], x);
+                bounds[4 * c + 1] = Math.min(bounds[4 * c + 1], y);
+                bounds[4 * c + 2] = Math.max(bounds[4 * c + 2], x + 1);
+                bounds[4 * c + 3] = Math.max(bounds[4 * c + 3], y + 1);
+            }
+        }
+        return numComponents;
+    }
+
+    /**
+     * Merges the trees of two labels, either of which may be -1 for none, and returns the root.
+     * The smaller root always becomes the parent.
+     */
+    private int join(final int label, final int other) {
+        if (other < 0) {
+            return label < 0 ? -1 : find(label);
+        }
+        final int otherRoot = find(other);
+        if (label < 0) {
+            return otherRoot;
+        }
+        final int root = find(label);
+        if (root < otherRoot) {
+            parents[otherRoot] = root;
+            return root;
+        }
+        parents[root] = otherRoot;
+        return otherRoot;
+    }
+
+    private int find(int label) {
+        while (parents[label] != label) {
+            // Path halving.
+            parents[label] = parents[parents[label]];
+            label = parents[label];
+        }
+        return label;
+    }
+
+    public int getNumComponents() {
+        return numComponents;
+    }
+
+    public int getArea(final int component) {
+        return areas[component];
+    }
+
+    /** Writes the bounds of a component into out, right and bottom exclusive. */
+    public void getBounds(final int component, final Rect out) {
+        out.set(bounds[4 * component], bounds[4 * component + 1],
+                bounds[4 * component + 2], bounds[4 * component + 3]);
+    }
+
+    /** Writes the left, top, right and bottom of a component into out, right and bottom exclusive. */
+    public void getBounds(final int component, final int[] out) {
+        System.arraycopy(bounds, 4 * component, out, 0, 4);
+    }
+
+    /**
+     * Writes the component's pixels within its bounds into pixels, color where the component is
+     * and transparent elsewhere, one row of bounds width after another.
+     */
+    public void getPixels(final int component, final int[] pixels, final int color) {
+        final int left = bounds[4 * component];
+        final int top = bounds[4 * component + 1];
+        final int right = bounds[4 * component + 2];
+        final int bottom = bounds[4 * component + 3];
+        int out = 0;
+        for (int y = top; y < bottom; ++y) {
+            final int row = y * width;
+            for (int x = left; x < right; ++x) {
+                pixels[out++] = labels[row + x] == component ? color : 0;
+            }
+        }
+    }
+}
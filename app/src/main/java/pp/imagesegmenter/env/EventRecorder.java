@@ -0,0 +1,222 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long each pipeline stage took for each frame, cheaply enough to stay enabled in
+ * production, so that stalls can be diagnosed after the fact.
+ *
+ * Every record is a fixed number of longs in a preallocated ring: frame id, stage, start and end
+ * nanos, thread id and two stage specific counters. Writers claim a slot with a single atomic
+ * increment and never block or allocate; once the ring is full the oldest records are overwritten.
+ *
+ * A background thread copies the ring into a memory-mapped dump file when flush() is called or
+ * when a stage takes longer than the latency threshold. {@link EventTimeline} turns a dump into a
+ * per frame timeline.
+ */
+public class EventRecorder {
+    private static final Logger LOGGER = new Logger();
+
+    /**
+     * Pipeline stages a record can describe.
+     */
+    public enum Stage {
+        /** YUV to RGB conversion of a camera frame. */
+        PREVIEW,
+        /** Optical flow tracking of a camera frame. */
+        TRACK,
+        /** Cropping an admitted frame for the model. counter0 is the number of acquired frames. */
+        CROP,
+        /** Segmentation of one frame of a batch. counter0 is the index within the batch. */
+        SEGMENT,
+        /** Applying a mask to its frame. counter0 is the index within the batch. */
+        EXTRACT
+    }
+
+    static final int MAGIC = 0x45565452;  // "EVTR"
+    static final int VERSION = 1;
+
+    // Magic, version, number of records, reserved, then the flush time in nanos.
+    static final int HEADER_BYTES = 24;
+
+    // Frame id, stage, start nanos, end nanos, thread id, counter0, counter1.
+    static final int RECORD_LONGS = 7;
+    static final int RECORD_BYTES = 8 * RECORD_LONGS;
+
+    // Latency breaches flush at most this often, so that a slow phase doesn't turn into a flush
+    // per frame.
+    private static final long MIN_BREACH_FLUSH_INTERVAL_NS = 5L * 1000L * 1000L * 1000L;
+
+    private static ExecutorService executor;
+
+    private final File file;
+    private final int capacity;
+    private final int mask;
+    private final long latencyThresholdNs;
+
+    // Sequence number of the record in each slot, or -1 while the slot is being written.
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray records;
+    private final AtomicLong cursor = new AtomicLong();
+
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final AtomicLong lastBreachFlushNs = new AtomicLong(Long.MIN_VALUE / 2);
+    private final Runnable flushTask = this::writeDump;
+
+    // Only touched by the flush thread.
+    private MappedByteBuffer dump;
+
+    /**
+     * @param file the dump file, created or overwritten on the first flush.
+     * @param capacity number of records kept, rounded up to a power of two.
+     * @param latencyThresholdNs a stage taking longer than this triggers a flush.
+     */
+    public EventRecorder(final File file, final int capacity, final long latencyThresholdNs) {
+        this.file = file;
+        this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.latencyThresholdNs = latencyThresholdNs;
+        sequences = new AtomicLongArray(this.capacity);
+        records = new AtomicLongArray(this.capacity * RECORD_LONGS);
+        for (int i = 0; i < this.capacity; ++i) {
+            sequences.set(i, -1);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "event-recorder");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    public void record(
+            final Stage stage, final long frameId, final long startNs, final long endNs) {
+        record(stage, frameId, startNs, endNs, 0, 0);
+    }
+
+    public void record(
+            final Stage stage, final long frameId, final long startNs, final long endNs,
+            final long counter0, final long counter1) {
+        final long sequence = cursor.getAndIncrement();
+        final int slot = (int) (sequence & mask);
+        final int base = slot * RECORD_LONGS;
+
+        // The slot reads as invalid until all fields are in, see readRecord().
+        sequences.set(slot, -1);
+        records.lazySet(base, frameId);
+        records.lazySet(base + 1, stage.ordinal());
+        records.lazySet(base + 2, startNs);
+        records.lazySet(base + 3, endNs);
+        records.lazySet(base + 4, Thread.currentThread().getId());
+        records.lazySet(base + 5, counter0);
+        records.lazySet(base + 6, counter1);
+        sequences.lazySet(slot, sequence);
+
+        if (endNs - startNs > latencyThresholdNs) {
+            final long last = lastBreachFlushNs.get();
+            if (endNs - last > MIN_BREACH_FLUSH_INTERVAL_NS
+                    && lastBreachFlushNs.compareAndSet(last, endNs)) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes the current contents of the ring to the dump file in the background. Requests made
+     * while a flush is pending are merged into it.
+     */
+    public void flush() {
+        if (flushPending.compareAndSet(false, true)) {
+            getExecutor().execute(flushTask);
+        }
+    }
+
+    private void writeDump() {
+        flushPending.set(false);
+        try {
+            if (dump == null) {
+                final RandomAccessFile out = new RandomAccessFile(file, "rw");
+                try {
+                    dump = out.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0,
+                            HEADER_BYTES + (long) capacity * RECORD_BYTES);
+                } finally {
+                    // The mapping stays valid after the channel is closed.
+                    out.close();
+                }
+                dump.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            final long end = cursor.get();
+            final long start = Math.max(0, end - capacity);
+            final long[] record = new long[RECORD_LONGS];
+            int count = 0;
+            dump.position(HEADER_BYTES);
+            for (long sequence = start; sequence < end; ++sequence) {
+                if (readRecord(sequence, record)) {
+                    for (int i = 0; i < RECORD_LONGS; ++i) {
+                        dump.putLong(record[i]);
+                    }
+                    ++count;
+                }
+            }
+
+            dump.putInt(0, MAGIC);
+            dump.putInt(4, VERSION);
+            dump.putInt(8, count);
+            dump.putInt(12, 0);
+            dump.putLong(16, System.nanoTime());
+            dump.force();
+            LOGGER.i("Flushed %d events to %s", count, file);
+        } catch (final IOException e) {
+            LOGGER.e(e, "Exception!");
+        }
+    }
+
+    /**
+     * Copies the record with the given sequence number, returning false if it has been
+     * overwritten or is still being written.
+     */
+    private boolean readRecord(final long sequence, final long[] out) {
+        final int slot = (int) (sequence & mask);
+        final int base = slot * RECORD_LONGS;
+        if (sequences.get(slot) != sequence) {
+            return false;
+        }
+        for (int i = 0; i < RECORD_LONGS; ++i) {
+            out[i] = records.get(base + i);
+        }
+        // A writer that started on the slot meanwhile has already invalidated its sequence.
+        return sequences.get(slot) == sequence;
+    }
+}
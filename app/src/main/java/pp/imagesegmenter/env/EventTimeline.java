@@ -0,0 +1,126 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decodes a dump written by {@link EventRecorder} into a per frame timeline: for every frame its
+ * stages in order of start time, each with its offset from the frame's first stage, its duration,
+ * the thread it ran on and its counters.
+ */
+public class EventTimeline {
+    private static final class Event implements Comparable<Event> {
+        final EventRecorder.Stage stage;
+        final long startNs;
+        final long endNs;
+        final long threadId;
+        final long counter0;
+        final long counter1;
+
+        Event(final EventRecorder.Stage stage, final long startNs, final long endNs,
+              final long threadId, final long counter0, final long counter1) {
+            this.stage = stage;
+            this.startNs = startNs;
+            this.endNs = endNs;
+            this.threadId = threadId;
+            this.counter0 = counter0;
+            this.counter1 = counter1;
+        }
+
+        @Override
+        public int compareTo(final Event other) {
+            return Long.compare(startNs, other.startNs);
+        }
+    }
+
+    private EventTimeline() {}
+
+    public static String decode(final File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return decode(ByteBuffer.wrap(bytes));
+        } finally {
+            in.close();
+        }
+    }
+
+    public static String decode(final ByteBuffer dump) {
+        dump.order(ByteOrder.LITTLE_ENDIAN);
+        if (dump.getInt(0) != EventRecorder.MAGIC) {
+            throw new IllegalArgumentException("Not an event dump");
+        }
+        if (dump.getInt(4) != EventRecorder.VERSION) {
+            throw new IllegalArgumentException("Unsupported event dump version " + dump.getInt(4));
+        }
+        final int count = dump.getInt(8);
+
+        final EventRecorder.Stage[] stages = EventRecorder.Stage.values();
+        final Map<Long, List<Event>> frames = new TreeMap<Long, List<Event>>();
+        for (int i = 0; i < count; ++i) {
+            final int offset = EventRecorder.HEADER_BYTES + i * EventRecorder.RECORD_BYTES;
+            final long frameId = dump.getLong(offset);
+            final int stage = (int) dump.getLong(offset + 8);
+            if (stage < 0 || stage >= stages.length) {
+                continue;
+            }
+            List<Event> events = frames.get(frameId);
+            if (events == null) {
+                events = new ArrayList<Event>();
+                frames.put(frameId, events);
+            }
+            events.add(new Event(
+                    stages[stage],
+                    dump.getLong(offset + 16), dump.getLong(offset + 24), dump.getLong(offset + 32),
+                    dump.getLong(offset + 40), dump.getLong(offset + 48)));
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<Long, List<Event>> frame : frames.entrySet()) {
+            final List<Event> events = frame.getValue();
+            Collections.sort(events);
+            final long frameStartNs = events.get(0).startNs;
+            long frameEndNs = frameStartNs;
+            for (final Event event : events) {
+                frameEndNs = Math.max(frameEndNs, event.endNs);
+            }
+
+            sb.append(String.format("Frame %d: %.2f ms\n", frame.getKey(), toMs(frameEndNs - frameStartNs)));
+            for (final Event event : events) {
+                sb.append(String.format(
+                        "  %-8s +%8.2f ms %8.2f ms  thread %d  [%d, %d]\n",
+                        event.stage, toMs(event.startNs - frameStartNs), toMs(event.endNs - event.startNs),
+                        event.threadId, event.counter0, event.counter1));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static double toMs(final long ns) {
+        return ns / 1.0e6;
+    }
+}
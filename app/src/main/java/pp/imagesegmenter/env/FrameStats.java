@@ -0,0 +1,213 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accounts for every camera frame that enters the pipeline: why frames were dropped, how many
+ * were admitted, processed and published, and how deep each stage's queue currently is.
+ *
+ * Counters are lock-free so they can be bumped from the camera, inference and UI threads without
+ * adding contention to the hot path. Rates are derived lazily from the totals whenever the stats
+ * are read, so recording an event never touches the clock.
+ */
+public class FrameStats {
+    /**
+     * Reasons a camera frame was discarded before it reached the segmentation model.
+     */
+    public enum Drop {
+        /** Replaced in the ImageReader queue by a newer frame before it was ever acquired. */
+        REPLACED,
+        /** Arrived while the previous frame was still being handed to the pipeline. */
+        CAMERA_BUSY,
+        /** Arrived while the detector was busy or not yet initialized. */
+        DETECTOR_BUSY
+    }
+
+    /**
+     * Pipeline milestones whose throughput is reported in frames per second.
+     */
+    public enum Rate {
+        /** Frames accepted by processImage() for detection. */
+        ADMITTED,
+        /** Frames that made it through segmentation. */
+        PROCESSED,
+        /** Masks and extracted frames handed to the UI. */
+        PUBLISHED
+    }
+
+    /**
+     * Stages that buffer frames between producer and consumer.
+     */
+    public enum Queue {
+        /** Cropped frames waiting for a full batch. */
+        ACQUIRED,
+        /** Masked frames waiting for the flow-rate model. */
+        EXTRACTED,
+        /** Tasks posted to the inference thread that have not yet started. */
+        BACKGROUND
+    }
+
+    // Minimum time between two rate samples, so that reads from the overlay do not produce
+    // jittery numbers computed over a handful of frames.
+    private static final long MIN_SAMPLE_INTERVAL_NS = 1000L * 1000L * 1000L;
+
+    private final AtomicLongArray drops = new AtomicLongArray(Drop.values().length);
+    private final AtomicLongArray totals = new AtomicLongArray(Rate.values().length);
+    private final AtomicIntegerArray depths = new AtomicIntegerArray(Queue.values().length);
+    private final AtomicIntegerArray maxDepths = new AtomicIntegerArray(Queue.values().length);
+
+    private final long[] sampledTotals = new long[Rate.values().length];
+    private final float[] rates = new float[Rate.values().length];
+    private long sampledTimeNs = System.nanoTime();
+
+    public void onDropped(final Drop reason) {
+        drops.incrementAndGet(reason.ordinal());
+    }
+
+    public void onFrame(final Rate milestone) {
+        totals.incrementAndGet(milestone.ordinal());
+    }
+
+    public void setQueueDepth(final Queue queue, final int depth) {
+        depths.set(queue.ordinal(), depth);
+        updateMaxDepth(queue.ordinal(), depth);
+    }
+
+    public void enqueued(final Queue queue) {
+        updateMaxDepth(queue.ordinal(), depths.incrementAndGet(queue.ordinal()));
+    }
+
+    public void dequeued(final Queue queue) {
+        depths.decrementAndGet(queue.ordinal());
+    }
+
+    private void updateMaxDepth(final int index, final int depth) {
+        int max;
+        do {
+            max = maxDepths.get(index);
+        } while (depth > max && !maxDepths.compareAndSet(index, max, depth));
+    }
+
+    public long getDropped(final Drop reason) {
+        return drops.get(reason.ordinal());
+    }
+
+    public long getTotal(final Rate milestone) {
+        return totals.get(milestone.ordinal());
+    }
+
+    public int getQueueDepth(final Queue queue) {
+        return depths.get(queue.ordinal());
+    }
+
+    public int getMaxQueueDepth(final Queue queue) {
+        return maxDepths.get(queue.ordinal());
+    }
+
+    /**
+     * Returns the frames per second for the given milestone, averaged over at least the last
+     * second.
+     */
+    public synchronized float getRate(final Rate milestone) {
+        sampleRates();
+        return rates[milestone.ordinal()];
+    }
+
+    private void sampleRates() {
+        final long now = System.nanoTime();
+        final long elapsed = now - sampledTimeNs;
+        if (elapsed < MIN_SAMPLE_INTERVAL_NS) {
+            return;
+        }
+        for (int i = 0; i < rates.length; ++i) {
+            final long total = totals.get(i);
+            rates[i] = (total - sampledTotals[i]) * 1e9f / elapsed;
+            sampledTotals[i] = total;
+        }
+        sampledTimeNs = now;
+    }
+
+    /**
+     * Returns the current stats as lines suitable for the debug overlay.
+     */
+    public synchronized Vector<String> getDebugText() {
+        sampleRates();
+
+        final Vector<String> lines = new Vector<String>();
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append("FPS:");
+        for (final Rate milestone : Rate.values()) {
+            builder.append(' ').append(milestone.name().toLowerCase()).append('=')
+                    .append(String.format("%.1f", rates[milestone.ordinal()]));
+        }
+        lines.add(builder.toString());
+
+        builder.setLength(0);
+        builder.append("Dropped:");
+        for (final Drop reason : Drop.values()) {
+            builder.append(' ').append(reason.name().toLowerCase()).append('=')
+                    .append(drops.get(reason.ordinal()));
+        }
+        lines.add(builder.toString());
+
+        builder.setLength(0);
+        builder.append("Queues:");
+        for (final Queue queue : Queue.values()) {
+            builder.append(' ').append(queue.name().toLowerCase()).append('=')
+                    .append(depths.get(queue.ordinal()))
+                    .append('/').append(maxDepths.get(queue.ordinal()));
+        }
+        lines.add(builder.toString());
+
+        return lines;
+    }
+
+    /**
+     * Returns a multi-line dump of all counters, totals and rates.
+     */
+    public synchronized String dump() {
+        sampleRates();
+
+        final StringBuilder builder = new StringBuilder();
+        for (final Rate milestone : Rate.values()) {
+            builder.append(milestone.name()).append(": total=").append(totals.get(milestone.ordinal()))
+                    .append(" fps=").append(String.format("%.2f", rates[milestone.ordinal()]))
+                    .append('\n');
+        }
+        long dropped = 0;
+        for (final Drop reason : Drop.values()) {
+            final long count = drops.get(reason.ordinal());
+            dropped += count;
+            builder.append("DROP_").append(reason.name()).append(": ").append(count).append('\n');
+        }
+        final long seen = dropped + totals.get(Rate.ADMITTED.ordinal());
+        builder.append("ANALYZED: ")
+                .append(seen > 0 ? String.format("%.1f%%", 100.0f * getTotal(Rate.PROCESSED) / seen) : "n/a")
+                .append('\n');
+        for (final Queue queue : Queue.values()) {
+            builder.append("QUEUE_").append(queue.name()).append(": depth=")
+                    .append(depths.get(queue.ordinal()))
+                    .append(" max=").append(maxDepths.get(queue.ordinal()))
+                    .append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,398 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Append-only store of equally sized frames, kept off the Java heap in memory-mapped files.
+ *
+ * Frames are numbered in the order they are appended and can be read back by number for as long
+ * as they are retained. The store is split into segment files of a fixed number of frames; once
+ * the newest segment is full another one is started, and once there are more than the maximum
+ * number of segments the oldest one is deleted. truncate() drops old frames explicitly.
+ *
+ * Each frame is stored with a caller supplied id, such as the camera frame it came from, in one of
+ * the compact pixel layouts.
+ */
+public class FrameStore {
+    private static final Logger LOGGER = new Logger();
+
+    /**
+     * How the pixels of a frame are laid out on disk.
+     */
+    public enum Layout {
+        /** Three bytes of red, green and blue per pixel, alpha is dropped. */
+        RGB_888,
+        /** One bit per pixel, set for anything but black, eight pixels per byte. */
+        MASK_1;
+
+        int getBytes(final int numPixels) {
+            return this == RGB_888 ? 3 * numPixels : (numPixels + 7) / 8;
+        }
+    }
+
+    // The frame id precedes the pixels of every frame.
+    private static final int FRAME_HEADER_BYTES = 8;
+
+    private static final int MASK_SET = 0xFFFFFFFF;
+    private static final int MASK_UNSET = 0xFF000000;
+
+    private static final class Segment {
+        final long firstFrame;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(final long firstFrame, final File file, final MappedByteBuffer buffer) {
+            this.firstFrame = firstFrame;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File dir;
+    private final String name;
+    private final int width;
+    private final int height;
+    private final Layout layout;
+    private final int framesPerSegment;
+    private final int maxSegments;
+    private final int frameBytes;
+
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long firstFrame;
+    private long endFrame;
+
+    private final int[] pixels;
+    private final byte[] packed;
+
+    /**
+     * @param dir directory for the segment files, any previous segments of the same name are
+     *            overwritten.
+     * @param name prefix of the segment file names.
+     * @param framesPerSegment frames per segment file.
+     * @param maxSegments segments retained before the oldest one is deleted.
+     */
+    public FrameStore(
+            final File dir, final String name, final int width, final int height, final Layout layout,
+            final int framesPerSegment, final int maxSegments) {
+        this.dir = dir;
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.layout = layout;
+        this.framesPerSegment = framesPerSegment;
+        this.maxSegments = maxSegments;
+        this.frameBytes = FRAME_HEADER_BYTES + layout.getBytes(width * height);
+        this.pixels = new int[width * height];
+        this.packed = new byte[layout.getBytes(width * height)];
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOGGER.w("Could not create %s", dir);
+        }
+        deleteStaleSegments();
+    }
+
+    private void deleteStaleSegments() {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String fileName = file.getName();
+            if (fileName.startsWith(name + "-") && fileName.endsWith(".seg") && !file.delete()) {
+                LOGGER.w("Could not delete %s", file);
+            }
+        }
+    }
+
+    /**
+     * Appends a frame, which must be of this store's size.
+     *
+     * @return the number of the frame.
+     */
+    public synchronized long append(final long frameId, final Bitmap bitmap) throws IOException {
+        checkSize(bitmap.getWidth(), bitmap.getHeight());
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        pack();
+        return appendPacked(frameId);
+    }
+
+    /**
+     * Appends a mask, which must be of this store's size.
+     *
+     * @return the number of the frame.
+     */
+    public synchronized long append(final long frameId, final BinaryMask mask) throws IOException {
+        checkSize(mask.getWidth(), mask.getHeight());
+        if (layout == Layout.MASK_1) {
+            packMask(mask);
+        } else {
+            mask.toArgb(pixels, MASK_SET, MASK_UNSET);
+            pack();
+        }
+        return appendPacked(frameId);
+    }
+
+    private void checkSize(final int frameWidth, final int frameHeight) {
+        if (frameWidth != width || frameHeight != height) {
+            throw new IllegalArgumentException(
+                    "Frame is " + frameWidth + "x" + frameHeight
+                            + ", store holds " + width + "x" + height);
+        }
+    }
+
+    private long appendPacked(final long frameId) throws IOException {
+        if (segments.isEmpty() || endFrame - segments.getLast().firstFrame == framesPerSegment) {
+            rollOver();
+        }
+
+        final Segment segment = segments.getLast();
+        segment.buffer.position((int) (endFrame - segment.firstFrame) * frameBytes);
+        segment.buffer.putLong(frameId);
+        segment.buffer.put(packed);
+        return endFrame++;
+    }
+
+    private void rollOver() throws IOException {
+        final long segmentBytes = (long) framesPerSegment * frameBytes;
+        final File file = new File(dir, name + "-" + (endFrame / framesPerSegment) + ".seg");
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(segmentBytes);
+            final MappedByteBuffer buffer =
+                    out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            segments.addLast(new Segment(endFrame, file, buffer));
+        } finally {
+            // The mapping stays valid after the file is closed.
+            out.close();
+        }
+
+        while (segments.size() > maxSegments) {
+            deleteOldestSegment();
+        }
+    }
+
+    private void deleteOldestSegment() {
+        final Segment oldest = segments.removeFirst();
+        if (!oldest.file.delete()) {
+            LOGGER.w("Could not delete %s", oldest.file);
+        }
+        firstFrame = segments.isEmpty() ? endFrame : segments.getFirst().firstFrame;
+    }
+
+    /**
+     * Drops every segment that only holds frames before the given one. Frames before it that share
+     * a segment with later ones stay readable until that segment goes.
+     */
+    public synchronized void truncate(final long frame) {
+        while (!segments.isEmpty()
+                && segments.getFirst().firstFrame + framesPerSegment <= frame
+                && segments.getFirst() != segments.getLast()) {
+            deleteOldestSegment();
+        }
+    }
+
+    /**
+     * Reads a frame into bitmap, which must be mutable and of this store's size.
+     *
+     * @return the id the frame was appended with.
+     */
+    public synchronized long read(final long frame, final Bitmap bitmap) {
+        final long frameId = readPacked(frame);
+        unpack();
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return frameId;
+    }
+
+    /**
+     * Reads a frame into a mask of this store's size.
+     *
+     * @return the id the frame was appended with.
+     */
+    public synchronized long read(final long frame, final BinaryMask mask) {
+        checkSize(mask.getWidth(), mask.getHeight());
+        final long frameId = readPacked(frame);
+        if (layout == Layout.MASK_1) {
+            unpackMask(mask);
+        } else {
+            unpack();
+            mask.setFromArgb(pixels);
+        }
+        return frameId;
+    }
+
+    /**
+     * Reads a frame as width * height ARGB pixels in row major order.
+     *
+     * @return the id the frame was appended with.
+     */
+    public synchronized long read(final long frame, final int[] out) {
+        final long frameId = readPacked(frame);
+        unpack();
+        System.arraycopy(pixels, 0, out, 0, pixels.length);
+        return frameId;
+    }
+
+    private long readPacked(final long frame) {
+        final Segment segment = getSegment(frame);
+        segment.buffer.position((int) (frame - segment.firstFrame) * frameBytes);
+        final long frameId = segment.buffer.getLong();
+        segment.buffer.get(packed);
+        return frameId;
+    }
+
+    /**
+     * Returns the id a frame was appended with.
+     */
+    public synchronized long getFrameId(final long frame) {
+        final Segment segment = getSegment(frame);
+        return segment.buffer.getLong((int) (frame - segment.firstFrame) * frameBytes);
+    }
+
+    private Segment getSegment(final long frame) {
+        if (frame < firstFrame || frame >= endFrame) {
+            throw new IndexOutOfBoundsException(
+                    "Frame " + frame + " not in [" + firstFrame + ", " + endFrame + ")");
+        }
+        // Segments hold consecutive frames, so the owner can be found without searching.
+        final long index = (frame - segments.getFirst().firstFrame) / framesPerSegment;
+        int i = 0;
+        for (final Segment segment : segments) {
+            if (i++ == index) {
+                return segment;
+            }
+        }
+        throw new IllegalStateException("Segment of frame " + frame + " missing");
+    }
+
+    private void pack() {
+        if (layout == Layout.RGB_888) {
+            for (int i = 0, j = 0; i < pixels.length; ++i) {
+                final int pixel = pixels[i];
+                packed[j++] = (byte) (pixel >> 16);
+                packed[j++] = (byte) (pixel >> 8);
+                packed[j++] = (byte) pixel;
+            }
+        } else {
+            for (int i = 0; i < packed.length; ++i) {
+                int bits = 0;
+                final int end = Math.min(pixels.length, 8 * i + 8);
+                for (int p = 8 * i; p < end; ++p) {
+                    if ((pixels[p] & 0x00FFFFFF) != 0) {
+                        bits |= 1 << (p & 7);
+                    }
+                }
+                packed[i] = (byte) bits;
+            }
+        }
+    }
+
+    private void unpack() {
+        if (layout == Layout.RGB_888) {
+            for (int i = 0, j = 0; i < pixels.length; ++i) {
+                pixels[i] = 0xFF000000
+                        | (packed[j++] & 0xFF) << 16
+                        | (packed[j++] & 0xFF) << 8
+                        | (packed[j++] & 0xFF);
+            }
+        } else {
+            for (int p = 0; p < pixels.length; ++p) {
+                pixels[p] = (packed[p >> 3] & (1 << (p & 7))) != 0 ? MASK_SET : MASK_UNSET;
+            }
+        }
+    }
+
+    /**
+     * Packs a mask in the MASK_1 layout a byte at a time. Rows are consecutive in the packed bits,
+     * so a row only starts on a byte if the width is a multiple of eight.
+     */
+    private void packMask(final BinaryMask mask) {
+        Arrays.fill(packed, (byte) 0);
+        final int wordsPerRow = mask.getWordsPerRow();
+        int position = 0;
+        for (int y = 0; y < height; ++y) {
+            for (int i = 0; i < wordsPerRow; ++i) {
+                long word = mask.getWord(y, i);
+                int remaining = Math.min(64, width - 64 * i);
+                while (remaining > 0) {
+                    final int shift = position & 7;
+                    final int count = Math.min(8 - shift, remaining);
+                    packed[position >> 3] |= (byte) ((word & ((1 << count) - 1)) << shift);
+                    word >>>= count;
+                    position += count;
+                    remaining -= count;
+                }
+            }
+        }
+    }
+
+    private void unpackMask(final BinaryMask mask) {
+        final int wordsPerRow = mask.getWordsPerRow();
+        int position = 0;
+        for (int y = 0; y < height; ++y) {
+            for (int i = 0; i < wordsPerRow; ++i) {
+                final int bits = Math.min(64, width - 64 * i);
+                long word = 0;
+                int filled = 0;
+                while (filled < bits) {
+                    final int shift = position & 7;
+                    final int count = Math.min(8 - shift, bits - filled);
+                    final long value = ((packed[position >> 3] & 0xFF) >>> shift) & ((1 << count) - 1);
+                    word |= value << filled;
+                    position += count;
+                    filled += count;
+                }
+                mask.setWord(y, i, word);
+            }
+        }
+    }
+
+    /** Returns the number of the oldest frame still stored. */
+    public synchronized long getFirstFrame() {
+        return firstFrame;
+    }
+
+    /** Returns the number the next appended frame will get. */
+    public synchronized long getEndFrame() {
+        return endFrame;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Deletes all segment files. The store is empty afterwards, numbering continues.
+     */
+    public synchronized void clear() {
+        while (!segments.isEmpty()) {
+            deleteOldestSegment();
+        }
+    }
+}
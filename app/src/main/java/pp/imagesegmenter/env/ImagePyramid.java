@@ -0,0 +1,104 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+/**
+ * A luminance frame at full, 1/2, 1/4 and 1/8 resolution. Level 0 is the frame itself with the
+ * row padding removed; every further level is a 2x2 box filtered copy of the one before it.
+ *
+ * Pyramids are handed out by an {@link ImagePyramidCache} and must be given back to it once the
+ * frame is done. The level arrays are preallocated and reused for later frames, so they must not
+ * be read after the pyramid was released.
+ */
+public class ImagePyramid {
+    public static final int NUM_LEVELS = 4;
+
+    private final byte[][] levels = new byte[NUM_LEVELS][];
+    private final int[] widths = new int[NUM_LEVELS];
+    private final int[] heights = new int[NUM_LEVELS];
+
+    // Owned by the cache.
+    long timestamp = Long.MIN_VALUE;
+    int refCount;
+
+    ImagePyramid(final int width, final int height) {
+        int levelWidth = width;
+        int levelHeight = height;
+        for (int level = 0; level < NUM_LEVELS; ++level) {
+            widths[level] = levelWidth;
+            heights[level] = levelHeight;
+            levels[level] = new byte[levelWidth * levelHeight];
+            levelWidth = Math.max(1, levelWidth / 2);
+            levelHeight = Math.max(1, levelHeight / 2);
+        }
+    }
+
+    void build(final byte[] frame, final int rowStride, final long timestamp) {
+        final int width = widths[0];
+        final int height = heights[0];
+        if (rowStride == width) {
+            System.arraycopy(frame, 0, levels[0], 0, width * height);
+        } else {
+            for (int y = 0; y < height; ++y) {
+                System.arraycopy(frame, y * rowStride, levels[0], y * width, width);
+            }
+        }
+
+        for (int level = 1; level < NUM_LEVELS; ++level) {
+            downsample(levels[level - 1], widths[level - 1], levels[level], widths[level], heights[level]);
+        }
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Averages 2x2 blocks of src into dst, which is dstWidth x dstHeight. src must have at least
+     * 2 * dstHeight rows of srcStride bytes, each at least 2 * dstWidth wide.
+     */
+    public static void downsample(
+            final byte[] src, final int srcStride, final byte[] dst, final int dstWidth, final int dstHeight) {
+        for (int y = 0; y < dstHeight; ++y) {
+            int top = 2 * y * srcStride;
+            int bottom = top + srcStride;
+            int dstIndex = y * dstWidth;
+            final int dstEnd = dstIndex + dstWidth;
+            while (dstIndex < dstEnd) {
+                final int sum =
+                        (src[top] & 0xFF) + (src[top + 1] & 0xFF)
+                                + (src[bottom] & 0xFF) + (src[bottom + 1] & 0xFF);
+                dst[dstIndex++] = (byte) ((sum + 2) >> 2);
+                top += 2;
+                bottom += 2;
+            }
+        }
+    }
+
+    /** Returns the packed pixels of a level, {@link #getWidth(int)} bytes per row. */
+    public byte[] getLevel(final int level) {
+        return levels[level];
+    }
+
+    public int getWidth(final int level) {
+        return widths[level];
+    }
+
+    public int getHeight(final int level) {
+        return heights[level];
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
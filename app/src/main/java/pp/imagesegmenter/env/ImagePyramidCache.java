@@ -0,0 +1,115 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds each frame's {@link ImagePyramid} once and shares it between all consumers of that frame.
+ *
+ * Pyramids are keyed by frame timestamp. The first acquire() for a timestamp builds the pyramid
+ * into a free preallocated slot, later ones return the same instance. Every acquire() must be
+ * matched by a release(); a slot is only reused once nobody holds it any more, and then the least
+ * recent frame is evicted first.
+ */
+public class ImagePyramidCache {
+    private static final Logger LOGGER = new Logger();
+
+    // Enough for the previous and current frame of a tracker plus one late registration.
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final int width;
+    private final int height;
+    private final int rowStride;
+
+    private final List<ImagePyramid> pyramids = new ArrayList<ImagePyramid>();
+
+    private long numBuilt;
+    private long numShared;
+
+    public ImagePyramidCache(final int width, final int height, final int rowStride) {
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+        for (int i = 0; i < INITIAL_CAPACITY; ++i) {
+            pyramids.add(new ImagePyramid(width, height));
+        }
+    }
+
+    /**
+     * Returns the pyramid of the frame with the given timestamp, building it from frame, a
+     * luminance plane with this cache's row stride, if it is not cached.
+     */
+    public synchronized ImagePyramid acquire(final byte[] frame, final long timestamp) {
+        ImagePyramid free = null;
+        for (final ImagePyramid pyramid : pyramids) {
+            if (pyramid.timestamp == timestamp) {
+                ++pyramid.refCount;
+                ++numShared;
+                return pyramid;
+            }
+            if (pyramid.refCount == 0 && (free == null || pyramid.timestamp < free.timestamp)) {
+                free = pyramid;
+            }
+        }
+
+        if (free == null) {
+            LOGGER.w("All %d pyramids in use, growing cache", pyramids.size());
+            free = new ImagePyramid(width, height);
+            pyramids.add(free);
+        }
+
+        free.build(frame, rowStride, timestamp);
+        free.refCount = 1;
+        ++numBuilt;
+        return free;
+    }
+
+    /**
+     * Returns the cached pyramid of the frame with the given timestamp, or null if it has not been
+     * built or was evicted. A non-null result must be released like one from acquire().
+     */
+    public synchronized ImagePyramid get(final long timestamp) {
+        for (final ImagePyramid pyramid : pyramids) {
+            if (pyramid.timestamp == timestamp) {
+                ++pyramid.refCount;
+                ++numShared;
+                return pyramid;
+            }
+        }
+        return null;
+    }
+
+    public synchronized void release(final ImagePyramid pyramid) {
+        if (pyramid.refCount <= 0) {
+            throw new IllegalStateException("Pyramid released more often than acquired");
+        }
+        --pyramid.refCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public synchronized String getStatString() {
+        return String.format("Pyramids: %d built, %d shared, %d slots", numBuilt, numShared, pyramids.size());
+    }
+}
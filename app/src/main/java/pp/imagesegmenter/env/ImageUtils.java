@@ -62,14 +62,14 @@ public class ImageUtils {
     }
 
     /**
-     * Saves a Bitmap object to disk for analysis.
+     * Saves a Bitmap object to disk for analysis. This blocks for the whole encoding and write,
+     * per frame paths should use {@link #saveBitmapAsync} instead.
      *
      * @param bitmap The bitmap to save.
      * @param filename The location to save the bitmap to.
      */
     public static void saveBitmap(final Bitmap bitmap, final String filename) {
-        final String root =
-                Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + "imagesegmenter";
+        final String root = getSaveRoot();
         LOGGER.i("Saving %dx%d bitmap to %s.", bitmap.getWidth(), bitmap.getHeight(), root);
         final File myDir = new File(root);
 
@@ -92,6 +92,53 @@ public class ImageUtils {
         }
     }
 
+    /**
+     * File formats for {@link #saveBitmapAsync}.
+     */
+    public enum Encoding {
+        /** A regular PNG image. */
+        PNG,
+        /** Width and height, then the ARGB pixels, all as little endian ints. Cheapest to write. */
+        RAW_ARGB,
+        /** Width and height, then varint run lengths of alternating black and non-black pixels. */
+        RLE_MASK
+    }
+
+    private static BitmapSaveQueue saveQueue;
+
+    private static synchronized BitmapSaveQueue getSaveQueue() {
+        if (saveQueue == null) {
+            saveQueue = new BitmapSaveQueue();
+        }
+        return saveQueue;
+    }
+
+    private static String getSaveRoot() {
+        return Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + "imagesegmenter";
+    }
+
+    /**
+     * Saves a Bitmap object to disk on a background thread. Only the pixels are copied on the
+     * caller's thread, so the bitmap may be reused as soon as this returns. If too many saves are
+     * pending this one is dropped.
+     *
+     * @param bitmap The bitmap to save.
+     * @param filename The location to save the bitmap to.
+     * @param encoding The format to save the bitmap in.
+     * @return false if the save was dropped.
+     */
+    public static boolean saveBitmapAsync(
+            final Bitmap bitmap, final String filename, final Encoding encoding) {
+        return getSaveQueue().offer(bitmap, new File(getSaveRoot(), filename), encoding);
+    }
+
+    /**
+     * Returns how many asynchronous saves were written, dropped and failed.
+     */
+    public static String getSaveStatString() {
+        return getSaveQueue().getStatString();
+    }
+
     // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
     // are normalized to eight bits.
     static final int kMaxChannelValue = 262143;
@@ -22,6 +22,12 @@ import java.util.Set;
 
 /**
  * Wrapper for the platform log function, allows convenient message prefixing and log disabling.
+ *
+ * Messages are only formatted once the level check passed. For the per frame paths there are
+ * overloads taking up to three arguments without a varargs array, and primitive ones for numbers,
+ * so that a disabled call allocates nothing. Callers should pass the pieces of a message as
+ * arguments rather than concatenating them, and keep a Logger per class since resolving the
+ * caller's name walks the stack.
  */
 public final class Logger {
     private static final String DEFAULT_TAG = "imagesegmenter";
@@ -41,6 +47,9 @@ public final class Logger {
     private final String messagePrefix;
     private int minLogLevel = DEFAULT_MIN_LOG_LEVEL;
 
+    // Bit per log level that passes isLoggable(), so that checks don't go to the platform.
+    private int loggableLevels;
+
     /**
      * Creates a Logger using the class name as the message prefix.
      *
@@ -71,6 +80,7 @@ public final class Logger {
         this.tag = tag;
         final String prefix = messagePrefix == null ? getCallerSimpleName() : messagePrefix;
         this.messagePrefix = (prefix.length() > 0) ? prefix + ": " : prefix;
+        updateLoggableLevels();
     }
 
     /**
@@ -85,15 +95,30 @@ public final class Logger {
      */
     public Logger(final int minLogLevel) {
         this(DEFAULT_TAG, null);
-        this.minLogLevel = minLogLevel;
+        setMinLogLevel(minLogLevel);
     }
 
     public void setMinLogLevel(final int minLogLevel) {
         this.minLogLevel = minLogLevel;
+        updateLoggableLevels();
+    }
+
+    /**
+     * Re-reads the platform's log level of this logger's tag, which is otherwise only looked up
+     * when the logger is created or its minimum level changes.
+     */
+    public void updateLoggableLevels() {
+        int levels = 0;
+        for (int level = Log.VERBOSE; level <= Log.ASSERT; ++level) {
+            if (level >= minLogLevel || Log.isLoggable(tag, level)) {
+                levels |= 1 << level;
+            }
+        }
+        loggableLevels = levels;
     }
 
     public boolean isLoggable(final int logLevel) {
-        return logLevel >= minLogLevel || Log.isLoggable(tag, logLevel);
+        return (loggableLevels & (1 << logLevel)) != 0;
     }
 
     /**
@@ -117,8 +142,7 @@ public final class Logger {
             final String className = elem.getClassName();
             if (!IGNORED_CLASS_NAMES.contains(className)) {
                 // We're only interested in the simple name of the class, not the complete package.
-                final String[] classParts = className.split("\\.");
-                return classParts[classParts.length - 1];
+                return className.substring(className.lastIndexOf('.') + 1);
             }
         }
 
@@ -141,6 +165,48 @@ public final class Logger {
         }
     }
 
+    public void v(final String format, final long arg) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(tag, toMessage(format, arg));
+        }
+    }
+
+    public void v(final String format, final long arg1, final long arg2) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(tag, toMessage(format, arg1, arg2));
+        }
+    }
+
+    public void v(final String format, final double arg) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(tag, toMessage(format, arg));
+        }
+    }
+
+    public void v(final String format, final Object arg) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(tag, toMessage(format, arg));
+        }
+    }
+
+    public void v(final String format, final Object arg, final long value) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(tag, toMessage(format, arg, value));
+        }
+    }
+
+    public void v(final String format, final Object arg1, final Object arg2) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(tag, toMessage(format, arg1, arg2));
+        }
+    }
+
+    public void v(final String format, final Object arg1, final Object arg2, final Object arg3) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(tag, toMessage(format, arg1, arg2, arg3));
+        }
+    }
+
     public void d(final String format, final Object... args) {
         if (isLoggable(Log.DEBUG)) {
             Log.d(tag, toMessage(format, args));
@@ -153,6 +219,48 @@ public final class Logger {
         }
     }
 
+    public void d(final String format, final long arg) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(tag, toMessage(format, arg));
+        }
+    }
+
+    public void d(final String format, final long arg1, final long arg2) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(tag, toMessage(format, arg1, arg2));
+        }
+    }
+
+    public void d(final String format, final double arg) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(tag, toMessage(format, arg));
+        }
+    }
+
+    public void d(final String format, final Object arg) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(tag, toMessage(format, arg));
+        }
+    }
+
+    public void d(final String format, final Object arg, final long value) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(tag, toMessage(format, arg, value));
+        }
+    }
+
+    public void d(final String format, final Object arg1, final Object arg2) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(tag, toMessage(format, arg1, arg2));
+        }
+    }
+
+    public void d(final String format, final Object arg1, final Object arg2, final Object arg3) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(tag, toMessage(format, arg1, arg2, arg3));
+        }
+    }
+
     public void i(final String format, final Object... args) {
         if (isLoggable(Log.INFO)) {
             Log.i(tag, toMessage(format, args));
@@ -165,6 +273,48 @@ public final class Logger {
         }
     }
 
+    public void i(final String format, final long arg) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(tag, toMessage(format, arg));
+        }
+    }
+
+    public void i(final String format, final long arg1, final long arg2) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(tag, toMessage(format, arg1, arg2));
+        }
+    }
+
+    public void i(final String format, final double arg) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(tag, toMessage(format, arg));
+        }
+    }
+
+    public void i(final String format, final Object arg) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(tag, toMessage(format, arg));
+        }
+    }
+
+    public void i(final String format, final Object arg, final long value) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(tag, toMessage(format, arg, value));
+        }
+    }
+
+    public void i(final String format, final Object arg1, final Object arg2) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(tag, toMessage(format, arg1, arg2));
+        }
+    }
+
+    public void i(final String format, final Object arg1, final Object arg2, final Object arg3) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(tag, toMessage(format, arg1, arg2, arg3));
+        }
+    }
+
     public void w(final String format, final Object... args) {
         if (isLoggable(Log.WARN)) {
             Log.w(tag, toMessage(format, args));
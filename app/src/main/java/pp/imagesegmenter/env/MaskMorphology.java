@@ -0,0 +1,161 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.env;
+
+import java.util.Arrays;
+
+/**
+ * Erosion, dilation, opening and closing of masks with a square structuring element of
+ * (2 * radius + 1) pixels a side.
+ *
+ * Byte masks hold one unsigned byte per pixel in row major order, so grey level masks are
+ * filtered by min and max as well. The square element is separable, so every operation is a pass
+ * over the rows followed by one over the columns. Each pass uses the van Herk/Gil-Werman running
+ * extremes: the line is split into blocks of window length, and the extreme of any window is that
+ * of a suffix of one block and a prefix of the next. This costs three comparisons per pixel
+ * whatever the radius. Pixels outside the mask never change the result, so erosion does not eat
+ * into the mask from the borders.
+ *
+ * All operations work in place and reuse scratch arrays, a morphology is not thread safe.
+ */
+public class MaskMorphology {
+    private final int width;
+    private final int height;
+
+    // One line padded by radius on both sides, and its running extremes from the start and from
+    // the end of each block.
+    private int[] line = new int[0];
+    private int[] forward = new int[0];
+    private int[] backward = new int[0];
+
+    private final byte[] values;
+
+    public MaskMorphology(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+        this.values = new byte[width * height];
+    }
+
+    /** Replaces every pixel by the minimum within radius. */
+    public void erode(final byte[] mask, final int radius) {
+        filter(mask, radius, false);
+    }
+
+    /** Replaces every pixel by the maximum within radius. */
+    public void dilate(final byte[] mask, final int radius) {
+        filter(mask, radius, true);
+    }
+
+    /** Erodes, then dilates, removing specks smaller than the structuring element. */
+    public void open(final byte[] mask, final int radius) {
+        filter(mask, radius, false);
+        filter(mask, radius, true);
+    }
+
+    /** Dilates, then erodes, filling holes smaller than the structuring element. */
+    public void close(final byte[] mask, final int radius) {
+        filter(mask, radius, true);
+        filter(mask, radius, false);
+    }
+
+    public void erode(final BinaryMask mask, final int radius) {
+        mask.toBytes(values);
+        erode(values, radius);
+        mask.setFromBytes(values);
+    }
+
+    public void dilate(final BinaryMask mask, final int radius) {
+        mask.toBytes(values);
+        dilate(values, radius);
+        mask.setFromBytes(values);
+    }
+
+    public void open(final BinaryMask mask, final int radius) {
+        mask.toBytes(values);
+        open(values, radius);
+        mask.setFromBytes(values);
+    }
+
+    public void close(final BinaryMask mask, final int radius) {
+        mask.toBytes(values);
+        close(values, radius);
+        mask.setFromBytes(values);
+    }
+
+    private void filter(final byte[] mask, final int radius, final boolean max) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("Negative radius " + radius);
+        }
+        if (mask.length < width * height) {
+            throw new IllegalArgumentException(
+                    "Mask holds " + mask.length + " pixels, expected " + width * height);
+        }
+        if (radius == 0) {
+            return;
+        }
+        final int padded = Math.max(width, height) + 2 * radius;
+        if (line.length < padded) {
+            line = new int[padded];
+            forward = new int[padded];
+            backward = new int[padded];
+        }
+
+        for (int y = 0; y < height; ++y) {
+            filterLine(mask, y * width, 1, width, radius, max);
+        }
+        for (int x = 0; x < width; ++x) {
+            filterLine(mask, x, width, height, radius, max);
+        }
+    }
+
+    private void filterLine(
+            final byte[] mask, final int offset, final int stride, final int length,
+            final int radius, final boolean max) {
+        final int window = 2 * radius + 1;
+        final int padded = length + 2 * radius;
+        // Neither the minimum nor the maximum is changed by the padding.
+        final int identity = max ? 0 : 0xFF;
+
+        Arrays.fill(line, 0, radius, identity);
+        for (int i = 0, index = offset; i < length; ++i, index += stride) {
+            line[radius + i] = mask[index] & 0xFF;
+        }
+        Arrays.fill(line, radius + length, padded, identity);
+
+        for (int start = 0; start < padded; start += window) {
+            final int end = Math.min(start + window, padded);
+            int extreme = identity;
+            for (int i = start; i < end; ++i) {
+                extreme = max ? Math.max(extreme, line[i]) : Math.min(extreme, line[i]);
+                forward[i] = extreme;
+            }
+            extreme = identity;
+            for (int i = end - 1; i >= start; --i) {
+                extreme = max ? Math.max(extreme, line[i]) : Math.min(extreme, line[i]);
+                backward[i] = extreme;
+            }
+        }
+
+        // The window of pixel i is [i, i + window) of the padded line.
+        for (int i = 0, index = offset; i < length; ++i, index += stride) {
+            final int last = i + window - 1;
+            mask[index] =
+                    (byte) (max
+                            ? Math.max(backward[i], forward[last])
+                            : Math.min(backward[i], forward[last]));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.source;
+
+import android.media.Image;
+import android.media.Image.Plane;
+import android.media.ImageReader;
+import android.media.ImageReader.OnImageAvailableListener;
+
+import java.nio.ByteBuffer;
+
+import pp.imagesegmenter.env.FrameStats;
+import pp.imagesegmenter.env.Logger;
+
+/**
+ * Delivers the frames of a Camera2 {@link ImageReader}. Register it as the reader's
+ * {@link OnImageAvailableListener}; the camera itself is opened and closed elsewhere.
+ *
+ * The planes are copied out of the image, but the image is only closed when the frame is
+ * released, so the reader's buffer count still bounds how far the camera can run ahead.
+ */
+public class Camera2FrameSource implements FrameSource, OnImageAvailableListener {
+    private static final Logger LOGGER = new Logger();
+
+    private final FrameStats frameStats;
+    private final Frame frame = new Frame();
+    private final Runnable releaseFrame = this::releaseFrame;
+
+    private volatile Listener listener;
+    private volatile int rotation;
+
+    // The image behind the frame while it is held by the listener.
+    private volatile Image image;
+
+    public Camera2FrameSource(final FrameStats frameStats) {
+        this.frameStats = frameStats;
+    }
+
+    /** Sets the rotation reported with every frame from now on. */
+    public void setRotation(final int rotation) {
+        this.rotation = rotation;
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void stop() {
+        listener = null;
+    }
+
+    @Override
+    public void onImageAvailable(final ImageReader reader) {
+        final Image image = acquireLatestImage(reader);
+        if (image == null) {
+            return;
+        }
+        final Listener listener = this.listener;
+        if (listener == null) {
+            image.close();
+            return;
+        }
+        if (this.image != null) {
+            image.close();
+            frameStats.onDropped(FrameStats.Drop.CAMERA_BUSY);
+            return;
+        }
+
+        final Plane[] planes = image.getPlanes();
+        fillBytes(planes, frame.planes);
+        frame.width = image.getWidth();
+        frame.height = image.getHeight();
+        frame.yRowStride = planes[0].getRowStride();
+        frame.uvRowStride = planes[1].getRowStride();
+        frame.uvPixelStride = planes[1].getPixelStride();
+        frame.timestampNs = image.getTimestamp();
+        frame.rotation = rotation;
+        frame.onRelease = releaseFrame;
+        this.image = image;
+        listener.onFrame(frame);
+    }
+
+    private void releaseFrame() {
+        final Image image = this.image;
+        this.image = null;
+        image.close();
+    }
+
+    /**
+     * Same as {@link ImageReader#acquireLatestImage()}, but accounts for the frames that were
+     * skipped in favor of the newest one.
+     */
+    private Image acquireLatestImage(final ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image == null) {
+            return null;
+        }
+        try {
+            Image next;
+            while ((next = reader.acquireNextImage()) != null) {
+                image.close();
+                frameStats.onDropped(FrameStats.Drop.REPLACED);
+                image = next;
+            }
+        } catch (final IllegalStateException e) {
+            // All of the reader's buffers are acquired; the newest one we hold is the latest.
+        }
+        return image;
+    }
+
+    private static void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
+        // Because of the variable row stride it's not possible to know in
+        // advance the actual necessary dimensions of the yuv planes.
+        for (int i = 0; i < planes.length; ++i) {
+            final ByteBuffer buffer = planes[i].getBuffer();
+            if (yuvBytes[i] == null || yuvBytes[i].length < buffer.capacity()) {
+                LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
+                yuvBytes[i] = new byte[buffer.capacity()];
+            }
+            buffer.get(yuvBytes[i], 0, buffer.remaining());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.source;
+
+/**
+ * A YUV 420 frame delivered by a {@link FrameSource}.
+ *
+ * The Y plane holds a byte per pixel in rows of getYRowStride() bytes. The U and V planes are
+ * subsampled by two both ways, in rows of getUvRowStride() bytes with getUvPixelStride() bytes
+ * from one pixel to the next, which describes planar as well as interleaved chroma. The frame and
+ * its planes belong to the source and are only valid until {@link #release()}.
+ */
+public final class Frame {
+    final byte[][] planes = new byte[3][];
+    int width;
+    int height;
+    int yRowStride;
+    int uvRowStride;
+    int uvPixelStride;
+    long timestampNs;
+    int rotation;
+
+    // Hands the frame back to its source, cleared once run.
+    Runnable onRelease;
+
+    Frame() {}
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /** Returns plane 0, 1 or 2 for Y, U or V. */
+    public byte[] getPlane(final int plane) {
+        return planes[plane];
+    }
+
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    public int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    public int getUvPixelStride() {
+        return uvPixelStride;
+    }
+
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /** Returns the clockwise rotation in degrees that turns the frame upright. */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * Hands the frame back to its source, which may reuse it for the next frame. Further calls have
+     * no effect.
+     */
+    public void release() {
+        final Runnable onRelease = this.onRelease;
+        this.onRelease = null;
+        if (onRelease != null) {
+            onRelease.run();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.source;
+
+/**
+ * Delivers frames to the pipeline, from the camera or from elsewhere.
+ *
+ * A source hands out one frame at a time: until the listener releases the frame it was given,
+ * newer frames are dropped and counted as {@link pp.imagesegmenter.env.FrameStats.Drop#CAMERA_BUSY}.
+ */
+public interface FrameSource {
+    /**
+     * Receives the frames of a source.
+     */
+    interface Listener {
+        /**
+         * Called on the source's thread for every frame, which must be released once the listener
+         * is done with it, on this thread or any other.
+         */
+        void onFrame(Frame frame);
+    }
+
+    void start(Listener listener);
+
+    void stop();
+}
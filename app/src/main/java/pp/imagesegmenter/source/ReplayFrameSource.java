@@ -0,0 +1,78 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.source;
+
+import pp.imagesegmenter.env.FrameStats;
+import pp.imagesegmenter.env.FrameStore;
+
+/**
+ * Replays the frames of an RGB {@link FrameStore} at a fixed rate, looping over those retained,
+ * converted to YUV 420 with the BT.601 integer coefficients. Nothing is delivered while the store
+ * is empty.
+ */
+public class ReplayFrameSource extends TimedFrameSource {
+    private final FrameStore store;
+    private final int[] pixels;
+
+    /**
+     * @param frameStats where frames dropped while the previous one is held are counted.
+     */
+    public ReplayFrameSource(
+            final FrameStore store, final float framesPerSecond, final FrameStats frameStats) {
+        super(store.getWidth(), store.getHeight(), framesPerSecond, frameStats);
+        this.store = store;
+        this.pixels = new int[store.getWidth() * store.getHeight()];
+    }
+
+    @Override
+    boolean fill(final Frame frame, final long index) {
+        // Frames may be dropped from the store between these calls.
+        final long first = store.getFirstFrame();
+        final long count = store.getEndFrame() - first;
+        if (count <= 0) {
+            return false;
+        }
+        try {
+            store.read(first + index % count, pixels);
+        } catch (final IndexOutOfBoundsException e) {
+            return false;
+        }
+
+        final int width = frame.width;
+        final int height = frame.height;
+        final byte[] y = frame.planes[0];
+        final byte[] u = frame.planes[1];
+        final byte[] v = frame.planes[2];
+        for (int row = 0; row < height; ++row) {
+            final int base = row * width;
+            final int uvBase = (row >> 1) * frame.uvRowStride;
+            for (int col = 0; col < width; ++col) {
+                final int pixel = pixels[base + col];
+                final int r = (pixel >> 16) & 0xFF;
+                final int g = (pixel >> 8) & 0xFF;
+                final int b = pixel & 0xFF;
+                y[base + col] = (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+                // Chroma is sampled at the top left pixel of every 2x2 block.
+                if (((row | col) & 1) == 0) {
+                    final int uvIndex = uvBase + (col >> 1);
+                    u[uvIndex] = (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+                    v[uvIndex] = (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,105 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.source;
+
+import java.util.Arrays;
+
+import pp.imagesegmenter.env.FrameStats;
+
+/**
+ * Generates frames of a textured stream flowing down the middle of a textured background, for
+ * load testing the pipeline at any resolution and frame rate without a camera.
+ *
+ * The stream is a bright band a third of the width wide whose texture moves down by the given
+ * number of pixels per frame while the background stays still, which gives the tracker features
+ * to follow and the models something to segment. Only the luminance changes between frames.
+ */
+public class SyntheticFrameSource extends TimedFrameSource {
+    // Side of the square cells the texture is made of, a power of two.
+    private static final int CELL_SHIFT = 2;
+
+    private static final int BACKGROUND_LUMINANCE = 64;
+    private static final int STREAM_LUMINANCE = 160;
+    // Largest amount the texture adds to the base luminance.
+    private static final int TEXTURE_RANGE = 64;
+
+    private static final byte STREAM_U = (byte) 160;
+    private static final byte STREAM_V = (byte) 96;
+    private static final byte NEUTRAL_CHROMA = (byte) 128;
+
+    private final int width;
+    private final int height;
+    private final float motionPerFrame;
+    private final int streamLeft;
+    private final int streamRight;
+
+    /**
+     * @param motionPerFrame pixels the stream moves down per frame.
+     * @param frameStats where frames dropped while the previous one is held are counted.
+     */
+    public SyntheticFrameSource(
+            final int width, final int height, final float framesPerSecond,
+            final float motionPerFrame, final FrameStats frameStats) {
+        super(width, height, framesPerSecond, frameStats);
+        this.width = width;
+        this.height = height;
+        this.motionPerFrame = motionPerFrame;
+        this.streamLeft = width / 3;
+        this.streamRight = 2 * width / 3;
+    }
+
+    @Override
+    boolean fill(final Frame frame, final long index) {
+        final byte[] y = frame.planes[0];
+        final int offset = (int) (index * motionPerFrame);
+        for (int row = 0; row < height; ++row) {
+            final int base = row * width;
+            final int backgroundCell = row >> CELL_SHIFT;
+            final int streamCell = (row - offset) >> CELL_SHIFT;
+            for (int col = 0; col < width; ++col) {
+                final boolean inStream = col >= streamLeft && col < streamRight;
+                final int value =
+                        inStream
+                                ? STREAM_LUMINANCE + texture(col >> CELL_SHIFT, streamCell)
+                                : BACKGROUND_LUMINANCE + texture(col >> CELL_SHIFT, backgroundCell);
+                y[base + col] = (byte) Math.min(255, value);
+            }
+        }
+
+        // The chroma never changes, so it is only written for the first frame.
+        if (index == 0) {
+            final int uvWidth = frame.uvRowStride;
+            final byte[] u = frame.planes[1];
+            final byte[] v = frame.planes[2];
+            Arrays.fill(u, NEUTRAL_CHROMA);
+            Arrays.fill(v, NEUTRAL_CHROMA);
+            for (int base = 0; base < u.length; base += uvWidth) {
+                Arrays.fill(u, base + streamLeft / 2, base + (streamRight + 1) / 2, STREAM_U);
+                Arrays.fill(v, base + streamLeft / 2, base + (streamRight + 1) / 2, STREAM_V);
+            }
+        }
+        return true;
+    }
+
+    /** Returns a pseudo random value in [0, TEXTURE_RANGE) for a cell. */
+    private static int texture(final int cellX, final int cellY) {
+        int hash = cellX * 73856093 ^ cellY * 19349663;
+        hash ^= hash >>> 13;
+        hash *= 0x5bd1e995;
+        hash ^= hash >>> 15;
+        return (hash & 0x7FFFFFFF) % TEXTURE_RANGE;
+    }
+}
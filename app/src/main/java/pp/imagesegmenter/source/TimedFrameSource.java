@@ -0,0 +1,121 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.source;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import pp.imagesegmenter.env.FrameStats;
+
+/**
+ * Delivers generated frames at a fixed rate from a daemon thread of its own, in planar YUV 420.
+ * Frames are stamped with their nominal time, the start time plus their index times the period,
+ * so that runs at the same rate see the same timestamps however late the thread gets to them.
+ *
+ * Only plain Java is used here, subclasses that stay clear of Android can run on a JVM.
+ */
+abstract class TimedFrameSource implements FrameSource {
+    private final long periodNs;
+    private final FrameStats frameStats;
+
+    private final Frame frame = new Frame();
+    private final AtomicBoolean frameHeld = new AtomicBoolean();
+    private final Runnable releaseFrame = () -> frameHeld.set(false);
+
+    private ScheduledExecutorService executor;
+    private long startNs;
+    private long frameIndex;
+
+    TimedFrameSource(
+            final int width, final int height, final float framesPerSecond,
+            final FrameStats frameStats) {
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive, got " + framesPerSecond);
+        }
+        this.periodNs = (long) (1.0e9 / framesPerSecond);
+        this.frameStats = frameStats;
+
+        final int uvWidth = (width + 1) / 2;
+        final int uvHeight = (height + 1) / 2;
+        frame.width = width;
+        frame.height = height;
+        frame.yRowStride = width;
+        frame.uvRowStride = uvWidth;
+        frame.uvPixelStride = 1;
+        frame.planes[0] = new byte[width * height];
+        frame.planes[1] = new byte[uvWidth * uvHeight];
+        frame.planes[2] = new byte[uvWidth * uvHeight];
+    }
+
+    /**
+     * Starts delivering frames. A listener that throws stops the source.
+     */
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (executor != null) {
+            throw new IllegalStateException("Already started");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, getClass().getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        startNs = System.nanoTime();
+        frameIndex = 0;
+        executor.scheduleAtFixedRate(() -> deliver(listener), 0, periodNs, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Delivers the next frame to listener, or counts it as dropped if the last one is still held.
+     * Called at the frame rate once started, and by tests that step a source by hand instead.
+     */
+    void deliver(final Listener listener) {
+        final long index = frameIndex++;
+        if (!frameHeld.compareAndSet(false, true)) {
+            frameStats.onDropped(FrameStats.Drop.CAMERA_BUSY);
+            return;
+        }
+        if (!fill(frame, index)) {
+            frameHeld.set(false);
+            return;
+        }
+        frame.timestampNs = startNs + index * periodNs;
+        frame.onRelease = releaseFrame;
+        try {
+            listener.onFrame(frame);
+        } catch (final RuntimeException e) {
+            frame.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes frame number index into the frame's planes.
+     *
+     * @return false to skip the frame.
+     */
+    abstract boolean fill(Frame frame, long index);
+}
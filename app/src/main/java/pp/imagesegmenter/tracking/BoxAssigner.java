@@ -0,0 +1,340 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.tracking;
+
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/**
+ * Matches a batch of detections against the currently tracked boxes in one step.
+ *
+ * Detections first go through non-max suppression: in order of decreasing score, a detection is
+ * dropped if it overlaps an already kept one by more than the overlap threshold. Every remaining
+ * detection/track pair above the threshold is then collected, and pairs are matched greedily by
+ * decreasing intersection over union so that each detection continues at most one track and vice
+ * versa. Tracks that overlap a kept detection without being matched to it are duplicates.
+ *
+ * Tracks may carry a Kalman gate. A gated track only continues detections within the gate's
+ * Mahalanobis distance, but also ones overlapping it by less than the threshold, so that tracks
+ * predicted across several frames without a detection can still be picked up again.
+ *
+ * Candidate pairs come from a uniform grid over the frame, so only boxes sharing a cell are ever
+ * compared. All state lives in primitive arrays that grow on demand and are reused across batches.
+ */
+final class BoxAssigner {
+    private static final int CELL_SIZE = 64;
+
+    private final BoxGrid trackGrid;
+    private final BoxGrid detectionGrid;
+
+    private float[] trackBoxes = new float[0];
+    private float[] trackMeans = new float[0];
+    private float[] trackVariances = new float[0];
+    private boolean[] trackGated = new boolean[0];
+    private int numTracks;
+
+    private float[] detectionBoxes = new float[0];
+    private float[] detectionScores = new float[0];
+    private int numDetections;
+
+    private boolean[] detectionKept = new boolean[0];
+    private int[] detectionMatch = new int[0];
+    private boolean[] trackMatched = new boolean[0];
+    private boolean[] trackOverlapped = new boolean[0];
+
+    private long[] sortKeys = new long[0];
+    private int[] pairDetections = new int[0];
+    private int[] pairTracks = new int[0];
+    private int[] candidates = new int[0];
+
+    BoxAssigner(final int frameWidth, final int frameHeight) {
+        trackGrid = new BoxGrid(frameWidth, frameHeight, CELL_SIZE);
+        detectionGrid = new BoxGrid(frameWidth, frameHeight, CELL_SIZE);
+    }
+
+    void reset(final int numTracks, final int numDetections) {
+        this.numTracks = numTracks;
+        this.numDetections = numDetections;
+        if (trackBoxes.length < 4 * numTracks) {
+            trackBoxes = new float[4 * numTracks];
+            trackMeans = new float[KalmanBoxFilter.NUM_AXES * numTracks];
+            trackVariances = new float[KalmanBoxFilter.NUM_AXES * numTracks];
+            trackGated = new boolean[numTracks];
+            trackMatched = new boolean[numTracks];
+            trackOverlapped = new boolean[numTracks];
+        }
+        if (detectionBoxes.length < 4 * numDetections) {
+            detectionBoxes = new float[4 * numDetections];
+            detectionScores = new float[numDetections];
+            detectionKept = new boolean[numDetections];
+            detectionMatch = new int[numDetections];
+        }
+        final int maxItems = Math.max(numTracks, numDetections);
+        if (candidates.length < maxItems) {
+            candidates = new int[maxItems];
+        }
+        if (sortKeys.length < numDetections) {
+            sortKeys = new long[numDetections];
+        }
+    }
+
+    void setTrack(final int index, final RectF position) {
+        set(trackBoxes, index, position);
+        trackGated[index] = false;
+    }
+
+    /**
+     * Sets a track at the filter's current estimate, gated for detections with the given
+     * measurement noise factor.
+     */
+    void setTrack(
+            final int index, final RectF position, final KalmanBoxFilter filter, final float noiseFactor) {
+        set(trackBoxes, index, position);
+        filter.getGate(trackMeans, trackVariances, KalmanBoxFilter.NUM_AXES * index, noiseFactor);
+        trackGated[index] = true;
+    }
+
+    void setDetection(final int index, final RectF position, final float score) {
+        set(detectionBoxes, index, position);
+        detectionScores[index] = score;
+    }
+
+    private static void set(final float[] boxes, final int index, final RectF position) {
+        boxes[4 * index] = position.left;
+        boxes[4 * index + 1] = position.top;
+        boxes[4 * index + 2] = position.right;
+        boxes[4 * index + 3] = position.bottom;
+    }
+
+    void assign(final float maxOverlap) {
+        suppressDetections(maxOverlap);
+
+        // Collect overlapping pairs through the track grid.
+        trackGrid.clear(numTracks);
+        for (int t = 0; t < numTracks; ++t) {
+            trackGrid.insert(t, trackBoxes, t);
+            trackMatched[t] = false;
+            trackOverlapped[t] = false;
+        }
+
+        int numPairs = 0;
+        for (int d = 0; d < numDetections; ++d) {
+            detectionMatch[d] = -1;
+            if (!detectionKept[d]) {
+                continue;
+            }
+            final int numCandidates = trackGrid.query(detectionBoxes, d, candidates);
+            for (int c = 0; c < numCandidates; ++c) {
+                final int t = candidates[c];
+                final float iou = intersectionOverUnion(detectionBoxes, d, trackBoxes, t);
+                final boolean overlapped = iou > maxOverlap;
+                final boolean matchable;
+                if (trackGated[t]) {
+                    matchable = iou > 0.0f
+                            && KalmanBoxFilter.distanceSquared(
+                                    detectionBoxes, d, trackMeans, trackVariances,
+                                    KalmanBoxFilter.NUM_AXES * t)
+                            <= KalmanBoxFilter.GATE_THRESHOLD;
+                } else {
+                    matchable = overlapped;
+                }
+                trackOverlapped[t] |= overlapped;
+                if (!matchable) {
+                    continue;
+                }
+                if (numPairs == pairDetections.length) {
+                    final int capacity = Math.max(16, 2 * numPairs);
+                    pairDetections = Arrays.copyOf(pairDetections, capacity);
+                    pairTracks = Arrays.copyOf(pairTracks, capacity);
+                    sortKeys = Arrays.copyOf(sortKeys, Math.max(capacity, sortKeys.length));
+                }
+                pairDetections[numPairs] = d;
+                pairTracks[numPairs] = t;
+                sortKeys[numPairs] = sortKey(iou, numPairs);
+                ++numPairs;
+            }
+        }
+
+        // Greedy global matching, best overlap first.
+        Arrays.sort(sortKeys, 0, numPairs);
+        for (int k = numPairs - 1; k >= 0; --k) {
+            final int pair = (int) sortKeys[k];
+            final int d = pairDetections[pair];
+            final int t = pairTracks[pair];
+            if (detectionMatch[d] < 0 && !trackMatched[t]) {
+                detectionMatch[d] = t;
+                trackMatched[t] = true;
+            }
+        }
+    }
+
+    /**
+     * Keeps detections in order of decreasing score unless they overlap one already kept.
+     */
+    private void suppressDetections(final float maxOverlap) {
+        for (int d = 0; d < numDetections; ++d) {
+            sortKeys[d] = sortKey(detectionScores[d], d);
+            detectionKept[d] = false;
+        }
+        Arrays.sort(sortKeys, 0, numDetections);
+
+        detectionGrid.clear(numDetections);
+        for (int k = numDetections - 1; k >= 0; --k) {
+            final int d = (int) sortKeys[k];
+            final int numCandidates = detectionGrid.query(detectionBoxes, d, candidates);
+            boolean keep = true;
+            for (int c = 0; c < numCandidates && keep; ++c) {
+                keep = intersectionOverUnion(detectionBoxes, d, detectionBoxes, candidates[c])
+                        <= maxOverlap;
+            }
+            if (keep) {
+                detectionKept[d] = true;
+                detectionGrid.insert(d, detectionBoxes, d);
+            }
+        }
+    }
+
+    /**
+     * Packs a non-negative score and an index into a long whose natural order is that of the
+     * score. Positive IEEE floats compare like their bit patterns.
+     */
+    private static long sortKey(final float score, final int index) {
+        return ((long) Float.floatToIntBits(Math.max(0.0f, score)) << 32) | index;
+    }
+
+    private static float intersectionOverUnion(
+            final float[] a, final int i, final float[] b, final int j) {
+        final float left = Math.max(a[4 * i], b[4 * j]);
+        final float top = Math.max(a[4 * i + 1], b[4 * j + 1]);
+        final float right = Math.min(a[4 * i + 2], b[4 * j + 2]);
+        final float bottom = Math.min(a[4 * i + 3], b[4 * j + 3]);
+        if (right <= left || bottom <= top) {
+            return 0.0f;
+        }
+        final float intersection = (right - left) * (bottom - top);
+        final float areaA = (a[4 * i + 2] - a[4 * i]) * (a[4 * i + 3] - a[4 * i + 1]);
+        final float areaB = (b[4 * j + 2] - b[4 * j]) * (b[4 * j + 3] - b[4 * j + 1]);
+        return intersection / (areaA + areaB - intersection);
+    }
+
+    boolean isDetectionKept(final int index) {
+        return detectionKept[index];
+    }
+
+    /** Returns the track a kept detection continues, or -1 if it starts a new one. */
+    int getMatchedTrack(final int index) {
+        return detectionMatch[index];
+    }
+
+    boolean isTrackMatched(final int index) {
+        return trackMatched[index];
+    }
+
+    /** Returns whether the track overlaps a kept detection, whether or not it was matched. */
+    boolean isTrackOverlapped(final int index) {
+        return trackOverlapped[index];
+    }
+
+    /**
+     * Buckets boxes into fixed size cells covering the frame. Boxes reaching past the frame are
+     * clamped into the border cells.
+     */
+    private static final class BoxGrid {
+        private final int cellSize;
+        private final int cols;
+        private final int rows;
+
+        private final int[][] cells;
+        private final int[] cellCounts;
+
+        // Per-item marker of the last query that returned it, to report each item once.
+        private int[] seen = new int[0];
+        private int queryId;
+
+        BoxGrid(final int width, final int height, final int cellSize) {
+            this.cellSize = cellSize;
+            this.cols = Math.max(1, (width + cellSize - 1) / cellSize);
+            this.rows = Math.max(1, (height + cellSize - 1) / cellSize);
+            this.cells = new int[cols * rows][4];
+            this.cellCounts = new int[cols * rows];
+        }
+
+        void clear(final int capacity) {
+            Arrays.fill(cellCounts, 0);
+            if (seen.length < capacity) {
+                seen = new int[capacity];
+                queryId = 0;
+            }
+        }
+
+        private int col(final float x) {
+            return Math.max(0, Math.min(cols - 1, (int) Math.floor(x / cellSize)));
+        }
+
+        private int row(final float y) {
+            return Math.max(0, Math.min(rows - 1, (int) Math.floor(y / cellSize)));
+        }
+
+        void insert(final int item, final float[] boxes, final int index) {
+            final int col0 = col(boxes[4 * index]);
+            final int row0 = row(boxes[4 * index + 1]);
+            final int col1 = col(boxes[4 * index + 2]);
+            final int row1 = row(boxes[4 * index + 3]);
+            for (int r = row0; r <= row1; ++r) {
+                for (int c = col0; c <= col1; ++c) {
+                    final int cell = r * cols + c;
+                    if (cellCounts[cell] == cells[cell].length) {
+                        cells[cell] = Arrays.copyOf(cells[cell], 2 * cells[cell].length);
+                    }
+                    cells[cell][cellCounts[cell]++] = item;
+                }
+            }
+        }
+
+        /**
+         * Writes every item sharing a cell with the given box into out, each once.
+         *
+         * @return the number of items written.
+         */
+        int query(final float[] boxes, final int index, final int[] out) {
+            if (++queryId == Integer.MAX_VALUE) {
+                Arrays.fill(seen, 0);
+                queryId = 1;
+            }
+            final int col0 = col(boxes[4 * index]);
+            final int row0 = row(boxes[4 * index + 1]);
+            final int col1 = col(boxes[4 * index + 2]);
+            final int row1 = row(boxes[4 * index + 3]);
+
+            int count = 0;
+            for (int r = row0; r <= row1; ++r) {
+                for (int c = col0; c <= col1; ++c) {
+                    final int cell = r * cols + c;
+                    final int[] items = cells[cell];
+                    for (int i = 0; i < cellCounts[cell]; ++i) {
+                        final int item = items[i];
+                        if (seen[item] != queryId) {
+                            seen[item] = queryId;
+                            out[count++] = item;
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.tracking;
+
+import android.graphics.RectF;
+
+/**
+ * Constant velocity Kalman filter over a box's center x, center y, width and height.
+ *
+ * The four axes are modelled independently, each with a position and a velocity per frame, so
+ * the state is eight floats and the covariance is one symmetric 2x2 block per axis. Noise scales
+ * with the box height so that near and far objects are treated alike.
+ *
+ * Timestamps are frame numbers. predict() may skip frames, the velocity is then applied once per
+ * skipped frame.
+ */
+final class KalmanBoxFilter {
+    static final int NUM_AXES = 4;
+
+    /**
+     * 95% quantile of the chi-square distribution with four degrees of freedom. A measurement
+     * whose squared Mahalanobis distance exceeds this is unlikely to belong to the track.
+     */
+    static final float GATE_THRESHOLD = 9.4877f;
+
+    // Standard deviations relative to the box height, per frame for the process noise.
+    private static final float POSITION_NOISE = 1.0f / 20.0f;
+    private static final float VELOCITY_NOISE = 1.0f / 160.0f;
+
+    // Floor for the height used to scale noise, so that degenerate boxes keep some uncertainty.
+    private static final float MIN_NOISE_SCALE = 1.0f;
+
+    // Position and velocity per axis: cx, cy, w, h, then vcx, vcy, vw, vh.
+    private final float[] state = new float[2 * NUM_AXES];
+
+    // Per axis the variance of the position, the covariance and the variance of the velocity.
+    private final float[] covariance = new float[3 * NUM_AXES];
+
+    private long timestamp;
+
+    KalmanBoxFilter(final RectF box, final long timestamp) {
+        reset(box, timestamp);
+    }
+
+    /**
+     * Restarts the filter at the given box with unknown velocity.
+     */
+    void reset(final RectF box, final long timestamp) {
+        state[0] = box.centerX();
+        state[1] = box.centerY();
+        state[2] = box.width();
+        state[3] = box.height();
+        final float scale = noiseScale();
+        for (int axis = 0; axis < NUM_AXES; ++axis) {
+            state[NUM_AXES + axis] = 0.0f;
+            final float positionStd = 2.0f * POSITION_NOISE * scale;
+            final float velocityStd = 10.0f * VELOCITY_NOISE * scale;
+            covariance[3 * axis] = positionStd * positionStd;
+            covariance[3 * axis + 1] = 0.0f;
+            covariance[3 * axis + 2] = velocityStd * velocityStd;
+        }
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Advances the state to the given frame. Frames at or before the current one are ignored.
+     */
+    void predict(final long timestamp) {
+        final long frames = timestamp - this.timestamp;
+        if (frames <= 0) {
+            return;
+        }
+        final float dt = frames;
+        final float scale = noiseScale();
+        final float positionVariance = dt * sq(POSITION_NOISE * scale);
+        final float velocityVariance = dt * sq(VELOCITY_NOISE * scale);
+
+        for (int axis = 0; axis < NUM_AXES; ++axis) {
+            state[axis] += dt * state[NUM_AXES + axis];
+
+            // P = F P F' + Q with F = [1 dt; 0 1].
+            final int c = 3 * axis;
+            final float p00 = covariance[c];
+            final float p01 = covariance[c + 1];
+            final float p11 = covariance[c + 2];
+            covariance[c] = p00 + 2.0f * dt * p01 + dt * dt * p11 + positionVariance;
+            covariance[c + 1] = p01 + dt * p11;
+            covariance[c + 2] = p11 + velocityVariance;
+        }
+        // Width and height must not be driven through zero by a shrinking velocity.
+        state[2] = Math.max(state[2], 1.0f);
+        state[3] = Math.max(state[3], 1.0f);
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Corrects the state with a measured box. Measurements from the optical flow tracker are
+     * noisier than fresh detections, noiseFactor scales the measurement noise accordingly.
+     */
+    void update(final RectF box, final float noiseFactor) {
+        final float measurementVariance = sq(noiseFactor * POSITION_NOISE * noiseScale());
+        updateAxis(0, box.centerX(), measurementVariance);
+        updateAxis(1, box.centerY(), measurementVariance);
+        updateAxis(2, box.width(), measurementVariance);
+        updateAxis(3, box.height(), measurementVariance);
+    }
+
+    private void updateAxis(final int axis, final float measurement, final float measurementVariance) {
+        final int c = 3 * axis;
+        final float p00 = covariance[c];
+        final float p01 = covariance[c + 1];
+        final float p11 = covariance[c + 2];
+
+        // Only the position is observed, so H = [1 0] and S = p00 + R.
+        final float innovation = measurement - state[axis];
+        final float s = p00 + measurementVariance;
+        final float k0 = p00 / s;
+        final float k1 = p01 / s;
+
+        state[axis] += k0 * innovation;
+        state[NUM_AXES + axis] += k1 * innovation;
+
+        covariance[c] = (1.0f - k0) * p00;
+        covariance[c + 1] = (1.0f - k0) * p01;
+        covariance[c + 2] = p11 - k1 * p01;
+    }
+
+    /**
+     * Writes the predicted center x, center y, width and height into mean, and their innovation
+     * variances for a measurement with the given noise factor into variance, both at offset.
+     */
+    void getGate(
+            final float[] mean, final float[] variance, final int offset, final float noiseFactor) {
+        final float measurementVariance = sq(noiseFactor * POSITION_NOISE * noiseScale());
+        for (int axis = 0; axis < NUM_AXES; ++axis) {
+            mean[offset + axis] = state[axis];
+            variance[offset + axis] = covariance[3 * axis] + measurementVariance;
+        }
+    }
+
+    /**
+     * Returns the squared Mahalanobis distance of a box, given as left, top, right, bottom at
+     * boxes[4 * index], from a gate written by getGate().
+     */
+    static float distanceSquared(
+            final float[] boxes, final int index, final float[] mean, final float[] variance,
+            final int offset) {
+        final float left = boxes[4 * index];
+        final float top = boxes[4 * index + 1];
+        final float right = boxes[4 * index + 2];
+        final float bottom = boxes[4 * index + 3];
+        return sq(0.5f * (left + right) - mean[offset]) / variance[offset]
+                + sq(0.5f * (top + bottom) - mean[offset + 1]) / variance[offset + 1]
+                + sq(right - left - mean[offset + 2]) / variance[offset + 2]
+                + sq(bottom - top - mean[offset + 3]) / variance[offset + 3];
+    }
+
+    /**
+     * Returns the squared Mahalanobis distance of a measured box from the current estimate.
+     */
+    float distanceSquared(final RectF box, final float noiseFactor) {
+        final float measurementVariance = sq(noiseFactor * POSITION_NOISE * noiseScale());
+        return sq(box.centerX() - state[0]) / (covariance[0] + measurementVariance)
+                + sq(box.centerY() - state[1]) / (covariance[3] + measurementVariance)
+                + sq(box.width() - state[2]) / (covariance[6] + measurementVariance)
+                + sq(box.height() - state[3]) / (covariance[9] + measurementVariance);
+    }
+
+    /**
+     * Writes the current box estimate into out.
+     */
+    void getBox(final RectF out) {
+        final float halfWidth = 0.5f * state[2];
+        final float halfHeight = 0.5f * state[3];
+        out.set(state[0] - halfWidth, state[1] - halfHeight, state[0] + halfWidth, state[1] + halfHeight);
+    }
+
+    private float noiseScale() {
+        return Math.max(state[3], MIN_NOISE_SCALE);
+    }
+
+    private static float sq(final float value) {
+        return value * value;
+    }
+}
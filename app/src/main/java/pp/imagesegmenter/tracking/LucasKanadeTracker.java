@@ -0,0 +1,949 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.tracking;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.SystemClock;
+
+import pp.imagesegmenter.env.ImagePyramid;
+import pp.imagesegmenter.env.ImagePyramidCache;
+import pp.imagesegmenter.env.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pure Java object tracker used when the native {@link ObjectTracker} is not available.
+ *
+ * Every frame's pyramid is taken from the shared {@link ImagePyramidCache}, and tracking runs on its
+ * levels from 1/2 down to 1/8 of the full resolution. For each tracked
+ * object, corners are detected inside its box in the previous frame with a FAST-9 segment test
+ * and followed into the current frame with pyramidal Lucas-Kanade. The box is then moved by the
+ * median keypoint displacement and scaled by the median change in distance between keypoints.
+ * The reported correlation is the normalized cross-correlation between the appearance the object
+ * was registered with and the image under its current box, so the MIN_CORRELATION and
+ * MARGINAL_CORRELATION thresholds of MultiBoxTracker keep their meaning.
+ *
+ * Objects are independent of each other, so they are updated in parallel on a fixed pool of
+ * worker threads. Each object owns its scratch buffers, and the pyramids are only read while the
+ * workers run.
+ *
+ * Like the native tracker, a history of the motion in the recent frames is kept: every frame,
+ * corners of the whole previous frame are followed into it along with the objects. An object
+ * registered with an older frame is moved from there to the current frame by the median motion of
+ * the recorded corners inside its box, frame by frame. Registrations older than the history only
+ * get the motion of the frames still recorded.
+ */
+public class LucasKanadeTracker implements Tracker {
+    private static final Logger LOGGER = new Logger();
+
+    private static final int DOWNSAMPLE_FACTOR = 2;
+
+    /** The cache level tracking coordinates refer to, 1 / DOWNSAMPLE_FACTOR of the full frame. */
+    private static final int FIRST_LEVEL = 1;
+
+    private static final int PYRAMID_LEVELS = ImagePyramid.NUM_LEVELS - FIRST_LEVEL;
+
+    /** Half size of the square Lucas-Kanade integration window. */
+    private static final int WINDOW_RADIUS = 3;
+    private static final int WINDOW_SIZE = 2 * WINDOW_RADIUS + 1;
+    private static final int WINDOW_AREA = WINDOW_SIZE * WINDOW_SIZE;
+
+    private static final int MAX_ITERATIONS = 7;
+
+    /** Stop iterating once an update moves the point by less than this many pixels. */
+    private static final float MIN_STEP = 0.03f;
+
+    /**
+     * Points whose structure tensor has a smaller minimum eigenvalue per window pixel lie on an edge
+     * or in a flat area and cannot be tracked reliably.
+     */
+    private static final float MIN_EIGENVALUE = 1.0f;
+
+    /** Points whose mean absolute intensity error after tracking exceeds this are lost. */
+    private static final float MAX_RESIDUAL = 24.0f;
+
+    /** Intensity difference a circle pixel needs to count as brighter or darker in the FAST test. */
+    private static final int FAST_THRESHOLD = 20;
+
+    /** Length of the contiguous arc of brighter or darker pixels that makes a corner. */
+    private static final int FAST_ARC = 9;
+
+    /** Larger boxes are scanned for corners on a sparser grid to bound the cost per object. */
+    private static final int MAX_SCAN_PIXELS = 8192;
+
+    private static final int MAX_CANDIDATES = 256;
+    private static final int MAX_KEYPOINTS = 40;
+    private static final float MIN_KEYPOINT_DISTANCE = 3.0f;
+
+    /** Fewer surviving keypoints than this leave the box where it is. */
+    private static final int MIN_KEYPOINTS_FOR_UPDATE = 4;
+
+    /** Keypoint pairs closer than this are too noisy to measure a change of scale. */
+    private static final float MIN_PAIR_DISTANCE = 2.0f;
+
+    private static final float MAX_SCALE_CHANGE = 1.1f;
+
+    /** Appearance templates are resampled to a square of this many pixels per side. */
+    private static final int TEMPLATE_SIZE = 16;
+
+    private static final float MIN_VISIBLE_CORRELATION = 0.5f;
+
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * How many frames of motion to record for objects registered with older frames.
+     */
+    private static final int MAX_FRAME_HISTORY_SIZE = 60;
+
+    /**
+     * Corners followed across the whole frame for the motion history, their candidates, and how far
+     * apart they must be so that they spread over the frame rather than crowd its strongest texture.
+     */
+    private static final int MAX_MOTION_KEYPOINTS = 160;
+    private static final int MAX_MOTION_CANDIDATES = 640;
+    private static final float MIN_MOTION_KEYPOINT_DISTANCE = 8.0f;
+
+    // Offsets of the 16 pixels on a Bresenham circle of radius 3, clockwise from the top.
+    private static final int[] CIRCLE_X = {0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1};
+    private static final int[] CIRCLE_Y = {-3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3};
+
+    private final ImagePyramidCache pyramidCache;
+
+    // Held from the cache until the following frame has been processed.
+    private ImagePyramid previous;
+    private ImagePyramid current;
+
+    private final List<LkTrack> trackedObjects = new ArrayList<LkTrack>();
+    private final List<Callable<Void>> updateTasks = new ArrayList<Callable<Void>>();
+
+    // Follows corners of the whole frame for the motion history.
+    private final LkTrack frameMotion = new LkTrack(
+            MAX_MOTION_KEYPOINTS, MAX_MOTION_CANDIDATES, MIN_MOTION_KEYPOINT_DISTANCE);
+    private final Callable<Void> motionTask = () -> {
+        recordMotion();
+        return null;
+    };
+
+    // Ring of the found corners of the last frames: their positions in the frame before and how
+    // far they moved into the frame of the timestamp, oldest at motionHead once full.
+    private final long[] motionTimestamps = new long[MAX_FRAME_HISTORY_SIZE];
+    private final float[][] motionX = new float[MAX_FRAME_HISTORY_SIZE][MAX_MOTION_KEYPOINTS];
+    private final float[][] motionY = new float[MAX_FRAME_HISTORY_SIZE][MAX_MOTION_KEYPOINTS];
+    private final float[][] motionDx = new float[MAX_FRAME_HISTORY_SIZE][MAX_MOTION_KEYPOINTS];
+    private final float[][] motionDy = new float[MAX_FRAME_HISTORY_SIZE][MAX_MOTION_KEYPOINTS];
+    private final int[] motionCounts = new int[MAX_FRAME_HISTORY_SIZE];
+    private int motionHead;
+    private int motionSize;
+
+    private long currentTimestamp;
+
+    // Shared by all instances: MultiBoxTracker has no teardown hook, so a pool per tracker would
+    // leak its threads every time the preview is restarted.
+    private static ExecutorService executor;
+
+    private boolean released;
+    private long lastFrameTimeMs;
+
+    private final Paint keypointPaint = new Paint();
+
+    public LucasKanadeTracker(final ImagePyramidCache pyramidCache) {
+        this.pyramidCache = pyramidCache;
+        LOGGER.i("Java tracker for %dx%d frames", pyramidCache.getWidth(), pyramidCache.getHeight());
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final int numThreads =
+                    Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+            executor = Executors.newFixedThreadPool(numThreads, runnable -> {
+                final Thread thread = new Thread(runnable, "lk-tracker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Bilinearly interpolates image at (x, y), clamping coordinates to the image.
+     */
+    private static float sample(
+            final byte[] image, final int width, final int height, float x, float y) {
+        x = Math.max(0.0f, Math.min(width - 1.001f, x));
+        y = Math.max(0.0f, Math.min(height - 1.001f, y));
+        final int x0 = (int) x;
+        final int y0 = (int) y;
+        final float fx = x - x0;
+        final float fy = y - y0;
+        final int index = y0 * width + x0;
+        final float top = (image[index] & 0xFF) * (1.0f - fx) + (image[index + 1] & 0xFF) * fx;
+        final float bottom =
+                (image[index + width] & 0xFF) * (1.0f - fx) + (image[index + width + 1] & 0xFF) * fx;
+        return top * (1.0f - fy) + bottom * fy;
+    }
+
+    /**
+     * Resamples the given box of image onto a TEMPLATE_SIZE x TEMPLATE_SIZE grid and normalizes it
+     * to zero mean and unit norm.
+     *
+     * @return false if the box is flat, in which case output is all zeros.
+     */
+    private static boolean sampleTemplate(
+            final byte[] image, final int width, final int height,
+            final float left, final float top, final float right, final float bottom,
+            final float[] output) {
+        final float stepX = (right - left) / TEMPLATE_SIZE;
+        final float stepY = (bottom - top) / TEMPLATE_SIZE;
+        float sum = 0.0f;
+        for (int j = 0, k = 0; j < TEMPLATE_SIZE; ++j) {
+            final float y = top + (j + 0.5f) * stepY;
+            for (int i = 0; i < TEMPLATE_SIZE; ++i, ++k) {
+                output[k] = sample(image, width, height, left + (i + 0.5f) * stepX, y);
+                sum += output[k];
+            }
+        }
+
+        final float mean = sum / output.length;
+        float sumSquares = 0.0f;
+        for (int k = 0; k < output.length; ++k) {
+            output[k] -= mean;
+            sumSquares += output[k] * output[k];
+        }
+        if (sumSquares < 1e-3f) {
+            for (int k = 0; k < output.length; ++k) {
+                output[k] = 0.0f;
+            }
+            return false;
+        }
+        final float invNorm = (float) (1.0 / Math.sqrt(sumSquares));
+        for (int k = 0; k < output.length; ++k) {
+            output[k] *= invNorm;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the k-th smallest of the first n values, reordering them in the process.
+     */
+    private static float select(final float[] values, final int n, final int k) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            final float pivot = values[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    ++i;
+                }
+                while (values[j] > pivot) {
+                    --j;
+                }
+                if (i <= j) {
+                    final float tmp = values[i];
+                    values[i] = values[j];
+                    values[j] = tmp;
+                    ++i;
+                    --j;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    private static float median(final float[] values, final int n) {
+        return select(values, n, n / 2);
+    }
+
+    @Override
+    public synchronized void nextFrame(
+            final byte[] frameData, final byte[] uvData,
+            final long timestamp, final float[] transformationMatrix,
+            final boolean updateDebugInfo) {
+        if (released) {
+            return;
+        }
+        final long startTime = SystemClock.uptimeMillis();
+
+        if (previous != null) {
+            pyramidCache.release(previous);
+        }
+        previous = current;
+        current = pyramidCache.acquire(frameData, timestamp);
+        currentTimestamp = timestamp;
+
+        if (previous == null) {
+            return;
+        }
+
+        if (trackedObjects.isEmpty()) {
+            recordMotion();
+        } else {
+            updateTasks.clear();
+            updateTasks.add(motionTask);
+            for (final LkTrack trackedObject : trackedObjects) {
+                updateTasks.add(trackedObject.updateTask);
+            }
+            try {
+                for (final Future<Void> future : getExecutor().invokeAll(updateTasks)) {
+                    future.get();
+                }
+            } catch (final InterruptedException e) {
+                LOGGER.e(e, "Exception!");
+                Thread.currentThread().interrupt();
+            } catch (final ExecutionException e) {
+                throw new RuntimeException("Tracking update failed", e.getCause());
+            }
+        }
+
+        lastFrameTimeMs = SystemClock.uptimeMillis() - startTime;
+    }
+
+    /**
+     * Follows corners of the whole previous frame into the current one and records where they
+     * moved as the newest frame of the motion history.
+     */
+    private void recordMotion() {
+        final int width = previous.getWidth(FIRST_LEVEL);
+        final int height = previous.getHeight(FIRST_LEVEL);
+        frameMotion.left = 0;
+        frameMotion.top = 0;
+        frameMotion.right = width;
+        frameMotion.bottom = height;
+        frameMotion.trackKeypoints(width, height);
+
+        final int slot = motionHead;
+        int count = 0;
+        for (int i = 0; i < frameMotion.numKeypoints; ++i) {
+            if (frameMotion.found[i]) {
+                motionX[slot][count] = frameMotion.keypointX[i];
+                motionY[slot][count] = frameMotion.keypointY[i];
+                motionDx[slot][count] = frameMotion.trackedX[i] - frameMotion.keypointX[i];
+                motionDy[slot][count] = frameMotion.trackedY[i] - frameMotion.keypointY[i];
+                ++count;
+            }
+        }
+        motionCounts[slot] = count;
+        motionTimestamps[slot] = currentTimestamp;
+        motionHead = (motionHead + 1) % MAX_FRAME_HISTORY_SIZE;
+        motionSize = Math.min(motionSize + 1, MAX_FRAME_HISTORY_SIZE);
+    }
+
+    /**
+     * Moves an object registered with the frame of the given timestamp through every recorded
+     * frame after it, oldest first.
+     */
+    private void forwardToCurrentFrame(final LkTrack trackedObject, final long timestamp) {
+        if (timestamp >= currentTimestamp) {
+            return;
+        }
+        final int oldest = (motionHead - motionSize + MAX_FRAME_HISTORY_SIZE) % MAX_FRAME_HISTORY_SIZE;
+        if (motionSize == 0 || motionTimestamps[oldest] > timestamp + 1) {
+            LOGGER.w("Motion since frame %d partially forgotten, object may be misplaced", timestamp);
+        }
+        for (int k = 0; k < motionSize; ++k) {
+            final int slot = (oldest + k) % MAX_FRAME_HISTORY_SIZE;
+            if (motionTimestamps[slot] > timestamp) {
+                trackedObject.applyMotion(slot);
+            }
+        }
+    }
+
+    @Override
+    public synchronized Track trackObject(
+            final RectF position, final long timestamp, final byte[] frameData) {
+        if (released) {
+            throw new RuntimeException("Tracker already released!");
+        }
+
+        final ImagePyramid pyramid = pyramidCache.acquire(frameData, timestamp);
+        try {
+            final LkTrack trackedObject = new LkTrack(position, pyramid);
+            forwardToCurrentFrame(trackedObject, timestamp);
+            trackedObjects.add(trackedObject);
+            return trackedObject;
+        } finally {
+            pyramidCache.release(pyramid);
+        }
+    }
+
+    @Override
+    public synchronized void drawDebug(final Canvas canvas, final Matrix frameToCanvas) {
+        canvas.save();
+        canvas.setMatrix(frameToCanvas);
+
+        final Paint p = keypointPaint;
+        for (final LkTrack trackedObject : trackedObjects) {
+            for (int i = 0; i < trackedObject.numKeypoints; ++i) {
+                final float x1 = trackedObject.keypointX[i] * DOWNSAMPLE_FACTOR;
+                final float y1 = trackedObject.keypointY[i] * DOWNSAMPLE_FACTOR;
+                if (trackedObject.found[i]) {
+                    p.setColor(Color.CYAN);
+                    canvas.drawLine(
+                            trackedObject.trackedX[i] * DOWNSAMPLE_FACTOR,
+                            trackedObject.trackedY[i] * DOWNSAMPLE_FACTOR,
+                            x1, y1, p);
+                } else {
+                    p.setColor(Color.YELLOW);
+                    canvas.drawCircle(x1, y1, 5.0f, p);
+                }
+            }
+        }
+
+        canvas.restore();
+    }
+
+    @Override
+    public synchronized Vector<String> getDebugText() {
+        final Vector<String> lines = new Vector<String>();
+        int numKeypoints = 0;
+        int numFound = 0;
+        for (final LkTrack trackedObject : trackedObjects) {
+            numKeypoints += trackedObject.numKeypoints;
+            numFound += trackedObject.numFound;
+        }
+        lines.add("Java tracker: " + trackedObjects.size() + " objects, " + lastFrameTimeMs + "ms");
+        lines.add("Keypoints found: " + numFound + "/" + numKeypoints);
+        return lines;
+    }
+
+    @Override
+    public synchronized void release() {
+        released = true;
+        trackedObjects.clear();
+        motionSize = 0;
+        if (previous != null) {
+            pyramidCache.release(previous);
+            previous = null;
+        }
+        if (current != null) {
+            pyramidCache.release(current);
+            current = null;
+        }
+    }
+
+    /**
+     * An object followed by the Java tracker. All coordinates are kept in FIRST_LEVEL space and only
+     * scaled up to preview frame space when read.
+     */
+    private class LkTrack implements Track {
+        private float left;
+        private float top;
+        private float right;
+        private float bottom;
+
+        private float correlation;
+        private boolean visible;
+        private boolean isDead;
+
+        private final float[] template = new float[TEMPLATE_SIZE * TEMPLATE_SIZE];
+
+        // Keypoints of the last update and where they were tracked to.
+        private final float[] keypointX;
+        private final float[] keypointY;
+        private final float[] trackedX;
+        private final float[] trackedY;
+        private final boolean[] found;
+        private final float minKeypointDistance;
+        private int numKeypoints;
+        private int numFound;
+
+        // Scratch space, owned by the object so that objects can be updated concurrently.
+        private final int[] candidateX;
+        private final int[] candidateY;
+        private final int[] candidateScore;
+        private final int[] circleOffsets = new int[CIRCLE_X.length];
+        private final float[] window = new float[(WINDOW_SIZE + 2) * (WINDOW_SIZE + 2)];
+        private final float[] patch = new float[WINDOW_AREA];
+        private final float[] gradX = new float[WINDOW_AREA];
+        private final float[] gradY = new float[WINDOW_AREA];
+        private final float[] flowX;
+        private final float[] flowY;
+        private final float[] ratios;
+        private final int[] foundIndices;
+        private final float[] appearance = new float[TEMPLATE_SIZE * TEMPLATE_SIZE];
+
+        // Result of the last trackPoint() call.
+        private float resultX;
+        private float resultY;
+
+        private final Callable<Void> updateTask = () -> {
+            update();
+            return null;
+        };
+
+        LkTrack(final RectF position, final ImagePyramid pyramid) {
+            this(MAX_KEYPOINTS, MAX_CANDIDATES, MIN_KEYPOINT_DISTANCE);
+            left = position.left / DOWNSAMPLE_FACTOR;
+            top = position.top / DOWNSAMPLE_FACTOR;
+            right = position.right / DOWNSAMPLE_FACTOR;
+            bottom = position.bottom / DOWNSAMPLE_FACTOR;
+
+            sampleTemplate(
+                    pyramid.getLevel(FIRST_LEVEL),
+                    pyramid.getWidth(FIRST_LEVEL), pyramid.getHeight(FIRST_LEVEL),
+                    left, top, right, bottom, template);
+            // The template was just taken from this very position.
+            correlation = 1.0f;
+            visible = true;
+        }
+
+        /**
+         * Only follows up to maxKeypoints keypoints at least minKeypointDistance apart, chosen among
+         * maxCandidates corners. The box is set before every trackKeypoints().
+         */
+        LkTrack(final int maxKeypoints, final int maxCandidates, final float minKeypointDistance) {
+            this.minKeypointDistance = minKeypointDistance;
+            keypointX = new float[maxKeypoints];
+            keypointY = new float[maxKeypoints];
+            trackedX = new float[maxKeypoints];
+            trackedY = new float[maxKeypoints];
+            found = new boolean[maxKeypoints];
+            flowX = new float[maxKeypoints];
+            flowY = new float[maxKeypoints];
+            ratios = new float[maxKeypoints];
+            foundIndices = new int[maxKeypoints];
+            candidateX = new int[maxCandidates];
+            candidateY = new int[maxCandidates];
+            candidateScore = new int[maxCandidates];
+        }
+
+        /**
+         * Moves the box from the previous to the current frame. Runs on a worker thread while the
+         * tracker lock is held by nextFrame().
+         */
+        private void update() {
+            final int width = previous.getWidth(FIRST_LEVEL);
+            final int height = previous.getHeight(FIRST_LEVEL);
+
+            trackKeypoints(width, height);
+
+            if (numFound >= MIN_KEYPOINTS_FOR_UPDATE) {
+                final float dx = median(flowX, numFound);
+                final float dy = median(flowY, numFound);
+
+                // Compare the spacing of consecutive found keypoints before and after the move.
+                int numRatios = 0;
+                for (int n = 0; n < numFound; ++n) {
+                    final int a = foundIndices[n];
+                    final int b = foundIndices[(n + 1) % numFound];
+                    final float before =
+                            (float) Math.hypot(keypointX[a] - keypointX[b], keypointY[a] - keypointY[b]);
+                    if (before < MIN_PAIR_DISTANCE) {
+                        continue;
+                    }
+                    final float after =
+                            (float) Math.hypot(trackedX[a] - trackedX[b], trackedY[a] - trackedY[b]);
+                    ratios[numRatios++] = after / before;
+                }
+                final float scale =
+                        numRatios > 0
+                                ? Math.max(1.0f / MAX_SCALE_CHANGE,
+                                        Math.min(MAX_SCALE_CHANGE, median(ratios, numRatios)))
+                                : 1.0f;
+
+                final float centerX = (left + right) / 2 + dx;
+                final float centerY = (top + bottom) / 2 + dy;
+                final float halfWidth = (right - left) * scale / 2;
+                final float halfHeight = (bottom - top) * scale / 2;
+                left = centerX - halfWidth;
+                right = centerX + halfWidth;
+                top = centerY - halfHeight;
+                bottom = centerY + halfHeight;
+            }
+
+            final byte[] currImage = current.getLevel(FIRST_LEVEL);
+            if (sampleTemplate(currImage, width, height, left, top, right, bottom, appearance)) {
+                float dot = 0.0f;
+                for (int k = 0; k < template.length; ++k) {
+                    dot += template[k] * appearance[k];
+                }
+                correlation = dot;
+            } else {
+                correlation = 0.0f;
+            }
+
+            visible =
+                    correlation >= MIN_VISIBLE_CORRELATION
+                            && right > 0 && bottom > 0 && left < width && top < height;
+        }
+
+        /**
+         * Detects keypoints inside the box in the previous frame and follows them into the current
+         * one, leaving the displacements of the numFound found ones in flowX/flowY.
+         */
+        private void trackKeypoints(final int width, final int height) {
+            detectKeypoints(previous.getLevel(FIRST_LEVEL), width, height);
+
+            numFound = 0;
+            for (int i = 0; i < numKeypoints; ++i) {
+                found[i] = trackPoint(keypointX[i], keypointY[i]);
+                trackedX[i] = resultX;
+                trackedY[i] = resultY;
+                if (found[i]) {
+                    foundIndices[numFound] = i;
+                    flowX[numFound] = resultX - keypointX[i];
+                    flowY[numFound] = resultY - keypointY[i];
+                    ++numFound;
+                }
+            }
+        }
+
+        /**
+         * Moves the box by the median motion of the corners recorded in a slot of the motion
+         * history that lay inside it, unless too few did.
+         */
+        private void applyMotion(final int slot) {
+            int n = 0;
+            for (int k = 0; k < motionCounts[slot]; ++k) {
+                final float x = motionX[slot][k];
+                final float y = motionY[slot][k];
+                if (x >= left && x <= right && y >= top && y <= bottom) {
+                    flowX[n] = motionDx[slot][k];
+                    flowY[n] = motionDy[slot][k];
+                    ++n;
+                }
+            }
+            if (n < MIN_KEYPOINTS_FOR_UPDATE) {
+                return;
+            }
+            final float dx = median(flowX, n);
+            final float dy = median(flowY, n);
+            left += dx;
+            right += dx;
+            top += dy;
+            bottom += dy;
+        }
+
+        /**
+         * Fills keypointX/keypointY with the strongest, well separated FAST corners inside the box.
+         */
+        private void detectKeypoints(final byte[] image, final int width, final int height) {
+            for (int i = 0; i < CIRCLE_X.length; ++i) {
+                circleOffsets[i] = CIRCLE_Y[i] * width + CIRCLE_X[i];
+            }
+
+            final int border = 3;
+            final int x0 = Math.max(border, (int) left);
+            final int y0 = Math.max(border, (int) top);
+            final int x1 = Math.min(width - border - 1, (int) right);
+            final int y1 = Math.min(height - border - 1, (int) bottom);
+
+            numKeypoints = 0;
+            if (x1 <= x0 || y1 <= y0) {
+                return;
+            }
+
+            final int area = (x1 - x0) * (y1 - y0);
+            final int step = Math.max(1, (int) Math.sqrt((double) area / MAX_SCAN_PIXELS));
+
+            int numCandidates = 0;
+            int weakest = 0;
+            for (int y = y0; y <= y1; y += step) {
+                for (int x = x0; x <= x1; x += step) {
+                    final int score = cornerScore(image, y * width + x);
+                    if (score <= 0) {
+                        continue;
+                    }
+                    if (numCandidates < candidateScore.length) {
+                        candidateX[numCandidates] = x;
+                        candidateY[numCandidates] = y;
+                        candidateScore[numCandidates] = score;
+                        if (score < candidateScore[weakest]) {
+                            weakest = numCandidates;
+                        }
+                        ++numCandidates;
+                    } else if (score > candidateScore[weakest]) {
+                        candidateX[weakest] = x;
+                        candidateY[weakest] = y;
+                        candidateScore[weakest] = score;
+                        for (int c = 0; c < numCandidates; ++c) {
+                            if (candidateScore[c] < candidateScore[weakest]) {
+                                weakest = c;
+                            }
+                        }
+                    }
+                }
+            }
+
+            // Greedily take the strongest candidates that are not too close to one already taken.
+            final float minDistanceSquared = minKeypointDistance * minKeypointDistance;
+            while (numKeypoints < keypointX.length) {
+                int best = -1;
+                for (int c = 0; c < numCandidates; ++c) {
+                    if (candidateScore[c] > 0 && (best < 0 || candidateScore[c] > candidateScore[best])) {
+                        best = c;
+                    }
+                }
+                if (best < 0) {
+                    break;
+                }
+                final int x = candidateX[best];
+                final int y = candidateY[best];
+                candidateScore[best] = 0;
+
+                boolean separated = true;
+                for (int k = 0; k < numKeypoints && separated; ++k) {
+                    final float dx = keypointX[k] - x;
+                    final float dy = keypointY[k] - y;
+                    separated = dx * dx + dy * dy >= minDistanceSquared;
+                }
+                if (separated) {
+                    keypointX[numKeypoints] = x;
+                    keypointY[numKeypoints] = y;
+                    ++numKeypoints;
+                }
+            }
+        }
+
+        /**
+         * Returns the FAST-9 score of the pixel at index, or 0 if it is not a corner.
+         */
+        private int cornerScore(final byte[] image, final int index) {
+            final int center = image[index] & 0xFF;
+            final int high = center + FAST_THRESHOLD;
+            final int low = center - FAST_THRESHOLD;
+
+            // Any arc of 9 contiguous pixels covers at least two of the four compass points.
+            int brighterCompass = 0;
+            int darkerCompass = 0;
+            for (int i = 0; i < CIRCLE_X.length; i += 4) {
+                final int value = image[index + circleOffsets[i]] & 0xFF;
+                if (value > high) {
+                    ++brighterCompass;
+                } else if (value < low) {
+                    ++darkerCompass;
+                }
+            }
+            if (brighterCompass < 2 && darkerCompass < 2) {
+                return 0;
+            }
+
+            int brighter = 0;
+            int darker = 0;
+            int brighterScore = 0;
+            int darkerScore = 0;
+            for (int i = 0; i < CIRCLE_X.length; ++i) {
+                final int value = image[index + circleOffsets[i]] & 0xFF;
+                if (value > high) {
+                    brighter |= 1 << i;
+                    brighterScore += value - high;
+                } else if (value < low) {
+                    darker |= 1 << i;
+                    darkerScore += low - value;
+                }
+            }
+
+            if (hasArc(brighter)) {
+                return brighterScore;
+            }
+            if (hasArc(darker)) {
+                return darkerScore;
+            }
+            return 0;
+        }
+
+        /**
+         * Follows a FIRST_LEVEL point from the previous into the current frame, coarse to fine. The
+         * tracked position is left in resultX/resultY.
+         *
+         * @return whether the point was found in the current frame.
+         */
+        private boolean trackPoint(final float x, final float y) {
+            float guessX = 0.0f;
+            float guessY = 0.0f;
+            float gxx = 0.0f;
+            float gxy = 0.0f;
+            float gyy = 0.0f;
+
+            for (int level = PYRAMID_LEVELS - 1; level >= 0; --level) {
+                final float scale = 1.0f / (1 << level);
+                final float px = x * scale;
+                final float py = y * scale;
+
+                final byte[] prevImage = previous.getLevel(FIRST_LEVEL + level);
+                final byte[] currImage = current.getLevel(FIRST_LEVEL + level);
+                final int width = previous.getWidth(FIRST_LEVEL + level);
+                final int height = previous.getHeight(FIRST_LEVEL + level);
+
+                // Sample a window one pixel larger on each side so gradients are central
+                // differences of the same interpolated values.
+                final int span = WINDOW_SIZE + 2;
+                for (int j = 0, k = 0; j < span; ++j) {
+                    for (int i = 0; i < span; ++i, ++k) {
+                        window[k] = sample(
+                                prevImage, width, height,
+                                px + i - WINDOW_RADIUS - 1, py + j - WINDOW_RADIUS - 1);
+                    }
+                }
+
+                gxx = 0.0f;
+                gxy = 0.0f;
+                gyy = 0.0f;
+                for (int j = 0, k = 0; j < WINDOW_SIZE; ++j) {
+                    for (int i = 0; i < WINDOW_SIZE; ++i, ++k) {
+                        final int w = (j + 1) * span + i + 1;
+                        final float ix = (window[w + 1] - window[w - 1]) * 0.5f;
+                        final float iy = (window[w + span] - window[w - span]) * 0.5f;
+                        patch[k] = window[w];
+                        gradX[k] = ix;
+                        gradY[k] = iy;
+                        gxx += ix * ix;
+                        gxy += ix * iy;
+                        gyy += iy * iy;
+                    }
+                }
+
+                final float det = gxx * gyy - gxy * gxy;
+                final float minEigenvalue =
+                        (float) ((gxx + gyy - Math.sqrt((gxx - gyy) * (gxx - gyy) + 4 * gxy * gxy)) / 2);
+                if (minEigenvalue < MIN_EIGENVALUE * WINDOW_AREA || det <= 0.0f) {
+                    resultX = x;
+                    resultY = y;
+                    return false;
+                }
+
+                float flowX = 0.0f;
+                float flowY = 0.0f;
+                for (int iteration = 0; iteration < MAX_ITERATIONS; ++iteration) {
+                    float bx = 0.0f;
+                    float by = 0.0f;
+                    for (int j = 0, k = 0; j < WINDOW_SIZE; ++j) {
+                        final float sy = py + guessY + flowY + j - WINDOW_RADIUS;
+                        for (int i = 0; i < WINDOW_SIZE; ++i, ++k) {
+                            final float diff = patch[k]
+                                    - sample(currImage, width, height,
+                                            px + guessX + flowX + i - WINDOW_RADIUS, sy);
+                            bx += diff * gradX[k];
+                            by += diff * gradY[k];
+                        }
+                    }
+                    final float stepX = (gyy * bx - gxy * by) / det;
+                    final float stepY = (gxx * by - gxy * bx) / det;
+                    flowX += stepX;
+                    flowY += stepY;
+                    if (stepX * stepX + stepY * stepY < MIN_STEP * MIN_STEP) {
+                        break;
+                    }
+                }
+
+                if (level > 0) {
+                    guessX = 2.0f * (guessX + flowX);
+                    guessY = 2.0f * (guessY + flowY);
+                } else {
+                    guessX += flowX;
+                    guessY += flowY;
+                }
+            }
+
+            resultX = x + guessX;
+            resultY = y + guessY;
+
+            final int width = current.getWidth(FIRST_LEVEL);
+            final int height = current.getHeight(FIRST_LEVEL);
+            if (resultX < 0 || resultY < 0 || resultX > width - 1 || resultY > height - 1) {
+                return false;
+            }
+
+            // patch still holds the finest window of the previous frame.
+            final byte[] currImage = current.getLevel(FIRST_LEVEL);
+            float residual = 0.0f;
+            for (int j = 0, k = 0; j < WINDOW_SIZE; ++j) {
+                for (int i = 0; i < WINDOW_SIZE; ++i, ++k) {
+                    residual += Math.abs(patch[k] - sample(currImage, width, height,
+                            resultX + i - WINDOW_RADIUS, resultY + j - WINDOW_RADIUS));
+                }
+            }
+            return residual / WINDOW_AREA <= MAX_RESIDUAL;
+        }
+
+        @Override
+        public RectF getTrackedPositionInPreviewFrame() {
+            synchronized (LucasKanadeTracker.this) {
+                checkValidObject();
+                return new RectF(
+                        left * DOWNSAMPLE_FACTOR, top * DOWNSAMPLE_FACTOR,
+                        right * DOWNSAMPLE_FACTOR, bottom * DOWNSAMPLE_FACTOR);
+            }
+        }
+
+        @Override
+        public float getCurrentCorrelation() {
+            synchronized (LucasKanadeTracker.this) {
+                checkValidObject();
+                return correlation;
+            }
+        }
+
+        @Override
+        public boolean visibleInLastPreviewFrame() {
+            synchronized (LucasKanadeTracker.this) {
+                return visible;
+            }
+        }
+
+        @Override
+        public void stopTracking() {
+            synchronized (LucasKanadeTracker.this) {
+                checkValidObject();
+                isDead = true;
+                trackedObjects.remove(this);
+            }
+        }
+
+        private void checkValidObject() {
+            if (isDead) {
+                throw new RuntimeException("TrackedObject already removed from tracking!");
+            } else if (released) {
+                throw new RuntimeException("TrackedObject used after its tracker was released!");
+            }
+        }
+    }
+
+    /**
+     * Returns whether the 16 bit circle mask contains FAST_ARC contiguous set bits, wrapping
+     * around.
+     */
+    private static boolean hasArc(final int mask) {
+        if (mask == 0) {
+            return false;
+        }
+        final int wrapped = mask | (mask << 16);
+        int run = wrapped;
+        for (int i = 1; i < FAST_ARC; ++i) {
+            run &= wrapped >>> i;
+        }
+        return (run & 0xFFFF) != 0;
+    }
+}
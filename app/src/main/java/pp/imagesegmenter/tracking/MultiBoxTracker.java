@@ -23,23 +23,26 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
+import android.util.Log;
 import android.util.TypedValue;
-import android.widget.Toast;
 
 import pp.imagesegmenter.Segmentation.Recognition;
 import pp.imagesegmenter.env.BorderedText;
+import pp.imagesegmenter.env.ImagePyramidCache;
 import pp.imagesegmenter.env.ImageUtils;
 import pp.imagesegmenter.env.Logger;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
 /**
- * A tracker wrapping ObjectTracker that also handles non-max suppression and matching existing
+ * A tracker wrapping a {@link Tracker} that also handles non-max suppression and matching existing
  * objects to new detections.
  */
 public class MultiBoxTracker {
-    private final Logger logger = new Logger();
+    private static final Logger LOGGER = new Logger();
 
     private static final float TEXT_SIZE_DIP = 18;
 
@@ -53,91 +56,212 @@ public class MultiBoxTracker {
     // correlation has dropped below this level.
     private static final float MARGINAL_CORRELATION = 0.75f;
 
-    // Consider object to be lost if correlation falls below this threshold.
+    // Don't trust the tracked position of an object whose correlation falls below this threshold.
     private static final float MIN_CORRELATION = 0.3f;
 
-    private static final int MAX_OBJECT = 16;
+    // Frames a track is predicted without a trusted position before it is considered lost.
+    private static final int MAX_COAST_FRAMES = 15;
 
-    private ObjectTracker objectTracker;
+    // Measurement noise of optical flow positions and of detections, relative to the filter's.
+    private static final float FLOW_NOISE_FACTOR = 2.0f;
+    private static final float DETECTION_NOISE_FACTOR = 1.0f;
 
-    private final List<RectF> screenRects = new LinkedList<RectF>();
+    private static final int MAX_OBJECT = 256;
+
+    // Written on the tracker thread, read by drawDebug() on the UI thread.
+    private volatile Tracker objectTracker;
+
+    private ImagePyramidCache pyramidCache;
+
+    // Detections of the last batch, in frame coordinates.
+    private final List<RectF> detectionRects = new ArrayList<RectF>();
 
     private static class TrackedRecognition {
-        ObjectTracker.TrackedObject trackedObject;
+        Tracker.Track trackedObject;
         RectF location;
         Bitmap bitmap;
+
+        // Smooths the tracked position and carries it across frames where the tracker is lost.
+        KalmanBoxFilter filter;
+        int coastFrames;
+
+        // The mask rotated into canvas orientation, built when first published and reused until the
+        // orientation changes. Scaling to the tracked size happens when drawing.
+        Bitmap orientedMask;
+        int maskOrientation;
     }
 
-    private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+    private final List<TrackedRecognition> trackedObjects = new ArrayList<TrackedRecognition>();
+
+    private BoxAssigner assigner;
+
+    /**
+     * Everything the overlay draws, captured on the tracker thread after every update and published
+     * with a single volatile write. Rendering only ever reads the latest snapshot, so it never
+     * takes the tracker lock and the tracker never waits for the UI.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY =
+                new Snapshot(0, 0, 0, new RectF[0], new float[0], new Bitmap[0], new RectF[0]);
+
+        final int frameWidth;
+        final int frameHeight;
+        final int sensorOrientation;
+
+        // Tracked positions in frame coordinates, with their correlation (NaN without a tracker)
+        // and mask in canvas orientation.
+        final RectF[] positions;
+        final float[] correlations;
+        final Bitmap[] masks;
+
+        final RectF[] detections;
+
+        Snapshot(
+                final int frameWidth, final int frameHeight, final int sensorOrientation,
+                final RectF[] positions, final float[] correlations, final Bitmap[] masks,
+                final RectF[] detections) {
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+            this.sensorOrientation = sensorOrientation;
+            this.positions = positions;
+            this.correlations = correlations;
+            this.masks = masks;
+            this.detections = detections;
+        }
+    }
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     private final BorderedText borderedText;
 
+    // Only used on the UI thread.
     private Matrix frameToCanvasMatrix;
 
+    // Inputs frameToCanvasMatrix was last computed for.
+    private int matrixCanvasWidth;
+    private int matrixCanvasHeight;
+    private int matrixFrameWidth;
+    private int matrixFrameHeight;
+    private int matrixOrientation;
+
+    private final RectF drawRect = new RectF();
+    private final Paint boxPaint = new Paint();
+
     private int frameWidth;
     private int frameHeight;
+    private long lastFrameTimestamp;
 
     private int sensorOrientation;
     private Context context;
 
+    // The stream whose frames this tracker follows, each stream gets its own ObjectTracker.
+    private final String streamId;
+
+    // Debug history and keypoints are only collected while the debug overlay is shown.
+    private volatile boolean debug = false;
+
     public MultiBoxTracker(final Context context) {
+        this(context, ObjectTracker.DEFAULT_STREAM);
+    }
+
+    public MultiBoxTracker(final Context context, final String streamId) {
         this.context = context;
+        this.streamId = streamId;
 
         float textSizePx =
                 TypedValue.applyDimension(
                         TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, context.getResources().getDisplayMetrics());
         borderedText = new BorderedText(textSizePx);
-    }
-
-    private Matrix getFrameToCanvasMatrix() {
-        return frameToCanvasMatrix;
-    }
 
-    public synchronized void drawDebug(final Canvas canvas) {
-        final Paint textPaint = new Paint();
-        textPaint.setColor(Color.WHITE);
-        textPaint.setTextSize(60.0f);
-
-        final Paint boxPaint = new Paint();
         boxPaint.setColor(Color.RED);
         boxPaint.setAlpha(200);
         boxPaint.setStyle(Style.STROKE);
+    }
 
-        for (final RectF rect : screenRects) {
-            canvas.drawRect(rect, boxPaint);
-        }
+    public void setDebug(final boolean debug) {
+        this.debug = debug;
+    }
 
-        if (objectTracker == null) {
+    /**
+     * Returns the pyramids of the frames passed to onFrame(), or null before the first frame.
+     */
+    public synchronized ImagePyramidCache getPyramidCache() {
+        return pyramidCache;
+    }
+
+    public void drawDebug(final Canvas canvas) {
+        final Snapshot snapshot = this.snapshot;
+        if (snapshot.frameWidth == 0) {
             return;
         }
+        final Matrix frameToCanvas =
+                getFrameToCanvasMatrix(snapshot, canvas.getWidth(), canvas.getHeight());
 
-        // Draw correlations.
-        for (final TrackedRecognition recognition : trackedObjects) {
-            final ObjectTracker.TrackedObject trackedObject = recognition.trackedObject;
-
-            final RectF trackedPos = trackedObject.getTrackedPositionInPreviewFrame();
+        for (final RectF rect : snapshot.detections) {
+            frameToCanvas.mapRect(drawRect, rect);
+            canvas.drawRect(drawRect, boxPaint);
+        }
 
-            if (getFrameToCanvasMatrix().mapRect(trackedPos)) {
-                final String labelString = String.format("%.2f", trackedObject.getCurrentCorrelation());
-                borderedText.drawText(canvas, trackedPos.right, trackedPos.bottom, labelString);
+        // Draw correlations.
+        for (int i = 0; i < snapshot.positions.length; ++i) {
+            if (Float.isNaN(snapshot.correlations[i])) {
+                continue;
             }
+            frameToCanvas.mapRect(drawRect, snapshot.positions[i]);
+            final String labelString = String.format("%.2f", snapshot.correlations[i]);
+            borderedText.drawText(canvas, drawRect.right, drawRect.bottom, labelString);
         }
 
-        final Matrix matrix = getFrameToCanvasMatrix();
-        objectTracker.drawDebug(canvas, matrix);
+        // Keypoints are debug only and still read under the tracker's own lock.
+        final Tracker tracker = objectTracker;
+        if (tracker != null) {
+            tracker.drawDebug(canvas, frameToCanvas);
+        }
     }
 
     public synchronized void trackResults(
             final List<Recognition> results, final byte[] frame, final long timestamp) {
-        logger.i("Processing %d results from %d", results.size(), timestamp);
+        LOGGER.v("Processing %d results from %d", results.size(), timestamp);
         processResults(timestamp, results, frame);
+        publishSnapshot();
     }
 
-    public synchronized void draw(final Canvas canvas) {
+    public void draw(final Canvas canvas) {
+        final Snapshot snapshot = this.snapshot;
+        if (snapshot.frameWidth == 0) {
+            return;
+        }
+        final Matrix frameToCanvas =
+                getFrameToCanvasMatrix(snapshot, canvas.getWidth(), canvas.getHeight());
+
+        for (int i = 0; i < snapshot.positions.length; ++i) {
+            frameToCanvas.mapRect(drawRect, snapshot.positions[i]);
+            canvas.drawBitmap(snapshot.masks[i], null, drawRect, null);
+        }
+    }
+
+    /**
+     * Returns the frame to canvas transform, recomputing it if the canvas, the frame or the sensor
+     * orientation changed since it was last computed.
+     */
+    private Matrix getFrameToCanvasMatrix(
+            final Snapshot snapshot, final int canvasWidth, final int canvasHeight) {
+        final int frameWidth = snapshot.frameWidth;
+        final int frameHeight = snapshot.frameHeight;
+        final int sensorOrientation = snapshot.sensorOrientation;
+        if (frameToCanvasMatrix != null
+                && canvasWidth == matrixCanvasWidth
+                && canvasHeight == matrixCanvasHeight
+                && frameWidth == matrixFrameWidth
+                && frameHeight == matrixFrameHeight
+                && sensorOrientation == matrixOrientation) {
+            return frameToCanvasMatrix;
+        }
+
         final boolean rotated = sensorOrientation % 180 == 90;
         final float multiplier =
-                Math.min(canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-                        canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
+                Math.min(canvasHeight / (float) (rotated ? frameWidth : frameHeight),
+                        canvasWidth / (float) (rotated ? frameHeight : frameWidth));
         frameToCanvasMatrix =
                 ImageUtils.getTransformationMatrix(
                         frameWidth,
@@ -146,25 +270,27 @@ public class MultiBoxTracker {
                         (int) (multiplier * (rotated ? frameWidth : frameHeight)),
                         sensorOrientation,
                         false);
-        for (final TrackedRecognition recognition : trackedObjects) {
-            final RectF trackedPos =
-                    (objectTracker != null)
-                            ? recognition.trackedObject.getTrackedPositionInPreviewFrame()
-                            : new RectF(recognition.location);
-
-            getFrameToCanvasMatrix().mapRect(trackedPos);
-
-            Bitmap mask = Bitmap.createBitmap((int) trackedPos.width(), (int) trackedPos.height(), Bitmap.Config.ARGB_8888);
-            Canvas maskCanvas = new Canvas(mask);
-            Matrix maskMatrix =
-                    ImageUtils.getTransformationMatrix(
-                            (int) recognition.location.width(), (int) recognition.location.height(),
-                            (int) trackedPos.width(), (int) trackedPos.height(),
-                            sensorOrientation, false);
-            maskCanvas.drawBitmap(recognition.bitmap, maskMatrix, null);
-
-            canvas.drawBitmap(mask, null, trackedPos, null);
+
+        matrixCanvasWidth = canvasWidth;
+        matrixCanvasHeight = canvasHeight;
+        matrixFrameWidth = frameWidth;
+        matrixFrameHeight = frameHeight;
+        matrixOrientation = sensorOrientation;
+        return frameToCanvasMatrix;
+    }
+
+    private Bitmap getOrientedMask(final TrackedRecognition recognition) {
+        if (recognition.orientedMask == null || recognition.maskOrientation != sensorOrientation) {
+            final Matrix rotation = new Matrix();
+            rotation.postRotate(sensorOrientation);
+            recognition.orientedMask =
+                    Bitmap.createBitmap(
+                            recognition.bitmap, 0, 0,
+                            recognition.bitmap.getWidth(), recognition.bitmap.getHeight(),
+                            rotation, true);
+            recognition.maskOrientation = sensorOrientation;
         }
+        return recognition.orientedMask;
     }
 
     private boolean initialized = false;
@@ -177,21 +303,20 @@ public class MultiBoxTracker {
             final byte[] frame,
             final long timestamp) {
         if (objectTracker == null && !initialized) {
-            ObjectTracker.clearInstance();
+            ObjectTracker.clearInstance(streamId);
 
-            logger.i("Initializing ObjectTracker: %dx%d", w, h);
-            objectTracker = ObjectTracker.getInstance(w, h, rowStride, true);
+            LOGGER.i("Initializing ObjectTracker for stream %s: %dx%d", streamId, w, h);
+            pyramidCache = new ImagePyramidCache(w, h, rowStride);
+            assigner = new BoxAssigner(w, h);
+            objectTracker = ObjectTracker.getInstance(streamId, pyramidCache, true);
             frameWidth = w;
             frameHeight = h;
             this.sensorOrientation = sensorOrienation;
             initialized = true;
 
             if (objectTracker == null) {
-                String message =
-                        "Object tracking support not found. "
-                                + "See tensorflow/examples/android/README.md for details.";
-                Toast.makeText(context, message, Toast.LENGTH_LONG).show();
-                logger.e(message);
+                LOGGER.w("Native object tracking not available, falling back to Java tracker");
+                objectTracker = new LucasKanadeTracker(pyramidCache);
             }
         }
 
@@ -199,28 +324,67 @@ public class MultiBoxTracker {
             return;
         }
 
-        objectTracker.nextFrame(frame, null, timestamp, null, true);
+        objectTracker.nextFrame(frame, null, timestamp, null, debug);
+        lastFrameTimestamp = timestamp;
 
-        // Clean up any objects not worth tracking any more.
-        final LinkedList<TrackedRecognition> copyList =
-                new LinkedList<TrackedRecognition>(trackedObjects);
-        for (final TrackedRecognition recognition : copyList) {
-            final ObjectTracker.TrackedObject trackedObject = recognition.trackedObject;
+        // Predict every track to this frame and correct it with the tracked position where that can
+        // be trusted. Tracks coast on the prediction through short occlusions and are only dropped
+        // once they have been lost for too long.
+        for (final Iterator<TrackedRecognition> it = trackedObjects.iterator(); it.hasNext(); ) {
+            final TrackedRecognition recognition = it.next();
+            final Tracker.Track trackedObject = recognition.trackedObject;
             final float correlation = trackedObject.getCurrentCorrelation();
-            if (correlation < MIN_CORRELATION) {
-                logger.v("Removing tracked object %s because NCC is %.2f", trackedObject, correlation);
+            recognition.filter.predict(timestamp);
+
+            final RectF position =
+                    correlation >= MIN_CORRELATION ? trackedObject.getTrackedPositionInPreviewFrame() : null;
+            if (position != null
+                    && recognition.filter.distanceSquared(position, FLOW_NOISE_FACTOR)
+                    <= KalmanBoxFilter.GATE_THRESHOLD) {
+                recognition.filter.update(position, FLOW_NOISE_FACTOR);
+                recognition.coastFrames = 0;
+            } else if (++recognition.coastFrames > MAX_COAST_FRAMES) {
+                if (LOGGER.isLoggable(Log.VERBOSE)) {
+                    LOGGER.v(
+                            "Removing tracked object %s, lost for %d frames with NCC %.2f",
+                            trackedObject, recognition.coastFrames, correlation);
+                }
                 trackedObject.stopTracking();
-                trackedObjects.remove(recognition);
+                it.remove();
+            }
+        }
+
+        publishSnapshot();
+    }
+
+    private void publishSnapshot() {
+        final int numObjects = trackedObjects.size();
+        final RectF[] positions = new RectF[numObjects];
+        final float[] correlations = new float[numObjects];
+        final Bitmap[] masks = new Bitmap[numObjects];
+        for (int i = 0; i < numObjects; ++i) {
+            final TrackedRecognition recognition = trackedObjects.get(i);
+            if (recognition.trackedObject != null) {
+                positions[i] = new RectF();
+                recognition.filter.getBox(positions[i]);
+                correlations[i] = recognition.trackedObject.getCurrentCorrelation();
+            } else {
+                positions[i] = new RectF(recognition.location);
+                correlations[i] = Float.NaN;
             }
+            masks[i] = getOrientedMask(recognition);
         }
+
+        snapshot = new Snapshot(
+                frameWidth, frameHeight, sensorOrientation, positions, correlations, masks,
+                detectionRects.toArray(new RectF[detectionRects.size()]));
     }
 
     private void processResults(
             final long timestamp, final List<Recognition> results, final byte[] originalFrame) {
         final List<Recognition> rectsToTrack = new LinkedList<>();
 
-        screenRects.clear();
-        final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+        detectionRects.clear();
 
         for (final Recognition result : results) {
             if (result.getLocation() == null) {
@@ -228,16 +392,12 @@ public class MultiBoxTracker {
             }
             final RectF detectionFrameRect = new RectF(result.getLocation());
 
-            final RectF detectionScreenRect = new RectF();
-            rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
+            LOGGER.v("Result! Frame: %s", detectionFrameRect);
 
-            logger.v(
-                    "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
-
-            screenRects.add(detectionScreenRect);
+            detectionRects.add(detectionFrameRect);
 
             if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-                logger.w("Degenerate rectangle! " + detectionFrameRect);
+                LOGGER.w("Degenerate rectangle! %s", detectionFrameRect);
                 continue;
             }
 
@@ -245,7 +405,7 @@ public class MultiBoxTracker {
         }
 
         if (rectsToTrack.isEmpty()) {
-            logger.v("Nothing to track, aborting.");
+            LOGGER.v("Nothing to track, aborting.");
             return;
         }
 
@@ -265,82 +425,117 @@ public class MultiBoxTracker {
             return;
         }
 
-        logger.i("%d rects to track", rectsToTrack.size());
-        for (final Recognition potential : rectsToTrack) {
-            handleDetection(originalFrame, timestamp, potential);
-        }
+        LOGGER.v("%d rects to track", rectsToTrack.size());
+        assignDetections(originalFrame, timestamp, rectsToTrack);
     }
 
-    private void handleDetection(
-            final byte[] frameCopy, final long timestamp, final Recognition potential) {
-        final ObjectTracker.TrackedObject potentialObject =
-                objectTracker.trackObject(potential.getLocation(), timestamp, frameCopy);
+    /**
+     * Starts tracking a batch of detections. Each one continues the track it overlaps most among
+     * those whose Kalman prediction it falls within the gate of, if any, and replaces every other
+     * track it overlaps by more than MAX_OVERLAP.
+     */
+    private void assignDetections(
+            final byte[] frameCopy, final long timestamp, final List<Recognition> detections) {
+        final List<Recognition> accepted = new ArrayList<Recognition>(detections.size());
+        final List<Tracker.Track> potentialObjects = new ArrayList<Tracker.Track>(detections.size());
+        final List<RectF> potentialPositions = new ArrayList<RectF>(detections.size());
+        for (final Recognition potential : detections) {
+            final Tracker.Track potentialObject =
+                    objectTracker.trackObject(potential.getLocation(), timestamp, frameCopy);
+            final float potentialCorrelation = potentialObject.getCurrentCorrelation();
+            final RectF potentialPosition = potentialObject.getTrackedPositionInPreviewFrame();
+            if (LOGGER.isLoggable(Log.VERBOSE)) {
+                LOGGER.v(
+                        "Tracked object went from %s to %s with correlation %.2f",
+                        potential, potentialPosition, potentialCorrelation);
+            }
 
-        final float potentialCorrelation = potentialObject.getCurrentCorrelation();
-        logger.v(
-                "Tracked object went from %s to %s with correlation %.2f",
-                potential, potentialObject.getTrackedPositionInPreviewFrame(), potentialCorrelation);
+            if (potentialCorrelation < MARGINAL_CORRELATION || potentialPosition == null) {
+                LOGGER.v("Correlation too low to begin tracking %s.", potentialObject);
+                potentialObject.stopTracking();
+                continue;
+            }
+            accepted.add(potential);
+            potentialObjects.add(potentialObject);
+            potentialPositions.add(potentialPosition);
+        }
 
-        if (potentialCorrelation < MARGINAL_CORRELATION) {
-            logger.v("Correlation too low to begin tracking %s.", potentialObject);
-            potentialObject.stopTracking();
-            return;
+        // Read every prediction once up front, the assignment itself only touches primitive arrays.
+        final int numTracks = trackedObjects.size();
+        final int numDetections = accepted.size();
+        assigner.reset(numTracks, numDetections);
+        final RectF prediction = new RectF();
+        for (int t = 0; t < numTracks; ++t) {
+            final KalmanBoxFilter filter = trackedObjects.get(t).filter;
+            filter.getBox(prediction);
+            assigner.setTrack(t, prediction, filter, DETECTION_NOISE_FACTOR);
+        }
+        for (int d = 0; d < numDetections; ++d) {
+            assigner.setDetection(
+                    d, potentialPositions.get(d), potentialObjects.get(d).getCurrentCorrelation());
         }
 
-        final List<TrackedRecognition> removeList = new LinkedList<TrackedRecognition>();
-
-        float maxIntersect = 0.0f;
-
-        // This is the current tracked object whose color we will take. If left null we'll take the
-        // first one from the color queue.
-        TrackedRecognition recogToReplace = null;
-
-        // Look for intersections that will be overridden by this object or an intersection that would
-        // prevent this one from being placed.
-        for (final TrackedRecognition trackedRecognition : trackedObjects) {
-            final RectF a = trackedRecognition.trackedObject.getTrackedPositionInPreviewFrame();
-            final RectF b = potentialObject.getTrackedPositionInPreviewFrame();
-            final RectF intersection = new RectF();
-            final boolean intersects = intersection.setIntersect(a, b);
-
-            final float intersectArea = intersection.width() * intersection.height();
-            final float totalArea = a.width() * a.height() + b.width() * b.height() - intersectArea;
-            final float intersectOverUnion = intersectArea / totalArea;
-
-            // If there is an intersection with this currently tracked box above the maximum overlap
-            // percentage allowed, either the new recognition needs to be dismissed or the old
-            // recognition needs to be removed and possibly replaced with the new one.
-            if (intersects && intersectOverUnion > MAX_OVERLAP) {
-                removeList.add(trackedRecognition);
-
-                // Let the previously tracked object with max intersection amount donate its color to
-                // the new object.
-                if (intersectOverUnion > maxIntersect) {
-                    maxIntersect = intersectOverUnion;
-                    recogToReplace = trackedRecognition;
-                }
+        assigner.assign(MAX_OVERLAP);
+
+        final List<TrackedRecognition> added = new ArrayList<TrackedRecognition>();
+        for (int d = 0; d < numDetections; ++d) {
+            final Recognition potential = accepted.get(d);
+            final Tracker.Track potentialObject = potentialObjects.get(d);
+            if (!assigner.isDetectionKept(d)) {
+                LOGGER.v("Suppressing %s, it overlaps a better detection.", potentialObject);
+                potentialObject.stopTracking();
+                continue;
+            }
+
+            final int t = assigner.getMatchedTrack(d);
+            if (t >= 0) {
+                final TrackedRecognition trackedRecognition = trackedObjects.get(t);
+                LOGGER.v(
+                        "Replacing tracked object %s with %s at position %s",
+                        trackedRecognition.trackedObject, potentialObject, potential.getLocation());
+                trackedRecognition.trackedObject.stopTracking();
+                trackedRecognition.trackedObject = potentialObject;
+                trackedRecognition.filter.update(potentialPositions.get(d), DETECTION_NOISE_FACTOR);
+                trackedRecognition.coastFrames = 0;
+                trackedRecognition.location = potential.getLocation();
+                trackedRecognition.bitmap = potential.getBitmap();
+                trackedRecognition.orientedMask = null;
+            } else {
+                LOGGER.v(
+                        "Tracking object %s with detection at position %s",
+                        potentialObject, potential.getLocation());
+                final TrackedRecognition trackedRecognition = new TrackedRecognition();
+                trackedRecognition.location = potential.getLocation();
+                trackedRecognition.trackedObject = potentialObject;
+                trackedRecognition.filter =
+                        new KalmanBoxFilter(potentialPositions.get(d), lastFrameTimestamp);
+                trackedRecognition.bitmap = potential.getBitmap();
+                added.add(trackedRecognition);
             }
         }
 
-        // Remove everything that got intersected.
-        for (final TrackedRecognition trackedRecognition : removeList) {
-            logger.v(
-                    "Removing tracked object %s with detection correlation %.2f",
-                    trackedRecognition.trackedObject,
-                    trackedRecognition.trackedObject.getCurrentCorrelation());
-            trackedRecognition.trackedObject.stopTracking();
-            trackedObjects.remove(trackedRecognition);
+        // Remove everything that got overlapped without being continued, back to front so the
+        // indices used by the assigner stay valid.
+        for (int t = numTracks - 1; t >= 0; --t) {
+            if (assigner.isTrackOverlapped(t) && !assigner.isTrackMatched(t)) {
+                final TrackedRecognition trackedRecognition = trackedObjects.remove(t);
+                if (LOGGER.isLoggable(Log.VERBOSE)) {
+                    LOGGER.v(
+                            "Removing tracked object %s with detection correlation %.2f",
+                            trackedRecognition.trackedObject,
+                            trackedRecognition.trackedObject.getCurrentCorrelation());
+                }
+                trackedRecognition.trackedObject.stopTracking();
+            }
         }
 
-        // Finally safe to say we can track this object.
-        logger.v(
-                "Tracking object %s with detection at position %s",
-                potentialObject,
-                potential.getLocation());
-        final TrackedRecognition trackedRecognition = new TrackedRecognition();
-        trackedRecognition.location = potential.getLocation();
-        trackedRecognition.trackedObject = potentialObject;
-        trackedRecognition.bitmap = potential.getBitmap();
-        trackedObjects.add(trackedRecognition);
+        for (final TrackedRecognition trackedRecognition : added) {
+            if (trackedObjects.size() >= MAX_OBJECT) {
+                LOGGER.w("Already tracking %d objects, dropping %s", MAX_OBJECT, trackedRecognition.trackedObject);
+                trackedRecognition.trackedObject.stopTracking();
+                continue;
+            }
+            trackedObjects.add(trackedRecognition);
+        }
     }
 }
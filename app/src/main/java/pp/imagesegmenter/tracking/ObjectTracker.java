@@ -23,13 +23,13 @@ import android.graphics.PointF;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 
+import pp.imagesegmenter.env.ImagePyramid;
+import pp.imagesegmenter.env.ImagePyramidCache;
 import pp.imagesegmenter.env.Logger;
 import pp.imagesegmenter.env.Size;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 
@@ -40,9 +40,10 @@ import javax.microedition.khronos.opengles.GL10;
  * It provides a simplified Java interface to the analogous native object defined by
  * jni/client_vision/tracking/object_tracker.*.
  *
- * Currently, the ObjectTracker is a singleton due to native code restrictions, and so must
- * be allocated by ObjectTracker.getInstance(). In addition, release() should be called
- * as soon as the ObjectTracker is no longer needed, and before a new one is created.
+ * ObjectTrackers are allocated by ObjectTracker.getInstance(), one per stream of frames. Each
+ * instance owns its own native tracker, so trackers of different streams may run concurrently on
+ * different threads. release() should be called as soon as the ObjectTracker is no longer needed,
+ * and before a new one is created for the same stream.
  *
  * nextFrame() should be called as new frames become available, preferably as often as possible.
  *
@@ -50,7 +51,7 @@ import javax.microedition.khronos.opengles.GL10;
  * are associated with the ObjectTracker that created them, and are only valid while that
  * ObjectTracker still exists.
  */
-public class ObjectTracker {
+public class ObjectTracker implements Tracker {
     private static final Logger LOGGER = new Logger();
 
     private static boolean libraryFound = false;
@@ -73,134 +74,170 @@ public class ObjectTracker {
 
     /**
      * How many frames of optical flow deltas to record.
-     * TODO(andrewharp): Push this down to the native level so it can be polled
-     * efficiently into a an array for upload, instead of keeping a duplicate
-     * copy in Java.
      */
     private static final int MAX_FRAME_HISTORY_SIZE = 200;
 
+    /**
+     * Upper bound on the keypoints reported per frame, mirrors kMaxKeypoints in config.h.
+     */
+    private static final int MAX_KEYPOINTS = 76;
+
+    /**
+     * Two pairs of fixed point xy coordinates, 2 bytes each, per packed keypoint.
+     */
+    private static final int BYTES_PER_PACKED_KEYPOINT = 8;
+
     private static final int DOWNSAMPLE_FACTOR = 2;
 
-    private final byte[] downsampledFrame;
+    /**
+     * The pyramid level the native tracker works on, 1 / DOWNSAMPLE_FACTOR of the full frame.
+     */
+    private static final int PYRAMID_LEVEL = 1;
+
+    private final ImagePyramidCache pyramidCache;
+
+    /**
+     * The stream trackers are registered under when the caller does not name one.
+     */
+    public static final String DEFAULT_STREAM = "default";
+
+    private static final Map<String, ObjectTracker> instances = new HashMap<String, ObjectTracker>();
+
+    private final String streamId;
 
-    protected static ObjectTracker instance;
+    private volatile boolean released;
 
-    private final Map<String, TrackedObject> trackedObjects;
+    // Live objects, compacted so that the first numObjects handles can be passed to the native
+    // tracker as they are. Each object knows its own slot.
+    private TrackedObject[] trackedObjects = new TrackedObject[16];
+    private int[] handles = new int[16];
+    private int numObjects;
+    private int nextHandle = 1;
+
+    // Filled by getTrackedStatesNative(), indexed like handles.
+    private float[] statePositions = new float[16 * 4];
+    private boolean[] stateVisible = new boolean[16];
+    private float[] stateCorrelations = new float[16];
+
+    // Same for single object refreshes between frames.
+    private final int[] singleHandle = new int[1];
+    private final float[] singlePosition = new float[4];
+    private final boolean[] singleVisible = new boolean[1];
+    private final float[] singleCorrelation = new float[1];
 
     private long lastTimestamp;
 
-    private FrameChange lastKeypoints;
+    private final FrameKeypoints lastKeypoints = new FrameKeypoints();
+    private final float[] keypointValues = new float[MAX_KEYPOINTS * FrameKeypoints.KEYPOINT_STEP];
 
     private final Vector<PointF> debugHistory;
 
-    private final LinkedList<TimestampedDeltas> timestampedDeltas;
+    // Ring of preallocated packed keypoint slots, one per frame. The oldest unpolled frame lives
+    // at deltaHead.
+    private final byte[][] deltaSlots;
+    private final int[] deltaLengths;
+    private final long[] deltaTimestamps;
+    private int deltaHead;
+    private int deltaCount;
 
     protected final int frameWidth;
     protected final int frameHeight;
-    private final int rowStride;
     protected final boolean alwaysTrack;
 
-    private static class TimestampedDeltas {
-        final long timestamp;
-        final byte[] deltas;
-
-        public TimestampedDeltas(final long timestamp, final byte[] deltas) {
-            this.timestamp = timestamp;
-            this.deltas = deltas;
-        }
-    }
-
     /**
-     * A simple class that records keypoint information, which includes
-     * local location, score and type. This will be used in calculating
-     * FrameChange.
+     * A zero-copy view over frames of packed keypoint deltas returned by
+     * {@link #pollAccumulatedFlowData(long, FlowDataCursor)}. The data arrays belong to the
+     * ObjectTracker and are only valid until the next call to nextFrame(), so consumers must be
+     * done with a cursor before the next frame is processed.
      */
-    public static class Keypoint {
-        public final float x;
-        public final float y;
-        public final float score;
-        public final int type;
-
-        public Keypoint(final float x, final float y) {
-            this.x = x;
-            this.y = y;
-            this.score = 0;
-            this.type = -1;
+    public static class FlowDataCursor {
+        private ObjectTracker tracker;
+        private int start;
+        private int size;
+        private int position = -1;
+
+        /** Moves to the next frame, returning false once all polled frames have been visited. */
+        public boolean next() {
+            if (position + 1 >= size) {
+                return false;
+            }
+            ++position;
+            return true;
         }
 
-        public Keypoint(final float x, final float y, final float score, final int type) {
-            this.x = x;
-            this.y = y;
-            this.score = score;
-            this.type = type;
+        private int slot() {
+            if (position < 0 || position >= size) {
+                throw new IllegalStateException("Cursor is not positioned on a frame");
+            }
+            return (start + position) % MAX_FRAME_HISTORY_SIZE;
         }
 
-        Keypoint delta(final Keypoint other) {
-            return new Keypoint(this.x - other.x, this.y - other.y);
+        public long getTimestamp() {
+            return tracker.deltaTimestamps[slot()];
         }
-    }
 
-    /**
-     * A simple class that could calculate Keypoint delta.
-     * This class will be used in calculating frame translation delta
-     * for optical flow.
-     */
-    public static class PointChange {
-        public final Keypoint keypointA;
-        public final Keypoint keypointB;
-        Keypoint pointDelta;
-        private final boolean wasFound;
+        /** Returns the packed keypoints of the current frame, valid up to {@link #getLength()}. */
+        public byte[] getData() {
+            return tracker.deltaSlots[slot()];
+        }
 
-        public PointChange(final float x1, final float y1,
-                           final float x2, final float y2,
-                           final float score, final int type,
-                           final boolean wasFound) {
-            this.wasFound = wasFound;
+        public int getLength() {
+            return tracker.deltaLengths[slot()];
+        }
 
-            keypointA = new Keypoint(x1, y1, score, type);
-            keypointB = new Keypoint(x2, y2);
+        public int size() {
+            return size;
         }
 
-        public Keypoint getDelta() {
-            if (pointDelta == null) {
-                pointDelta = keypointB.delta(keypointA);
-            }
-            return pointDelta;
+        void reset(final ObjectTracker tracker, final int start, final int size) {
+            this.tracker = tracker;
+            this.start = start;
+            this.size = size;
+            this.position = -1;
         }
     }
 
-    /** A class that records a timestamped frame translation delta for optical flow. */
-    public static class FrameChange {
-        public static final int KEYPOINT_STEP = 7;
-
-        public final Vector<PointChange> pointDeltas;
-
-        private final float minScore;
-        private final float maxScore;
-
-        public FrameChange(final float[] framePoints) {
+    /**
+     * Keypoints of the last frame and where they moved to, stored column-wise in primitive arrays
+     * that are reused from frame to frame. Coordinates are in full frame space.
+     */
+    private static class FrameKeypoints {
+        /** Floats per keypoint in the array returned by the native tracker. */
+        static final int KEYPOINT_STEP = 7;
+
+        final float[] x1 = new float[MAX_KEYPOINTS];
+        final float[] y1 = new float[MAX_KEYPOINTS];
+        final float[] x2 = new float[MAX_KEYPOINTS];
+        final float[] y2 = new float[MAX_KEYPOINTS];
+        final float[] score = new float[MAX_KEYPOINTS];
+        final int[] type = new int[MAX_KEYPOINTS];
+        final boolean[] found = new boolean[MAX_KEYPOINTS];
+
+        int count;
+        float minScore;
+        float maxScore;
+
+        /**
+         * Unpacks numKeypoints native keypoints, computing the score range in the same pass.
+         */
+        void set(final float[] framePoints, final int numKeypoints) {
             float minScore = 100.0f;
             float maxScore = -100.0f;
 
-            pointDeltas = new Vector<PointChange>(framePoints.length / KEYPOINT_STEP);
-
-            for (int i = 0; i < framePoints.length; i += KEYPOINT_STEP) {
-                final float x1 = framePoints[i + 0] * DOWNSAMPLE_FACTOR;
-                final float y1 = framePoints[i + 1] * DOWNSAMPLE_FACTOR;
-
-                final boolean wasFound = framePoints[i + 2] > 0.0f;
-
-                final float x2 = framePoints[i + 3] * DOWNSAMPLE_FACTOR;
-                final float y2 = framePoints[i + 4] * DOWNSAMPLE_FACTOR;
-                final float score = framePoints[i + 5];
-                final int type = (int) framePoints[i + 6];
-
-                minScore = Math.min(minScore, score);
-                maxScore = Math.max(maxScore, score);
-
-                pointDeltas.add(new PointChange(x1, y1, x2, y2, score, type, wasFound));
+            for (int k = 0, i = 0; k < numKeypoints; ++k, i += KEYPOINT_STEP) {
+                x1[k] = framePoints[i + 0] * DOWNSAMPLE_FACTOR;
+                y1[k] = framePoints[i + 1] * DOWNSAMPLE_FACTOR;
+                found[k] = framePoints[i + 2] > 0.0f;
+                x2[k] = framePoints[i + 3] * DOWNSAMPLE_FACTOR;
+                y2[k] = framePoints[i + 4] * DOWNSAMPLE_FACTOR;
+                score[k] = framePoints[i + 5];
+                type[k] = (int) framePoints[i + 6];
+
+                minScore = Math.min(minScore, score[k]);
+                maxScore = Math.max(maxScore, score[k]);
             }
 
+            this.count = numKeypoints;
             this.minScore = minScore;
             this.maxScore = maxScore;
         }
@@ -208,6 +245,20 @@ public class ObjectTracker {
 
     public static synchronized ObjectTracker getInstance(
             final int frameWidth, final int frameHeight, final int rowStride, final boolean alwaysTrack) {
+        return getInstance(new ImagePyramidCache(frameWidth, frameHeight, rowStride), alwaysTrack);
+    }
+
+    public static synchronized ObjectTracker getInstance(
+            final ImagePyramidCache pyramidCache, final boolean alwaysTrack) {
+        return getInstance(DEFAULT_STREAM, pyramidCache, alwaysTrack);
+    }
+
+    /**
+     * Creates the tracker of the given stream for frames of the given cache, sharing its pyramids
+     * with any other consumer of the same frames. Only one tracker may exist per stream at a time.
+     */
+    public static synchronized ObjectTracker getInstance(
+            final String streamId, final ImagePyramidCache pyramidCache, final boolean alwaysTrack) {
         if (!libraryFound) {
             LOGGER.e(
                     "Native object tracking support not found. "
@@ -215,40 +266,47 @@ public class ObjectTracker {
             return null;
         }
 
-        if (instance == null) {
-            instance = new ObjectTracker(frameWidth, frameHeight, rowStride, alwaysTrack);
-            instance.init();
-        } else {
+        if (instances.containsKey(streamId)) {
             throw new RuntimeException(
-                    "Tried to create a new objectracker before releasing the old one!");
+                    "Tried to create a new objectracker for stream " + streamId
+                            + " before releasing the old one!");
         }
-        return instance;
+        final ObjectTracker tracker = new ObjectTracker(streamId, pyramidCache, alwaysTrack);
+        tracker.init();
+        instances.put(streamId, tracker);
+        return tracker;
     }
 
-    public static synchronized void clearInstance() {
-        if (instance != null) {
-            instance.release();
+    public static void clearInstance() {
+        clearInstance(DEFAULT_STREAM);
+    }
+
+    /**
+     * Releases the tracker of the given stream, if any. The class lock is dropped before the
+     * tracker's own lock is taken, in the same order as release() takes them.
+     */
+    public static void clearInstance(final String streamId) {
+        final ObjectTracker tracker;
+        synchronized (ObjectTracker.class) {
+            tracker = instances.remove(streamId);
+        }
+        if (tracker != null) {
+            tracker.release();
         }
     }
 
     protected ObjectTracker(
-            final int frameWidth, final int frameHeight, final int rowStride, final boolean alwaysTrack) {
-        this.frameWidth = frameWidth;
-        this.frameHeight = frameHeight;
-        this.rowStride = rowStride;
+            final String streamId, final ImagePyramidCache pyramidCache, final boolean alwaysTrack) {
+        this.streamId = streamId;
+        this.pyramidCache = pyramidCache;
+        this.frameWidth = pyramidCache.getWidth();
+        this.frameHeight = pyramidCache.getHeight();
         this.alwaysTrack = alwaysTrack;
-        this.timestampedDeltas = new LinkedList<TimestampedDeltas>();
-
-        trackedObjects = new HashMap<String, TrackedObject>();
+        this.deltaSlots = new byte[MAX_FRAME_HISTORY_SIZE][MAX_KEYPOINTS * BYTES_PER_PACKED_KEYPOINT];
+        this.deltaLengths = new int[MAX_FRAME_HISTORY_SIZE];
+        this.deltaTimestamps = new long[MAX_FRAME_HISTORY_SIZE];
 
         debugHistory = new Vector<PointF>(MAX_DEBUG_HISTORY_SIZE);
-
-        downsampledFrame =
-                new byte
-                        [(frameWidth + DOWNSAMPLE_FACTOR - 1)
-                        / DOWNSAMPLE_FACTOR
-                        * (frameWidth + DOWNSAMPLE_FACTOR - 1)
-                        / DOWNSAMPLE_FACTOR];
     }
 
     protected void init() {
@@ -259,8 +317,6 @@ public class ObjectTracker {
 
     private final float[] matrixValues = new float[9];
 
-    private long downsampledTimestamp;
-
     @SuppressWarnings("unused")
     public synchronized void drawOverlay(final GL10 gl,
                                          final Size cameraViewSize, final Matrix matrix) {
@@ -270,27 +326,27 @@ public class ObjectTracker {
         drawNative(cameraViewSize.width, cameraViewSize.height, matrixValues);
     }
 
+    @Override
     public synchronized void nextFrame(
             final byte[] frameData, final byte[] uvData,
             final long timestamp, final float[] transformationMatrix,
             final boolean updateDebugInfo) {
-        if (downsampledTimestamp != timestamp) {
-            ObjectTracker.downsampleImageNative(
-                    frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame);
-            downsampledTimestamp = timestamp;
+        if (released) {
+            LOGGER.w("Frame %d for released tracker of stream %s dropped", timestamp, streamId);
+            return;
         }
-
-        // Do Lucas Kanade using the fullframe initializer.
-        nextFrameNative(downsampledFrame, uvData, timestamp, transformationMatrix);
-
-        timestampedDeltas.add(new TimestampedDeltas(timestamp, getKeypointsPacked(DOWNSAMPLE_FACTOR)));
-        while (timestampedDeltas.size() > MAX_FRAME_HISTORY_SIZE) {
-            timestampedDeltas.removeFirst();
+        // Do Lucas Kanade using the fullframe initializer. The native side copies the frame, so the
+        // pyramid can go back to the cache right away.
+        final ImagePyramid pyramid = pyramidCache.acquire(frameData, timestamp);
+        try {
+            nextFrameNative(pyramid.getLevel(PYRAMID_LEVEL), uvData, timestamp, transformationMatrix);
+        } finally {
+            pyramidCache.release(pyramid);
         }
 
-        for (final TrackedObject trackedObject : trackedObjects.values()) {
-            trackedObject.updateTrackedPosition();
-        }
+        recordDeltas(timestamp);
+
+        updateTrackedStates();
 
         if (updateDebugInfo) {
             updateDebugHistory();
@@ -299,10 +355,72 @@ public class ObjectTracker {
         lastTimestamp = timestamp;
     }
 
-    public synchronized void release() {
-        releaseMemoryNative();
+    /**
+     * Refreshes position, visibility and correlation of every tracked object with a single native
+     * call.
+     */
+    private void updateTrackedStates() {
+        if (numObjects == 0) {
+            return;
+        }
+        getTrackedStatesNative(handles, numObjects, statePositions, stateVisible, stateCorrelations);
+        for (int i = 0; i < numObjects; ++i) {
+            trackedObjects[i].setState(statePositions, stateVisible, stateCorrelations, i);
+        }
+    }
+
+    private void addObject(final TrackedObject trackedObject) {
+        if (numObjects == handles.length) {
+            final int capacity = 2 * numObjects;
+            trackedObjects = Arrays.copyOf(trackedObjects, capacity);
+            handles = Arrays.copyOf(handles, capacity);
+            statePositions = new float[capacity * 4];
+            stateVisible = new boolean[capacity];
+            stateCorrelations = new float[capacity];
+        }
+        trackedObject.slot = numObjects;
+        trackedObjects[numObjects] = trackedObject;
+        handles[numObjects] = trackedObject.handle;
+        ++numObjects;
+    }
+
+    private void removeObject(final TrackedObject trackedObject) {
+        final int slot = trackedObject.slot;
+        --numObjects;
+        final TrackedObject last = trackedObjects[numObjects];
+        trackedObjects[slot] = last;
+        handles[slot] = last.handle;
+        last.slot = slot;
+        trackedObjects[numObjects] = null;
+        trackedObject.slot = -1;
+    }
+
+    private void recordDeltas(final long timestamp) {
+        final int slot = (deltaHead + deltaCount) % MAX_FRAME_HISTORY_SIZE;
+        if (deltaCount < MAX_FRAME_HISTORY_SIZE) {
+            ++deltaCount;
+        } else {
+            // Overwrite the oldest frame nobody polled in time.
+            deltaHead = (deltaHead + 1) % MAX_FRAME_HISTORY_SIZE;
+        }
+        deltaLengths[slot] = getKeypointsPackedNative(DOWNSAMPLE_FACTOR, deltaSlots[slot]);
+        deltaTimestamps[slot] = timestamp;
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            releaseMemoryNative();
+        }
+        // Never taken while holding this tracker's lock, see clearInstance().
         synchronized (ObjectTracker.class) {
-            instance = null;
+            if (instances.get(streamId) == this) {
+                instances.remove(streamId);
+            }
         }
     }
 
@@ -345,45 +463,42 @@ public class ObjectTracker {
         return Math.max(0, Math.min((int) (value * 255.999f), 255));
     }
 
+    private final Paint keypointPaint = new Paint();
+
     private void drawKeypointsDebug(final Canvas canvas) {
-        final Paint p = new Paint();
-        if (lastKeypoints == null) {
-            return;
-        }
+        final Paint p = keypointPaint;
+        final FrameKeypoints keypoints = lastKeypoints;
         final int keypointSize = 3;
 
-        final float minScore = lastKeypoints.minScore;
-        final float maxScore = lastKeypoints.maxScore;
+        final float minScore = keypoints.minScore;
+        final float maxScore = keypoints.maxScore;
 
-        for (final PointChange keypoint : lastKeypoints.pointDeltas) {
-            if (keypoint.wasFound) {
+        for (int i = 0; i < keypoints.count; ++i) {
+            if (keypoints.found[i]) {
                 final int r =
-                        floatToChar((keypoint.keypointA.score - minScore) / (maxScore - minScore));
+                        floatToChar((keypoints.score[i] - minScore) / (maxScore - minScore));
                 final int b =
-                        floatToChar(1.0f - (keypoint.keypointA.score - minScore) / (maxScore - minScore));
+                        floatToChar(1.0f - (keypoints.score[i] - minScore) / (maxScore - minScore));
 
                 final int color = 0xFF000000 | (r << 16) | b;
                 p.setColor(color);
 
-                final float[] screenPoints = {keypoint.keypointA.x, keypoint.keypointA.y,
-                        keypoint.keypointB.x, keypoint.keypointB.y};
-                canvas.drawRect(screenPoints[2] - keypointSize,
-                        screenPoints[3] - keypointSize,
-                        screenPoints[2] + keypointSize,
-                        screenPoints[3] + keypointSize, p);
+                canvas.drawRect(keypoints.x2[i] - keypointSize,
+                        keypoints.y2[i] - keypointSize,
+                        keypoints.x2[i] + keypointSize,
+                        keypoints.y2[i] + keypointSize, p);
                 p.setColor(Color.CYAN);
-                canvas.drawLine(screenPoints[2], screenPoints[3],
-                        screenPoints[0], screenPoints[1], p);
+                canvas.drawLine(keypoints.x2[i], keypoints.y2[i],
+                        keypoints.x1[i], keypoints.y1[i], p);
 
                 if (DRAW_TEXT) {
                     p.setColor(Color.WHITE);
-                    canvas.drawText(keypoint.keypointA.type + ": " + keypoint.keypointA.score,
-                            keypoint.keypointA.x, keypoint.keypointA.y, p);
+                    canvas.drawText(keypoints.type[i] + ": " + keypoints.score[i],
+                            keypoints.x1[i], keypoints.y1[i], p);
                 }
             } else {
                 p.setColor(Color.YELLOW);
-                final float[] screenPoint = {keypoint.keypointA.x, keypoint.keypointA.y};
-                canvas.drawCircle(screenPoint[0], screenPoint[1], 5.0f, p);
+                canvas.drawCircle(keypoints.x1[i], keypoints.y1[i], 5.0f, p);
             }
         }
     }
@@ -409,7 +524,7 @@ public class ObjectTracker {
     }
 
     private void updateDebugHistory() {
-        lastKeypoints = new FrameChange(getKeypointsNative(false));
+        lastKeypoints.set(keypointValues, fillKeypointsNative(false, keypointValues));
 
         if (lastTimestamp == 0) {
             return;
@@ -428,6 +543,7 @@ public class ObjectTracker {
         }
     }
 
+    @Override
     public synchronized void drawDebug(final Canvas canvas, final Matrix frameToCanvas) {
         canvas.save();
         canvas.setMatrix(frameToCanvas);
@@ -438,11 +554,12 @@ public class ObjectTracker {
         canvas.restore();
     }
 
+    @Override
     public Vector<String> getDebugText() {
         final Vector<String> lines = new Vector<String>();
 
-        if (lastKeypoints != null) {
-            lines.add("Num keypoints " + lastKeypoints.pointDeltas.size());
+        if (lastKeypoints.count > 0) {
+            lines.add("Num keypoints " + lastKeypoints.count);
             lines.add("Min score: " + lastKeypoints.minScore);
             lines.add("Max score: " + lastKeypoints.maxScore);
         }
@@ -450,19 +567,25 @@ public class ObjectTracker {
         return lines;
     }
 
-    public synchronized List<byte[]> pollAccumulatedFlowData(final long endFrameTime) {
-        final List<byte[]> frameDeltas = new ArrayList<byte[]>();
-        while (timestampedDeltas.size() > 0) {
-            final TimestampedDeltas currentDeltas = timestampedDeltas.peek();
-            if (currentDeltas.timestamp <= endFrameTime) {
-                frameDeltas.add(currentDeltas.deltas);
-                timestampedDeltas.removeFirst();
-            } else {
-                break;
-            }
-        }
-
-        return frameDeltas;
+    /**
+     * Removes all recorded frames up to and including endFrameTime from the history and points the
+     * cursor at them, oldest first. No data is copied; see {@link FlowDataCursor} for how long the
+     * data stays valid.
+     *
+     * @return the number of frames polled.
+     */
+    public synchronized int pollAccumulatedFlowData(
+            final long endFrameTime, final FlowDataCursor cursor) {
+        int polled = 0;
+        while (polled < deltaCount
+                && deltaTimestamps[(deltaHead + polled) % MAX_FRAME_HISTORY_SIZE] <= endFrameTime) {
+            ++polled;
+        }
+
+        cursor.reset(this, deltaHead, polled);
+        deltaHead = (deltaHead + polled) % MAX_FRAME_HISTORY_SIZE;
+        deltaCount -= polled;
+        return polled;
     }
 
     private RectF downscaleRect(final RectF fullFrameRect) {
@@ -487,50 +610,57 @@ public class ObjectTracker {
      * be safely passed around and accessed externally, but will become invalid after
      * stopTracking() is called or the related creating ObjectTracker is deactivated.
      *
+     * The native side knows the object by an integer handle. Its state is refreshed for all
+     * objects at once after every frame, so the getters never cross into native code.
+     *
      * @author andrewharp@google.com (Andrew Harp)
      */
-    public class TrackedObject {
-        private final String id;
+    public class TrackedObject implements Track {
+        private final int handle;
+        private int slot = -1;
 
         private long lastExternalPositionTime;
 
-        private RectF lastTrackedPosition;
+        private final float[] lastTrackedPosition = new float[4];
+        private boolean hasTrackedPosition;
         private boolean visibleInLastFrame;
+        private float correlation;
 
         private boolean isDead;
 
         TrackedObject(final RectF position, final long timestamp, final byte[] data) {
             isDead = false;
 
-            id = Integer.toString(this.hashCode());
-
             lastExternalPositionTime = timestamp;
 
             synchronized (ObjectTracker.this) {
+                handle = nextHandle++;
                 registerInitialAppearance(position, data);
+                addObject(this);
                 setPreviousPosition(position, timestamp);
-                trackedObjects.put(id, this);
             }
         }
 
+        @Override
         public void stopTracking() {
             checkValidObject();
 
             synchronized (ObjectTracker.this) {
                 isDead = true;
-                forgetNative(id);
-                trackedObjects.remove(id);
+                forgetNative(handle);
+                removeObject(this);
             }
         }
 
-        public float getCurrentCorrelation() {
+        @Override
+        public synchronized float getCurrentCorrelation() {
             checkValidObject();
-            return ObjectTracker.this.getCurrentCorrelation(id);
+            return correlation;
         }
 
         void registerInitialAppearance(final RectF position, final byte[] data) {
             final RectF externalPosition = downscaleRect(position);
-            registerNewObjectWithAppearanceNative(id,
+            registerNewObjectWithAppearanceNative(handle,
                     externalPosition.left, externalPosition.top,
                     externalPosition.right, externalPosition.bottom,
                     data);
@@ -546,7 +676,7 @@ public class ObjectTracker {
                 final RectF externalPosition = downscaleRect(position);
                 lastExternalPositionTime = timestamp;
 
-                setPreviousPositionNative(id,
+                setPreviousPositionNative(handle,
                         externalPosition.left, externalPosition.top,
                         externalPosition.right, externalPosition.bottom,
                         lastExternalPositionTime);
@@ -559,35 +689,51 @@ public class ObjectTracker {
             checkValidObject();
             final RectF downsampledPosition = downscaleRect(position);
             synchronized (ObjectTracker.this) {
-                setCurrentPositionNative(id,
+                setCurrentPositionNative(handle,
                         downsampledPosition.left, downsampledPosition.top,
                         downsampledPosition.right, downsampledPosition.bottom);
+                updateTrackedPosition();
             }
         }
 
-        private synchronized void updateTrackedPosition() {
+        /**
+         * Refreshes this object alone, for changes made between two frames.
+         */
+        private void updateTrackedPosition() {
             checkValidObject();
+            singleHandle[0] = handle;
+            getTrackedStatesNative(singleHandle, 1, singlePosition, singleVisible, singleCorrelation);
+            setState(singlePosition, singleVisible, singleCorrelation, 0);
+        }
 
-            final float[] delta = new float[4];
-            getTrackedPositionNative(id, delta);
-            lastTrackedPosition = new RectF(delta[0], delta[1], delta[2], delta[3]);
-
-            visibleInLastFrame = isObjectVisible(id);
+        private synchronized void setState(
+                final float[] positions, final boolean[] visible, final float[] correlations,
+                final int index) {
+            System.arraycopy(positions, index * 4, lastTrackedPosition, 0, 4);
+            hasTrackedPosition = true;
+            visibleInLastFrame = visible[index];
+            correlation = correlations[index];
         }
 
+        @Override
         public synchronized RectF getTrackedPositionInPreviewFrame() {
             checkValidObject();
 
-            if (lastTrackedPosition == null) {
+            if (!hasTrackedPosition) {
                 return null;
             }
-            return upscaleRect(lastTrackedPosition);
+            return new RectF(
+                    lastTrackedPosition[0] * DOWNSAMPLE_FACTOR,
+                    lastTrackedPosition[1] * DOWNSAMPLE_FACTOR,
+                    lastTrackedPosition[2] * DOWNSAMPLE_FACTOR,
+                    lastTrackedPosition[3] * DOWNSAMPLE_FACTOR);
         }
 
         synchronized long getLastExternalPositionTime() {
             return lastExternalPositionTime;
         }
 
+        @Override
         public synchronized boolean visibleInLastPreviewFrame() {
             return visibleInLastFrame;
         }
@@ -595,20 +741,21 @@ public class ObjectTracker {
         private void checkValidObject() {
             if (isDead) {
                 throw new RuntimeException("TrackedObject already removed from tracking!");
-            } else if (ObjectTracker.this != instance) {
-                throw new RuntimeException("TrackedObject created with another ObjectTracker!");
+            } else if (released) {
+                throw new RuntimeException("TrackedObject belongs to a released ObjectTracker!");
             }
         }
     }
 
+    @Override
     public synchronized TrackedObject trackObject(
             final RectF position, final long timestamp, final byte[] frameData) {
-        if (downsampledTimestamp != timestamp) {
-            ObjectTracker.downsampleImageNative(
-                    frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame);
-            downsampledTimestamp = timestamp;
+        final ImagePyramid pyramid = pyramidCache.acquire(frameData, timestamp);
+        try {
+            return new TrackedObject(position, timestamp, pyramid.getLevel(PYRAMID_LEVEL));
+        } finally {
+            pyramidCache.release(pyramid);
         }
-        return new TrackedObject(position, timestamp, downsampledFrame);
     }
 
     public synchronized TrackedObject trackObject(final RectF position, final byte[] frameData) {
@@ -623,25 +770,23 @@ public class ObjectTracker {
     private native void initNative(int imageWidth, int imageHeight, boolean alwaysTrack);
 
     protected native void registerNewObjectWithAppearanceNative(
-            String objectId, float x1, float y1, float x2, float y2, byte[] data);
+            int handle, float x1, float y1, float x2, float y2, byte[] data);
 
     protected native void setPreviousPositionNative(
-            String objectId, float x1, float y1, float x2, float y2, long timestamp);
+            int handle, float x1, float y1, float x2, float y2, long timestamp);
 
     protected native void setCurrentPositionNative(
-            String objectId, float x1, float y1, float x2, float y2);
-
-    protected native void forgetNative(String key);
-
-    protected native String getModelIdNative(String key);
-
-    protected native boolean haveObject(String key);
-    protected native boolean isObjectVisible(String key);
-    protected native float getCurrentCorrelation(String key);
+            int handle, float x1, float y1, float x2, float y2);
 
-    protected native float getMatchScore(String key);
+    protected native void forgetNative(int handle);
 
-    protected native void getTrackedPositionNative(String key, float[] points);
+    /**
+     * Writes the downsampled position (4 floats each), visibility and correlation of the first
+     * count handled objects into the given arrays. Unknown handles report an empty, invisible
+     * box. Returns the number of objects written, or 0 if an array is too small.
+     */
+    protected native int getTrackedStatesNative(
+            int[] handles, int count, float[] positions, boolean[] visible, float[] correlations);
 
     protected native void nextFrameNative(
             byte[] frameData, byte[] uvData, long timestamp, float[] frameAlignMatrix);
@@ -653,9 +798,17 @@ public class ObjectTracker {
                                                    final float positionX2, final float positionY2,
                                                    final float[] delta);
 
-    protected native byte[] getKeypointsPacked(float scaleFactor);
+    /**
+     * Writes the packed keypoints of the last frame into output, which must hold at least
+     * MAX_KEYPOINTS * BYTES_PER_PACKED_KEYPOINT bytes, and returns the number of bytes written.
+     */
+    protected native int getKeypointsPackedNative(float scaleFactor, byte[] output);
 
-    protected native float[] getKeypointsNative(boolean onlyReturnCorrespondingKeypoints);
+    /**
+     * Writes the keypoints of the last frame into output, which must hold at least
+     * MAX_KEYPOINTS * KEYPOINT_STEP floats, and returns the number of keypoints written.
+     */
+    protected native int fillKeypointsNative(boolean onlyReturnCorrespondingKeypoints, float[] output);
 
     protected native void drawNative(int viewWidth, int viewHeight, float[] frameToCanvas);
 
@@ -0,0 +1,69 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.tracking;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import java.util.Vector;
+
+/**
+ * Tracks objects across consecutive luminance preview frames.
+ *
+ * This is the contract MultiBoxTracker relies on. It is implemented by the native
+ * {@link ObjectTracker} and, when the native library is unavailable, by the pure Java
+ * {@link LucasKanadeTracker}. All positions are in preview frame coordinates.
+ */
+public interface Tracker {
+    /**
+     * An object being followed by a Tracker. It becomes invalid after stopTracking() is called or
+     * the creating Tracker is released.
+     */
+    interface Track {
+        /** Returns the position after the last frame, or null if it is not known yet. */
+        RectF getTrackedPositionInPreviewFrame();
+
+        /** Returns how well the object's current appearance matches its original one. */
+        float getCurrentCorrelation();
+
+        boolean visibleInLastPreviewFrame();
+
+        void stopTracking();
+    }
+
+    /**
+     * Advances all tracked objects to a new frame.
+     */
+    void nextFrame(
+            final byte[] frameData, final byte[] uvData,
+            final long timestamp, final float[] transformationMatrix,
+            final boolean updateDebugInfo);
+
+    /**
+     * Starts tracking the object at position in the given frame.
+     */
+    Track trackObject(final RectF position, final long timestamp, final byte[] frameData);
+
+    void drawDebug(final Canvas canvas, final Matrix frameToCanvas);
+
+    Vector<String> getDebugText();
+
+    /**
+     * Frees all resources. No Track created by this Tracker may be used afterwards.
+     */
+    void release();
+}
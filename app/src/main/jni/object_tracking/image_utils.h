@@ -147,9 +147,9 @@ inline void CalculateG(const int window_radius, const float center_x,
   static const int kWindowBufferSize =
       (kMaxWindowRadius * 2 + 1) * (kMaxWindowRadius * 2 + 1);
 
-  // Preallocate buffers statically for efficiency.
-  static int16_t vals_x[kWindowBufferSize];
-  static int16_t vals_y[kWindowBufferSize];
+  // On the stack rather than static so that trackers may run on several threads.
+  int16_t vals_x[kWindowBufferSize];
+  int16_t vals_y[kWindowBufferSize];
 
   const int src_left_fixed = RealToFixed1616(center_x - window_radius);
   const int src_top_fixed = RealToFixed1616(center_y - window_radius);
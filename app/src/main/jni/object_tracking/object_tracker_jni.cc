@@ -19,6 +19,7 @@ limitations under the License.
 #include <stdlib.h>
 #include <string.h>
 #include <cstdint>
+#include <string>
 
 #include "image-inl.h"
 #include "image.h"
@@ -48,6 +49,14 @@ void set_object_tracker(JNIEnv* env, jobject thiz,
                            reinterpret_cast<intptr_t>(object_tracker));
 }
 
+// Java refers to tracked objects by integer handle, the native tracker keys
+// them by string.
+std::string handle_to_id(const jint handle) {
+  char id[16];
+  snprintf(id, sizeof(id), "%d", handle);
+  return std::string(id);
+}
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -62,45 +71,23 @@ void JNICALL OBJECT_TRACKER_METHOD(releaseMemoryNative)(JNIEnv* env,
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2, jbyteArray frame_data);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setPreviousPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2, jlong timestamp);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setCurrentPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2);
 
 JNIEXPORT
-jboolean JNICALL OBJECT_TRACKER_METHOD(haveObject)(JNIEnv* env, jobject thiz,
-                                                   jstring object_id);
-
-JNIEXPORT
-jboolean JNICALL OBJECT_TRACKER_METHOD(isObjectVisible)(JNIEnv* env,
-                                                        jobject thiz,
-                                                        jstring object_id);
-
-JNIEXPORT
-jstring JNICALL OBJECT_TRACKER_METHOD(getModelIdNative)(JNIEnv* env,
-                                                        jobject thiz,
-                                                        jstring object_id);
-
-JNIEXPORT
-jfloat JNICALL OBJECT_TRACKER_METHOD(getCurrentCorrelation)(JNIEnv* env,
-                                                            jobject thiz,
-                                                            jstring object_id);
-
-JNIEXPORT
-jfloat JNICALL OBJECT_TRACKER_METHOD(getMatchScore)(JNIEnv* env, jobject thiz,
-                                                    jstring object_id);
-
-JNIEXPORT
-void JNICALL OBJECT_TRACKER_METHOD(getTrackedPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloatArray rect_array);
+jint JNICALL OBJECT_TRACKER_METHOD(getTrackedStatesNative)(
+    JNIEnv* env, jobject thiz, jintArray handles, jint count,
+    jfloatArray positions, jbooleanArray visible, jfloatArray correlations);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
@@ -111,15 +98,15 @@ void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(forgetNative)(JNIEnv* env, jobject thiz,
-                                                 jstring object_id);
+                                                 jint handle);
 
 JNIEXPORT
-jbyteArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
-    JNIEnv* env, jobject thiz, jfloat scale_factor);
+jint JNICALL OBJECT_TRACKER_METHOD(getKeypointsPackedNative)(
+    JNIEnv* env, jobject thiz, jfloat scale_factor, jbyteArray output);
 
 JNIEXPORT
-jfloatArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsNative)(
-    JNIEnv* env, jobject thiz, jboolean only_found_);
+jint JNICALL OBJECT_TRACKER_METHOD(fillKeypointsNative)(
+    JNIEnv* env, jobject thiz, jboolean only_found, jfloatArray output);
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(getCurrentPositionNative)(
@@ -168,11 +155,11 @@ void JNICALL OBJECT_TRACKER_METHOD(releaseMemoryNative)(JNIEnv* env,
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2, jbyteArray frame_data) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
+  const std::string id = handle_to_id(handle);
 
-  LOGI("Registering the position of %s at %.2f,%.2f,%.2f,%.2f", id_str, x1, y1,
+  LOGI("Registering the position of %s at %.2f,%.2f,%.2f,%.2f", id.c_str(), x1, y1,
        x2, y2);
 
   jboolean iCopied = JNI_FALSE;
@@ -182,114 +169,85 @@ void JNICALL OBJECT_TRACKER_METHOD(registerNewObjectWithAppearanceNative)(
 
   BoundingBox bounding_box(x1, y1, x2, y2);
   get_object_tracker(env, thiz)->RegisterNewObjectWithAppearance(
-      id_str, reinterpret_cast<const uint8_t*>(pixels), bounding_box);
+      id, reinterpret_cast<const uint8_t*>(pixels), bounding_box);
 
   env->ReleaseByteArrayElements(frame_data, pixels, JNI_ABORT);
-
-  env->ReleaseStringUTFChars(object_id, id_str);
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setPreviousPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2, jlong timestamp) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
+  const std::string id = handle_to_id(handle);
 
   LOGI(
       "Registering the position of %s at %.2f,%.2f,%.2f,%.2f"
       " at time %lld",
-      id_str, x1, y1, x2, y2, static_cast<int64_t>(timestamp));
+      id.c_str(), x1, y1, x2, y2, static_cast<int64_t>(timestamp));
 
   get_object_tracker(env, thiz)->SetPreviousPositionOfObject(
-      id_str, BoundingBox(x1, y1, x2, y2), timestamp);
-
-  env->ReleaseStringUTFChars(object_id, id_str);
+      id, BoundingBox(x1, y1, x2, y2), timestamp);
 }
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(setCurrentPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloat x1, jfloat y1,
+    JNIEnv* env, jobject thiz, jint handle, jfloat x1, jfloat y1,
     jfloat x2, jfloat y2) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
+  const std::string id = handle_to_id(handle);
 
-  LOGI("Registering the position of %s at %.2f,%.2f,%.2f,%.2f", id_str, x1, y1,
+  LOGI("Registering the position of %s at %.2f,%.2f,%.2f,%.2f", id.c_str(), x1, y1,
        x2, y2);
 
   get_object_tracker(env, thiz)->SetCurrentPositionOfObject(
-      id_str, BoundingBox(x1, y1, x2, y2));
-
-  env->ReleaseStringUTFChars(object_id, id_str);
-}
-
-JNIEXPORT
-jboolean JNICALL OBJECT_TRACKER_METHOD(haveObject)(JNIEnv* env, jobject thiz,
-                                                   jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const bool haveObject = get_object_tracker(env, thiz)->HaveObject(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return haveObject;
+      id, BoundingBox(x1, y1, x2, y2));
 }
 
 JNIEXPORT
-jboolean JNICALL OBJECT_TRACKER_METHOD(isObjectVisible)(JNIEnv* env,
-                                                        jobject thiz,
-                                                        jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const bool visible = get_object_tracker(env, thiz)->IsObjectVisible(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return visible;
-}
-
-JNIEXPORT
-jstring JNICALL OBJECT_TRACKER_METHOD(getModelIdNative)(JNIEnv* env,
-                                                        jobject thiz,
-                                                        jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-  const TrackedObject* const object =
-      get_object_tracker(env, thiz)->GetObject(id_str);
-  env->ReleaseStringUTFChars(object_id, id_str);
-  jstring model_name = env->NewStringUTF(object->GetModel()->GetName().c_str());
-  return model_name;
-}
-
-JNIEXPORT
-jfloat JNICALL OBJECT_TRACKER_METHOD(getCurrentCorrelation)(JNIEnv* env,
-                                                            jobject thiz,
-                                                            jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const float correlation =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetCorrelation();
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return correlation;
-}
-
-JNIEXPORT
-jfloat JNICALL OBJECT_TRACKER_METHOD(getMatchScore)(JNIEnv* env, jobject thiz,
-                                                    jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  const float match_score =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetMatchScore().value;
-  env->ReleaseStringUTFChars(object_id, id_str);
-  return match_score;
-}
+jint JNICALL OBJECT_TRACKER_METHOD(getTrackedStatesNative)(
+    JNIEnv* env, jobject thiz, jintArray handles, jint count,
+    jfloatArray positions, jbooleanArray visible, jfloatArray correlations) {
+  if (env->GetArrayLength(handles) < count ||
+      env->GetArrayLength(positions) < count * 4 ||
+      env->GetArrayLength(visible) < count ||
+      env->GetArrayLength(correlations) < count) {
+    LOGE("Output arrays too small for %d objects!", count);
+    return 0;
+  }
 
-JNIEXPORT
-void JNICALL OBJECT_TRACKER_METHOD(getTrackedPositionNative)(
-    JNIEnv* env, jobject thiz, jstring object_id, jfloatArray rect_array) {
-  jboolean iCopied = JNI_FALSE;
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
+  ObjectTracker* const object_tracker = get_object_tracker(env, thiz);
+
+  // No JNI calls are made while the arrays are pinned.
+  jint* const handle_arr =
+      static_cast<jint*>(env->GetPrimitiveArrayCritical(handles, NULL));
+  jfloat* const position_arr =
+      static_cast<jfloat*>(env->GetPrimitiveArrayCritical(positions, NULL));
+  jboolean* const visible_arr =
+      static_cast<jboolean*>(env->GetPrimitiveArrayCritical(visible, NULL));
+  jfloat* const correlation_arr =
+      static_cast<jfloat*>(env->GetPrimitiveArrayCritical(correlations, NULL));
+
+  for (int i = 0; i < count; ++i) {
+    const std::string id = handle_to_id(handle_arr[i]);
+    TrackedObject* const object =
+        object_tracker->HaveObject(id) ? object_tracker->GetObject(id) : NULL;
+    if (object == NULL) {
+      memset(position_arr + i * 4, 0, 4 * sizeof(jfloat));
+      visible_arr[i] = JNI_FALSE;
+      correlation_arr[i] = 0.0f;
+      continue;
+    }
+    object->GetPosition().CopyToArray(
+        reinterpret_cast<float*>(position_arr + i * 4));
+    visible_arr[i] = object->IsVisible();
+    correlation_arr[i] = object->GetCorrelation();
+  }
 
-  const BoundingBox bounding_box =
-      get_object_tracker(env, thiz)->GetObject(id_str)->GetPosition();
-  env->ReleaseStringUTFChars(object_id, id_str);
+  env->ReleasePrimitiveArrayCritical(correlations, correlation_arr, 0);
+  env->ReleasePrimitiveArrayCritical(visible, visible_arr, 0);
+  env->ReleasePrimitiveArrayCritical(positions, position_arr, 0);
+  env->ReleasePrimitiveArrayCritical(handles, handle_arr, JNI_ABORT);
 
-  jfloat* rect = env->GetFloatArrayElements(rect_array, &iCopied);
-  bounding_box.CopyToArray(reinterpret_cast<float*>(rect));
-  env->ReleaseFloatArrayElements(rect_array, rect, 0);
+  return count;
 }
 
 JNIEXPORT
@@ -342,38 +300,34 @@ void JNICALL OBJECT_TRACKER_METHOD(nextFrameNative)(JNIEnv* env, jobject thiz,
 
 JNIEXPORT
 void JNICALL OBJECT_TRACKER_METHOD(forgetNative)(JNIEnv* env, jobject thiz,
-                                                 jstring object_id) {
-  const char* const id_str = env->GetStringUTFChars(object_id, 0);
-
-  get_object_tracker(env, thiz)->ForgetTarget(id_str);
+                                                 jint handle) {
+  const std::string id = handle_to_id(handle);
 
-  env->ReleaseStringUTFChars(object_id, id_str);
+  get_object_tracker(env, thiz)->ForgetTarget(id);
 }
 
 JNIEXPORT
-jfloatArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsNative)(
-    JNIEnv* env, jobject thiz, jboolean only_found) {
+jint JNICALL OBJECT_TRACKER_METHOD(fillKeypointsNative)(
+    JNIEnv* env, jobject thiz, jboolean only_found, jfloatArray output) {
   jfloat keypoint_arr[kMaxKeypoints * kKeypointStep];
 
   const int number_of_keypoints =
       get_object_tracker(env, thiz)->GetKeypoints(only_found, keypoint_arr);
 
-  // Create and return the array that will be passed back to Java.
-  jfloatArray keypoints =
-      env->NewFloatArray(number_of_keypoints * kKeypointStep);
-  if (keypoints == NULL) {
-    LOGE("null array!");
-    return NULL;
+  // Fill the caller's preallocated array instead of creating a new one.
+  if (env->GetArrayLength(output) < number_of_keypoints * kKeypointStep) {
+    LOGE("Output array too small for %d keypoints!", number_of_keypoints);
+    return 0;
   }
-  env->SetFloatArrayRegion(keypoints, 0, number_of_keypoints * kKeypointStep,
+  env->SetFloatArrayRegion(output, 0, number_of_keypoints * kKeypointStep,
                            keypoint_arr);
 
-  return keypoints;
+  return number_of_keypoints;
 }
 
 JNIEXPORT
-jbyteArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
-    JNIEnv* env, jobject thiz, jfloat scale_factor) {
+jint JNICALL OBJECT_TRACKER_METHOD(getKeypointsPackedNative)(
+    JNIEnv* env, jobject thiz, jfloat scale_factor, jbyteArray output) {
   // 2 bytes to a uint16_t and two pairs of xy coordinates per keypoint.
   const int bytes_per_keypoint = sizeof(uint16_t) * 2 * 2;
   jbyte keypoint_arr[kMaxKeypoints * bytes_per_keypoint];
@@ -382,19 +336,15 @@ jbyteArray JNICALL OBJECT_TRACKER_METHOD(getKeypointsPacked)(
       get_object_tracker(env, thiz)->GetKeypointsPacked(
           reinterpret_cast<uint16_t*>(keypoint_arr), scale_factor);
 
-  // Create and return the array that will be passed back to Java.
-  jbyteArray keypoints =
-      env->NewByteArray(number_of_keypoints * bytes_per_keypoint);
-
-  if (keypoints == NULL) {
-    LOGE("null array!");
-    return NULL;
+  // Fill the caller's preallocated array instead of creating a new one.
+  const int num_bytes = number_of_keypoints * bytes_per_keypoint;
+  if (env->GetArrayLength(output) < num_bytes) {
+    LOGE("Output array too small for %d keypoints!", number_of_keypoints);
+    return 0;
   }
+  env->SetByteArrayRegion(output, 0, num_bytes, keypoint_arr);
 
-  env->SetByteArrayRegion(
-      keypoints, 0, number_of_keypoints * bytes_per_keypoint, keypoint_arr);
-
-  return keypoints;
+  return num_bytes;
 }
 
 JNIEXPORT
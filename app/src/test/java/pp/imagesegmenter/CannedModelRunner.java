@@ -0,0 +1,116 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for the segmentation model, returning the same scores for every input, optionally
+ * only once the test lets it.
+ *
+ * The scores mark the middle third of the columns as stream, like the band of a
+ * {@link pp.imagesegmenter.source.SyntheticFrameSource}, with a hole inside the band for closing
+ * to fill and isolated stream pixels outside it for opening to drop.
+ */
+class CannedModelRunner implements ModelRunner {
+    private final int width;
+    private final int height;
+    private final Semaphore permits;
+    private final ByteBuffer scores;
+
+    private int runs;
+
+    CannedModelRunner(final int width, final int height) {
+        this(width, height, null);
+    }
+
+    /**
+     * @param width width of the output grid.
+     * @param height height of the output grid.
+     * @param permits if not null, every run first takes one of these, so that the test decides
+     *     how long the model stays busy.
+     */
+    CannedModelRunner(final int width, final int height, final Semaphore permits) {
+        this.width = width;
+        this.height = height;
+        this.permits = permits;
+
+        scores = ByteBuffer.allocateDirect(getOutputBytes());
+        scores.order(ByteOrder.nativeOrder());
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                final boolean stream = isStream(x, y) || isSpeckle(x, y);
+                scores.putFloat(stream ? 0.0f : 1.0f);
+                scores.putFloat(stream ? 1.0f : 0.0f);
+            }
+        }
+        // The hole: one pixel in the middle of the band.
+        final int hole = (height / 2 * width + width / 2) * MaskPipeline.NUM_CLASSES;
+        scores.putFloat(4 * hole, 1.0f);
+        scores.putFloat(4 * (hole + MaskPipeline.STREAM_CLASS), 0.0f);
+    }
+
+    /** Returns whether the pixel is part of the stream band. */
+    boolean isStream(final int x, final int y) {
+        return x >= width / 3 && x < 2 * width / 3;
+    }
+
+    /** Returns whether the pixel is one of the isolated stream pixels outside the band. */
+    boolean isSpeckle(final int x, final int y) {
+        return x % 16 == 3 && y % 16 == 5 && !isStream(x, y);
+    }
+
+    synchronized int getRuns() {
+        return runs;
+    }
+
+    @Override
+    public void run(final ByteBuffer input, final ByteBuffer output) {
+        if (permits != null) {
+            try {
+                if (!permits.tryAcquire(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Never allowed to run");
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        final ByteBuffer source = scores.duplicate();
+        source.clear();
+        output.clear();
+        output.put(source);
+        synchronized (this) {
+            ++runs;
+        }
+    }
+
+    @Override
+    public int[] getOutputShape() {
+        return new int[] {1, height, width, MaskPipeline.NUM_CLASSES};
+    }
+
+    @Override
+    public int getOutputBytes() {
+        return 4 * width * height * MaskPipeline.NUM_CLASSES;
+    }
+
+    @Override
+    public void close() {}
+}
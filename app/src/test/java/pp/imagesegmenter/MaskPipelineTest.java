@@ -0,0 +1,209 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pp.imagesegmenter.env.BinaryMask;
+import pp.imagesegmenter.env.FrameStats;
+import pp.imagesegmenter.source.Frame;
+import pp.imagesegmenter.source.ManualFrameSource;
+import pp.imagesegmenter.source.SyntheticFrameSource;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs frames of a {@link SyntheticFrameSource} through input preparation, a
+ * {@link CannedModelRunner} and the {@link MaskPipeline} on the JVM, the way MainActivity hands
+ * camera frames to its inference thread: the source's frame is held until the stage is done with
+ * it, so frames arriving meanwhile are dropped as CAMERA_BUSY.
+ *
+ * The source is stepped by hand and the model only runs when the test lets it, so that the counts
+ * do not depend on how fast the machine is.
+ */
+public class MaskPipelineTest {
+    private static final int FRAME_SIZE = Segmentation.MODEL_INPUT_SIZE;
+    private static final int OUTPUT_SIZE = FRAME_SIZE / 2;
+    private static final float MOTION_PER_FRAME = 2.0f;
+    private static final int FRAMES = 60;
+    private static final long TIMEOUT_S = 5;
+
+    /** The stage for one source: prepares every frame, runs the model and post-processes. */
+    private static final class Stage {
+        final CannedModelRunner runner;
+        final MaskPipeline pipeline = new MaskPipeline(OUTPUT_SIZE, OUTPUT_SIZE);
+        final TensorPrep tensorPrep = new TensorPrep(FRAME_SIZE, FRAME_SIZE);
+        final ByteBuffer input;
+        final ByteBuffer output;
+        final int[] pixels = new int[FRAME_SIZE * FRAME_SIZE];
+        final FrameStats frameStats;
+        final ManualFrameSource source;
+
+        final ExecutorService worker = Executors.newSingleThreadExecutor();
+        final AtomicLong delivered = new AtomicLong();
+        final AtomicLong processNs = new AtomicLong();
+        // Released once for every frame the stage has released.
+        final Semaphore done = new Semaphore(0);
+
+        /**
+         * @param permits passed on to the {@link CannedModelRunner}, null to run at once.
+         */
+        Stage(final Semaphore permits, final FrameStats frameStats) {
+            this.runner = new CannedModelRunner(OUTPUT_SIZE, OUTPUT_SIZE, permits);
+            this.frameStats = frameStats;
+            input = ByteBuffer.allocateDirect(
+                    Segmentation.INPUT_LAYOUT.getByteSize(FRAME_SIZE * FRAME_SIZE));
+            input.order(ByteOrder.nativeOrder());
+            output = ByteBuffer.allocateDirect(runner.getOutputBytes());
+            output.order(ByteOrder.nativeOrder());
+            tensorPrep.register(Segmentation.INPUT_LAYOUT, () -> {
+                input.rewind();
+                return input;
+            });
+            source = new ManualFrameSource(new SyntheticFrameSource(
+                    FRAME_SIZE, FRAME_SIZE, 30, MOTION_PER_FRAME, frameStats));
+            source.start(this::onFrame);
+        }
+
+        void onFrame(final Frame frame) {
+            delivered.incrementAndGet();
+            worker.execute(() -> {
+                try {
+                    process(frame);
+                } finally {
+                    frame.release();
+                    done.release();
+                }
+            });
+        }
+
+        private void process(final Frame frame) {
+            final long startNs = System.nanoTime();
+            final byte[] luminance = frame.getPlane(0);
+            final int stride = frame.getYRowStride();
+            for (int y = 0, i = 0; y < FRAME_SIZE; ++y) {
+                for (int x = 0; x < FRAME_SIZE; ++x, ++i) {
+                    pixels[i] = 0xFF000000 | (luminance[y * stride + x] & 0xFF) * 0x010101;
+                }
+            }
+            tensorPrep.prepare(pixels);
+            runner.run(input, output);
+            pipeline.process(output);
+            frameStats.onFrame(FrameStats.Rate.PROCESSED);
+            processNs.addAndGet(System.nanoTime() - startNs);
+        }
+
+        /** Waits for the stage to release the frame it was last given. */
+        void awaitDone() throws InterruptedException {
+            assertTrue("Frame not released", done.tryAcquire(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+
+        void finish() throws InterruptedException {
+            source.stop();
+            worker.shutdown();
+            assertTrue(worker.awaitTermination(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void cleansMaskAndAssignsOneBoxToTheBand() {
+        final CannedModelRunner runner = new CannedModelRunner(OUTPUT_SIZE, OUTPUT_SIZE);
+        final ByteBuffer output = ByteBuffer.allocateDirect(runner.getOutputBytes());
+        output.order(ByteOrder.nativeOrder());
+        runner.run(null, output);
+
+        final MaskPipeline pipeline = new MaskPipeline(OUTPUT_SIZE, OUTPUT_SIZE);
+        assertEquals(1, pipeline.process(output));
+
+        // The speckles were opened away and the hole closed, leaving exactly the band.
+        final BinaryMask mask = pipeline.getMask();
+        for (int y = 0; y < OUTPUT_SIZE; ++y) {
+            for (int x = 0; x < OUTPUT_SIZE; ++x) {
+                assertEquals("(" + x + ", " + y + ")", runner.isStream(x, y), mask.get(x, y));
+            }
+        }
+
+        final int[] box = new int[4];
+        pipeline.getBox(0, box);
+        assertArrayEquals(
+                new int[] {OUTPUT_SIZE / 3, 0, 2 * OUTPUT_SIZE / 3, OUTPUT_SIZE}, box);
+    }
+
+    @Test
+    public void keepsUpWithSyntheticFrames() throws InterruptedException {
+        final FrameStats frameStats = new FrameStats();
+        final Stage stage = new Stage(null, frameStats);
+        // A camera slower than the stage: every frame is released before the next arrives.
+        for (int i = 0; i < FRAMES; ++i) {
+            stage.source.tick();
+            stage.awaitDone();
+        }
+        stage.finish();
+
+        final long processed = frameStats.getTotal(FrameStats.Rate.PROCESSED);
+        final long dropped = frameStats.getDropped(FrameStats.Drop.CAMERA_BUSY);
+        final float meanMs = stage.processNs.get() / 1e6f / Math.max(1, processed);
+        final String counts = String.format(
+                "%d delivered, %d processed, %d dropped, %.2f ms per frame",
+                stage.delivered.get(), processed, dropped, meanMs);
+
+        assertEquals(counts, FRAMES, stage.delivered.get());
+        assertEquals(counts, FRAMES, processed);
+        assertEquals(counts, FRAMES, stage.runner.getRuns());
+        assertEquals(counts, 0, dropped);
+        // Only a sanity bound, loose enough for a cold JVM on a slow machine: a stage that cannot
+        // even keep up with 10 fps has gone badly wrong.
+        assertTrue(counts, meanMs < 100.0f);
+    }
+
+    @Test
+    public void countsFramesDroppedWhileTheModelIsBusy() throws InterruptedException {
+        final int cycles = 10;
+        final int busyTicks = 3;
+        final Semaphore permits = new Semaphore(0);
+        final FrameStats frameStats = new FrameStats();
+        final Stage stage = new Stage(permits, frameStats);
+        for (int i = 0; i < cycles; ++i) {
+            // The first frame is held until the model is let run, so the rest are dropped.
+            for (int j = 0; j <= busyTicks; ++j) {
+                stage.source.tick();
+            }
+            permits.release();
+            stage.awaitDone();
+        }
+        stage.finish();
+
+        final long delivered = stage.delivered.get();
+        final long processed = frameStats.getTotal(FrameStats.Rate.PROCESSED);
+        final long dropped = frameStats.getDropped(FrameStats.Drop.CAMERA_BUSY);
+        final String counts = String.format(
+                "%d delivered, %d processed, %d dropped", delivered, processed, dropped);
+
+        assertEquals(counts, cycles, delivered);
+        assertEquals(counts, cycles, processed);
+        assertEquals(counts, cycles * busyTicks, dropped);
+    }
+}
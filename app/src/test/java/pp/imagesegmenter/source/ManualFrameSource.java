@@ -0,0 +1,48 @@
+/* Copyright 2016 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package pp.imagesegmenter.source;
+
+/**
+ * Delivers the frames of a {@link SyntheticFrameSource} one {@link #tick()} at a time on the
+ * caller's thread, so that tests see the same frames and drops however fast the machine is.
+ */
+public class ManualFrameSource implements FrameSource {
+    private final SyntheticFrameSource source;
+
+    private Listener listener;
+
+    public ManualFrameSource(final SyntheticFrameSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void stop() {
+        listener = null;
+    }
+
+    /** Delivers the next frame, which is dropped as CAMERA_BUSY if the last one is still held. */
+    public void tick() {
+        if (listener == null) {
+            throw new IllegalStateException("Not started");
+        }
+        source.deliver(listener);
+    }
+}